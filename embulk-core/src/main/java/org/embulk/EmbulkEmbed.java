@@ -3,7 +3,11 @@ package org.embulk;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -21,6 +25,7 @@ import org.embulk.exec.PreviewResult;
 import org.embulk.exec.ExecutionResult;
 import org.embulk.exec.PartialExecutionException;
 import org.embulk.exec.ResumeState;
+import org.embulk.exec.ResumeStateJournal;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.ExecSession;
 import org.embulk.guice.Bootstrap;
@@ -199,12 +204,25 @@ public class EmbulkEmbed
     }
 
     public ResumableResult runResumable(ConfigSource config)
+    {
+        return runResumable(config, Optional.<Path>absent());
+    }
+
+    // writes resume state to resumeStateJournal every time a task commits
+    // so that resumeStateFromJournal can resume the transaction even if
+    // this process is killed
+    public ResumableResult runResumable(ConfigSource config, Path resumeStateJournal)
+    {
+        return runResumable(config, Optional.of(resumeStateJournal));
+    }
+
+    private ResumableResult runResumable(ConfigSource config, Optional<Path> resumeStateJournal)
     {
         ExecSession exec = newExecSession(config);
         try {
             ExecutionResult result;
             try {
-                result = bulkLoader.run(exec, config);
+                result = bulkLoader.run(exec, config, resumeStateJournal);
             } catch (PartialExecutionException partial) {
                 return new ResumableResult(partial);
             }
@@ -234,6 +252,42 @@ public class EmbulkEmbed
         return new ResumeStateAction(config, resumeState);
     }
 
+    // reads resume state written by writeResumeState or YAML resume state
+    // written by older versions. returns null if the file is empty.
+    public ResumeStateAction resumeStateFromFile(ConfigSource config, Path resumeStateFile)
+            throws IOException
+    {
+        if (Files.size(resumeStateFile) == 0) {
+            return null;
+        }
+        if (ResumeStateJournal.isJournalFile(resumeStateFile)) {
+            return resumeStateFromJournal(config, resumeStateFile);
+        }
+        ConfigSource resumeStateConfig = newConfigLoader().fromYamlFile(resumeStateFile.toFile());
+        if (resumeStateConfig.isEmpty()) {
+            return null;
+        }
+        return resumeState(config, resumeStateConfig);
+    }
+
+    // writes resume state in the compact format of resume state journal
+    public void writeResumeState(ResumeState resumeState, Path resumeStateFile)
+            throws IOException
+    {
+        ResumeStateJournal.write(resumeStateFile, resumeState, getModelManager());
+    }
+
+    // returns null if the journal doesn't include resume state
+    public ResumeStateAction resumeStateFromJournal(ConfigSource config, Path resumeStateJournal)
+            throws IOException
+    {
+        Optional<ResumeState> resumeState = ResumeStateJournal.read(resumeStateJournal, getModelManager());
+        if (!resumeState.isPresent()) {
+            return null;
+        }
+        return new ResumeStateAction(config, resumeState.get());
+    }
+
     public static class ResumableResult
     {
         private final ExecutionResult successfulResult;
@@ -287,10 +341,20 @@ public class EmbulkEmbed
         }
 
         public ResumableResult resume()
+        {
+            return resume(Optional.<Path>absent());
+        }
+
+        public ResumableResult resume(Path resumeStateJournal)
+        {
+            return resume(Optional.of(resumeStateJournal));
+        }
+
+        private ResumableResult resume(Optional<Path> resumeStateJournal)
         {
             ExecutionResult result;
             try {
-                result = bulkLoader.resume(config, resumeState);
+                result = bulkLoader.resume(config, resumeState, resumeStateJournal);
             } catch (PartialExecutionException partial) {
                 return new ResumableResult(partial);
             }
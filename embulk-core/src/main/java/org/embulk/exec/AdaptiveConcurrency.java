@@ -0,0 +1,114 @@
+package org.embulk.exec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Adjusts concurrency of a TaskRunner periodically using AIMD (additive
+// increase, multiplicative decrease). Concurrency increases while throughput
+// of records increases, and decreases when throughput drops or CPU is
+// saturated. Concurrency changes when tasks start or finish because running
+// tasks are not stopped.
+class AdaptiveConcurrency
+        implements AutoCloseable
+{
+    private static final double CPU_SATURATED = 0.95;
+    private static final double THROUGHPUT_DROPPED = 0.9;
+    private static final double THROUGHPUT_KEPT = 0.95;
+
+    private final Logger log;
+    private final TaskRunner runner;
+    private final ProgressReporter progress;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final ScheduledExecutorService scheduler;
+
+    // accessed only by the scheduler thread
+    private long lastNanos;
+    private long lastRecords;
+    private double lastThroughput = -1.0;
+
+    public AdaptiveConcurrency(final Logger log, TaskRunner runner, ProgressReporter progress,
+            int minConcurrency, int maxConcurrency, long intervalMillis)
+    {
+        this.log = log;
+        this.runner = runner;
+        this.progress = progress;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.lastNanos = System.nanoTime();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("embulk-concurrency-%d")
+                        .setDaemon(true)
+                        .build());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run()
+            {
+                try {
+                    update();
+                } catch (RuntimeException ex) {
+                    log.debug("Failed to update concurrency", ex);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void update()
+    {
+        long now = System.nanoTime();
+        long records = progress.getRecords();
+        double throughput = (records - lastRecords) / (Math.max(now - lastNanos, 1) / 1e9);
+        lastNanos = now;
+        lastRecords = records;
+
+        // throughput of the last tasks decreases regardless of concurrency
+        if (!runner.hasPendingTasks()) {
+            return;
+        }
+
+        int current = runner.getConcurrency();
+        int next = nextConcurrency(current, lastThroughput, throughput, getProcessCpuLoad(),
+                minConcurrency, maxConcurrency);
+        lastThroughput = throughput;
+        if (next != current) {
+            log.info(String.format("Changing concurrency from %d to %d (records: %.0f/s)", current, next, throughput));
+            runner.setConcurrency(next);
+        }
+    }
+
+    // lastThroughput is negative at the first update. cpuLoad is negative if
+    // it's not available.
+    static int nextConcurrency(int current, double lastThroughput, double throughput,
+            double cpuLoad, int minConcurrency, int maxConcurrency)
+    {
+        int next;
+        if (cpuLoad >= CPU_SATURATED || (lastThroughput > 0 && throughput < lastThroughput * THROUGHPUT_DROPPED)) {
+            next = current * 3 / 4;
+        } else if (throughput >= lastThroughput * THROUGHPUT_KEPT) {
+            next = current + 1;
+        } else {
+            next = current;
+        }
+        return Math.max(minConcurrency, Math.min(maxConcurrency, next));
+    }
+
+    private static double getProcessCpuLoad()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        return -1.0;
+    }
+
+    @Override
+    public void close()
+    {
+        scheduler.shutdownNow();
+    }
+}
@@ -1,6 +1,7 @@
 package org.embulk.exec;
 
 import java.util.List;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutionException;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
@@ -68,6 +69,7 @@ public class BulkLoader
         private final Logger logger;
 
         private final ProcessPluginSet plugins;
+        private final Optional<ResumeStateJournal> journal;
 
         private volatile TaskSource inputTaskSource;
         private volatile TaskSource outputTaskSource;
@@ -81,10 +83,11 @@ public class BulkLoader
         private volatile List<TaskState> inputTaskStates;
         private volatile List<TaskState> outputTaskStates;
 
-        public LoaderState(Logger logger, ProcessPluginSet plugins)
+        public LoaderState(Logger logger, ProcessPluginSet plugins, Optional<ResumeStateJournal> journal)
         {
             this.logger = logger;
             this.plugins = plugins;
+            this.journal = journal;
         }
 
         public Logger getLogger()
@@ -139,16 +142,57 @@ public class BulkLoader
                 ImmutableList.Builder<TaskState> inputTaskStates = ImmutableList.builder();
                 ImmutableList.Builder<TaskState> outputTaskStates = ImmutableList.builder();
                 for (int i=0; i < inputTaskCount; i++) {
-                    inputTaskStates.add(new TaskState());
+                    inputTaskStates.add(newTaskState(i, true));
                 }
                 for (int i=0; i < outputTaskCount; i++) {
-                    outputTaskStates.add(new TaskState());
+                    outputTaskStates.add(newTaskState(i, false));
                 }
                 this.inputTaskStates = inputTaskStates.build();
                 this.outputTaskStates = outputTaskStates.build();
             }
         }
 
+        private TaskState newTaskState(final int taskIndex, final boolean input)
+        {
+            if (!journal.isPresent()) {
+                return new TaskState();
+            }
+            return new TaskState() {
+                @Override
+                public void setTaskReport(TaskReport taskReport)
+                {
+                    super.setTaskReport(taskReport);
+                    if (input) {
+                        journal.get().inputTaskCommitted(taskIndex, taskReport);
+                    } else {
+                        journal.get().outputTaskCommitted(taskIndex, taskReport);
+                    }
+                }
+
+                @Override
+                public void setCheckpoint(TaskReport checkpoint)
+                {
+                    super.setCheckpoint(checkpoint);
+                    journal.get().outputTaskCheckpointed(taskIndex, checkpoint);
+                }
+            };
+        }
+
+        // writes the current state to the journal before tasks run
+        public void beginJournal(ExecSession exec)
+        {
+            if (journal.isPresent()) {
+                journal.get().begin(buildResumeState(exec));
+            }
+        }
+
+        public void closeJournal()
+        {
+            if (journal.isPresent()) {
+                journal.get().close();
+            }
+        }
+
         @Override
         public TaskState getInputTaskState(int inputTaskIndex)
         {
@@ -228,6 +272,19 @@ public class BulkLoader
             return builder.build();
         }
 
+        private List<Optional<TaskReport>> getOutputTaskCheckpoints()
+        {
+            ImmutableList.Builder<Optional<TaskReport>> builder = ImmutableList.builder();
+            for (TaskState outputTaskState : outputTaskStates) {
+                if (outputTaskState.isCommitted()) {
+                    builder.add(Optional.<TaskReport>absent());
+                } else {
+                    builder.add(outputTaskState.getCheckpoint());
+                }
+            }
+            return builder.build();
+        }
+
         public List<TaskReport> getAllInputTaskReports()
         {
             ImmutableList.Builder<TaskReport> builder = ImmutableList.builder();
@@ -320,7 +377,8 @@ public class BulkLoader
                     exec.getSessionExecConfig(),
                     inputTaskSource, outputTaskSource,
                     first(schemas), executorSchema,
-                    getInputTaskReports(), getOutputTaskReports());
+                    getInputTaskReports(), getOutputTaskReports(),
+                    getOutputTaskCheckpoints());
         }
 
         public PartialExecutionException buildPartialExecuteException(Throwable cause, ExecSession exec)
@@ -330,13 +388,20 @@ public class BulkLoader
     }
 
     public ExecutionResult run(ExecSession exec, final ConfigSource config)
+    {
+        return run(exec, config, Optional.<Path>absent());
+    }
+
+    // if resumeStateJournal is set, resume state is written to the file
+    // every time a task commits
+    public ExecutionResult run(ExecSession exec, final ConfigSource config, final Optional<Path> resumeStateJournal)
     {
         try {
             return Exec.doWith(exec, new ExecAction<ExecutionResult>() {
                 public ExecutionResult run()
                 {
                     try (SetCurrentThreadName dontCare = new SetCurrentThreadName("transaction")) {
-                        return doRun(config);
+                        return doRun(config, resumeStateJournal);
                     }
                 }
             });
@@ -346,6 +411,11 @@ public class BulkLoader
     }
 
     public ExecutionResult resume(final ConfigSource config, final ResumeState resume)
+    {
+        return resume(config, resume, Optional.<Path>absent());
+    }
+
+    public ExecutionResult resume(final ConfigSource config, final ResumeState resume, final Optional<Path> resumeStateJournal)
     {
         try {
             ExecSession exec = ExecSession.builder(injector).fromExecConfig(resume.getExecSessionConfigSource()).build();
@@ -353,7 +423,7 @@ public class BulkLoader
                 public ExecutionResult run()
                 {
                     try (SetCurrentThreadName dontCare = new SetCurrentThreadName("resume")) {
-                        return doResume(config, resume);
+                        return doResume(config, resume, resumeStateJournal);
                     }
                 }
             });
@@ -465,14 +535,23 @@ public class BulkLoader
                 task.getExecConfig().get(PluginType.class, "type", new PluginType("local")));
     }
 
-    private ExecutionResult doRun(ConfigSource config)
+    private static Optional<ResumeStateJournal> newJournal(Optional<Path> path)
+    {
+        if (!path.isPresent()) {
+            return Optional.absent();
+        }
+        return Optional.of(new ResumeStateJournal(path.get(),
+                    Exec.getModelManager(), Exec.getLogger(BulkLoader.class)));
+    }
+
+    private ExecutionResult doRun(ConfigSource config, Optional<Path> resumeStateJournal)
     {
         final BulkLoaderTask task = config.loadConfig(BulkLoaderTask.class);
 
         final ExecutorPlugin exec = newExecutorPlugin(task);
         final ProcessPluginSet plugins = new ProcessPluginSet(task);
 
-        final LoaderState state = new LoaderState(Exec.getLogger(BulkLoader.class), plugins);
+        final LoaderState state = new LoaderState(Exec.getLogger(BulkLoader.class), plugins, newJournal(resumeStateJournal));
         try {
             ConfigDiff inputConfigDiff = plugins.getInputPlugin().transaction(task.getInputConfig(), new InputPlugin.Control() {
                 public List<TaskReport> run(final TaskSource inputTask, final Schema inputSchema, final int inputTaskCount)
@@ -524,17 +603,19 @@ public class BulkLoader
                 throw ex;
             }
             throw state.buildPartialExecuteException(ex, Exec.session());
+        } finally {
+            state.closeJournal();
         }
     }
 
-    private ExecutionResult doResume(ConfigSource config, final ResumeState resume)
+    private ExecutionResult doResume(ConfigSource config, final ResumeState resume, Optional<Path> resumeStateJournal)
     {
         final BulkLoaderTask task = config.loadConfig(BulkLoaderTask.class);
 
         final ExecutorPlugin exec = newExecutorPlugin(task);
         final ProcessPluginSet plugins = new ProcessPluginSet(task);
 
-        final LoaderState state = new LoaderState(Exec.getLogger(BulkLoader.class), plugins);
+        final LoaderState state = new LoaderState(Exec.getLogger(BulkLoader.class), plugins, newJournal(resumeStateJournal));
         try {
             ConfigDiff inputConfigDiff = plugins.getInputPlugin().resume(resume.getInputTaskSource(), resume.getInputSchema(), resume.getInputTaskReports().size(), new InputPlugin.Control() {
                 public List<TaskReport> run(final TaskSource inputTask, final Schema inputSchema, final int inputTaskCount)
@@ -589,6 +670,8 @@ public class BulkLoader
                 throw ex;
             }
             throw state.buildPartialExecuteException(ex, Exec.session());
+        } finally {
+            state.closeJournal();
         }
     }
 
@@ -616,6 +699,11 @@ public class BulkLoader
                 task.start();
                 task.setTaskReport(report.get());
                 task.finish();
+            } else {
+                Optional<TaskReport> checkpoint = resume.getOutputTaskCheckpoints().get(i);
+                if (checkpoint.isPresent()) {
+                    state.getOutputTaskState(i).setCheckpoint(checkpoint.get());
+                }
             }
         }
     }
@@ -624,6 +712,7 @@ public class BulkLoader
     {
         ProcessTask procTask = state.buildProcessTask();
 
+        state.beginJournal(Exec.session());
         executor.execute(procTask, state);
 
         if (!state.isAllTasksCommitted()) {
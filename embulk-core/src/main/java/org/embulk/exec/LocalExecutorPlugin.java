@@ -2,128 +2,441 @@ package org.embulk.exec;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import com.google.inject.Inject;
+import com.google.common.base.Optional;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
+import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
 import org.embulk.spi.ExecutorPlugin;
+import org.embulk.spi.InputPlugin;
 import org.embulk.spi.ProcessTask;
 import org.embulk.spi.ProcessState;
 import org.embulk.spi.Schema;
+import org.embulk.spi.TaskCostEstimator;
+import org.embulk.spi.TaskState;
 import org.embulk.spi.util.Executors;
-import org.embulk.spi.util.Executors.ProcessStateCallback;
+import org.embulk.spi.util.Executors.CancellableCallback;
+import org.embulk.spi.util.Executors.CheckpointCallback;
+import org.embulk.spi.util.Executors.CpuBoundCallback;
+import org.embulk.spi.util.Executors.ProcessStatsCallback;
 
 public class LocalExecutorPlugin
         implements ExecutorPlugin
 {
+    private static final int DEFAULT_STAGE_QUEUE_PAGES = 16;
+    private static final int DEFAULT_PROGRESS_LOG_INTERVAL = 10;
+    private static final int DEFAULT_ADAPTIVE_CONCURRENCY_INTERVAL = 10;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 0;
+
+    private final LocalThreadExecutor threads;
     private final ExecutorService executor;
+    private final ExecutorService stageExecutor;
+    private final Optional<Semaphore> cpuPermits;
 
     @Inject
     public LocalExecutorPlugin(LocalThreadExecutor executor)
     {
+        this.threads = executor;
         this.executor = executor.getExecutorService();
+        this.stageExecutor = executor.getStageExecutorService();
+        this.cpuPermits = executor.getCpuPermits();
+    }
+
+    private static class ConcurrencyConfig
+    {
+        private final int min;
+        private final int max;
+        private final boolean adaptive;
+        private final long intervalMillis;
+
+        public ConcurrencyConfig(int min, int max, boolean adaptive, long intervalMillis)
+        {
+            this.min = min;
+            this.max = max;
+            this.adaptive = adaptive;
+            this.intervalMillis = intervalMillis;
+        }
     }
 
     @Override
     public void transaction(ConfigSource config, Schema outputSchema, final int inputTaskCount,
             ExecutorPlugin.Control control)
     {
+        // pipelined: true runs input, filters and output of a task on separated threads
+        final boolean pipelined = config.get(Boolean.class, "pipelined", false);
+        final int stageQueuePages = config.get(Integer.class, "stage_queue_pages", DEFAULT_STAGE_QUEUE_PAGES);
+
+        // scheduling: largest_first starts tasks in descending order of costs
+        // estimated by the input plugin to shorten total time of skewed tasks
+        String scheduling = config.get(String.class, "scheduling", "in_order");
+        final boolean largestFirst;
+        if (scheduling.equals("largest_first")) {
+            largestFirst = true;
+        } else if (scheduling.equals("in_order")) {
+            largestFirst = false;
+        } else {
+            throw new ConfigException(String.format("Unknown exec.scheduling '%s'. Supported values are in_order and largest_first", scheduling));
+        }
+
+        // fail_fast: true interrupts other tasks when a task fails
+        final boolean failFast = config.get(Boolean.class, "fail_fast", false);
+
+        // seconds. 0 shows progress only at the end
+        final long progressLogIntervalMillis = config.get(Integer.class, "progress_log_interval", DEFAULT_PROGRESS_LOG_INTERVAL) * 1000L;
+
+        // max_concurrency limits number of running tasks of this job below max_threads.
+        // adaptive_concurrency: true adjusts it between min_concurrency and
+        // max_concurrency depending on throughput and CPU usage.
+        final ConcurrencyConfig concurrency = new ConcurrencyConfig(
+                config.get(Integer.class, "min_concurrency", 1),
+                config.get(Integer.class, "max_concurrency", threads.getMaxThreads()),
+                config.get(Boolean.class, "adaptive_concurrency", false),
+                config.get(Integer.class, "adaptive_concurrency_interval", DEFAULT_ADAPTIVE_CONCURRENCY_INTERVAL) * 1000L);
+        if (concurrency.min <= 0 || concurrency.max < concurrency.min) {
+            throw new ConfigException("exec.min_concurrency must be greater than 0 and less than or equal to exec.max_concurrency");
+        }
+
+        final TaskRetry retry = TaskRetry.load(config, Exec.getLogger(LocalExecutorPlugin.class));
+
+        // seconds. saves checkpoints of a task at this interval if the plugins
+        // support it so that a retried or resumed task continues from the
+        // checkpoint. 0 disables checkpoints.
+        final long checkpointIntervalMillis = config.get(Integer.class, "checkpoint_interval", DEFAULT_CHECKPOINT_INTERVAL) * 1000L;
+
+        // output_task_count runs a different number of output tasks. pages are
+        // routed by round-robin, or by hash of partition_column if it's set.
+        final int outputTaskCount = config.get(Integer.class, "output_task_count", inputTaskCount);
+        final Optional<String> partitionColumn = Optional.fromNullable(config.get(String.class, "partition_column", null));
+        if (outputTaskCount <= 0) {
+            throw new ConfigException("exec.output_task_count must be greater than 0");
+        }
+        if (outputTaskCount != inputTaskCount || partitionColumn.isPresent()) {
+            warnIgnoredOptions(Exec.getLogger(LocalExecutorPlugin.class), pipelined, checkpointIntervalMillis,
+                    config.has("fail_fast") && !failFast, retry.isEnabled());
+            control.transaction(outputSchema, outputTaskCount, new Executor() {
+                public void execute(ProcessTask task, ProcessState state)
+                {
+                    state.initialize(inputTaskCount, outputTaskCount);
+                    List<Integer> order = taskOrder(task, inputTaskCount, largestFirst);
+                    Logger log = Exec.getLogger(LocalExecutorPlugin.class);
+                    try (ProgressReporter progress = new ProgressReporter(log, inputTaskCount, progressLogIntervalMillis)) {
+                        // a failed input task aborts all output tasks. other
+                        // input tasks are interrupted because their pages are discarded
+                        TaskRunner inputs = newTaskRunner(task, true, concurrency, log);
+                        try (AdaptiveConcurrency dontCare = startAdaptiveConcurrency(inputs, progress, concurrency, log)) {
+                            new RedistributedExecution(stageExecutor, stageQueuePages,
+                                    task, state, inputTaskCount, outputTaskCount, partitionColumn, order, progress, inputs,
+                                    cpuPermits).execute();
+                        }
+                    } finally {
+                        logBufferStats(log);
+                    }
+                }
+            });
+            return;
+        }
+
         control.transaction(outputSchema, inputTaskCount, new Executor() {
             public void execute(ProcessTask task, ProcessState state)
             {
-                localExecute(task, inputTaskCount, state);
+                localExecute(task, inputTaskCount, pipelined, stageQueuePages, largestFirst, failFast,
+                        concurrency, retry, checkpointIntervalMillis, progressLogIntervalMillis, state);
+            }
+        });
+    }
+
+    // redistributed execution runs outputs on stage threads and commits them
+    // after all input tasks, so these options have no effect
+    private static void warnIgnoredOptions(Logger log, boolean pipelined, long checkpointIntervalMillis,
+            boolean failFastDisabled, boolean retryEnabled)
+    {
+        String condition = "when exec.output_task_count or exec.partition_column is set";
+        if (pipelined) {
+            log.warn("exec.pipelined is ignored {}. Output tasks always run on separated threads.", condition);
+        }
+        if (checkpointIntervalMillis > 0) {
+            log.warn("exec.checkpoint_interval is ignored {}. Output tasks are committed only after all input tasks.", condition);
+        }
+        if (failFastDisabled) {
+            log.warn("exec.fail_fast: false is ignored {}. A failed input task aborts all tasks.", condition);
+        }
+        if (retryEnabled) {
+            log.warn("exec.retry_limit is ignored {}. Pages of a failed input task are already sent to the output tasks.", condition);
+        }
+    }
+
+    // returns task indexes in the order to start
+    static List<Integer> taskOrder(ProcessTask task, int taskCount, boolean largestFirst)
+    {
+        List<Integer> order = new ArrayList<>(taskCount);
+        for (int i=0; i < taskCount; i++) {
+            order.add(i);
+        }
+        if (!largestFirst) {
+            return order;
+        }
+
+        InputPlugin inputPlugin = Exec.newPlugin(InputPlugin.class, task.getInputPluginType());
+        if (!(inputPlugin instanceof TaskCostEstimator)) {
+            Exec.getLogger(LocalExecutorPlugin.class).warn("Input plugin doesn't estimate costs of tasks. Tasks run in order of index.");
+            return order;
+        }
+        final List<Long> costs = ((TaskCostEstimator) inputPlugin).estimateTaskCosts(task.getInputTaskSource(), taskCount);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return Long.compare(costs.get(b), costs.get(a));  // stable sort keeps order of same costs
             }
         });
+        return order;
     }
 
-    private void localExecute(ProcessTask task, int taskCount, ProcessState state)
+    private TaskRunner newTaskRunner(ProcessTask task, boolean failFast, ConcurrencyConfig concurrency, Logger log)
+    {
+        List<Semaphore> permits = threads.getPluginPermits(task.getInputPluginType(), task.getOutputPluginType());
+        int initial = concurrency.max;
+        if (concurrency.adaptive) {
+            // starts from number of CPU cores and increases while throughput increases
+            initial = Math.max(concurrency.min, Math.min(concurrency.max, Runtime.getRuntime().availableProcessors()));
+        }
+        return new TaskRunner(executor, failFast, initial, permits, log);
+    }
+
+    private static AdaptiveConcurrency startAdaptiveConcurrency(TaskRunner runner, ProgressReporter progress,
+            ConcurrencyConfig concurrency, Logger log)
+    {
+        if (!concurrency.adaptive) {
+            return null;
+        }
+        return new AdaptiveConcurrency(log, runner, progress,
+                concurrency.min, concurrency.max, concurrency.intervalMillis);
+    }
+
+    private void localExecute(ProcessTask task, int taskCount, boolean pipelined, int stageQueuePages,
+            boolean largestFirst, boolean failFast, ConcurrencyConfig concurrency, TaskRetry retry,
+            long checkpointIntervalMillis, long progressLogIntervalMillis, final ProcessState state)
     {
         Logger log = Exec.getLogger(LocalExecutorPlugin.class);
 
         state.initialize(taskCount, taskCount);
 
-        List<Future<Throwable>> futures = new ArrayList<>(taskCount);
+        ProgressReporter progress = new ProgressReporter(log, taskCount, progressLogIntervalMillis);
+        TaskRunner runner = newTaskRunner(task, failFast, concurrency, log);
+        AdaptiveConcurrency adaptive = null;
+        boolean completed = false;
         try {
-            for (int i=0; i < taskCount; i++) {
+            for (int i : taskOrder(task, taskCount, largestFirst)) {
                 if (state.getOutputTaskState(i).isCommitted()) {
                     log.warn("Skipped resumed task {}", i);
-                    futures.add(null);  // resumed
+                    progress.taskStarted();
+                    progress.taskFinished(true);
                 } else {
-                    futures.add(startProcessor(task, i, state));
+                    runner.submit(i, newProcessor(task, i, pipelined, stageQueuePages, state, progress, runner, retry,
+                                checkpointIntervalMillis));
                 }
             }
-            showProgress(log, state, taskCount);
 
-            for (int i=0; i < taskCount; i++) {
-                if (futures.get(i) == null) {
-                    continue;
+            adaptive = startAdaptiveConcurrency(runner, progress, concurrency, log);
+            runner.waitFor(new TaskRunner.Listener() {
+                public void finished(int taskIndex, Throwable error)
+                {
+                    state.getInputTaskState(taskIndex).setException(error);
                 }
+            });
+            completed = true;
+        } finally {
+            if (adaptive != null) {
+                adaptive.close();
+            }
+            if (!completed) {
+                runner.abort();
+            }
+            progress.close();
+            logBufferStats(log);
+        }
+    }
+
+    private Callable<Throwable> newProcessor(final ProcessTask task, final int taskIndex,
+            final boolean pipelined, final int stageQueuePages, final ProcessState state,
+            final ProgressReporter progress, final TaskRunner runner, final TaskRetry retry,
+            final long checkpointIntervalMillis)
+    {
+        final Callable<Void> process = new Callable<Void>() {
+            public Void call()
+            {
+                ProcessCallback callback = new ProcessCallback(state, taskIndex, progress, runner, cpuPermits, checkpointIntervalMillis);
                 try {
-                    state.getInputTaskState(i).setException(futures.get(i).get());
-                } catch (ExecutionException ex) {
-                    state.getInputTaskState(i).setException(ex.getCause());
-                    //Throwables.propagate(ex.getCause());
-                } catch (InterruptedException ex) {
-                    state.getInputTaskState(i).setException(new ExecutionInterruptedException(ex));
+                    Executors.process(Exec.session(), task, taskIndex,
+                            pipelined ? taskStageExecutor() : null, stageQueuePages, callback);
+                } catch (RuntimeException | Error ex) {
+                    callback.discardProgress();
+                    throw ex;
                 }
-                showProgress(log, state, taskCount);
+                return null;
             }
-        } finally {
-            for (Future<Throwable> future : futures) {
-                if (future != null && !future.isDone()) {
-                    future.cancel(true);
-                    // TODO join?
+        };
+        return new Callable<Throwable>() {
+            public Throwable call()
+            {
+                BufferAllocator allocator = Exec.getBufferAllocator();
+                if (allocator instanceof PooledBufferAllocator) {
+                    ((PooledBufferAllocator) allocator).startTask(pipelined);
+                }
+                progress.taskStarted();
+                try (SetCurrentThreadName dontCare = new SetCurrentThreadName(String.format("task-%04d", taskIndex))) {
+                    // Executors.process aborts the output of a failed attempt. the next
+                    // attempt resumes from the last checkpoint if it's saved.
+                    return retry.run(taskIndex, process, runner);
+                } finally {
+                    state.getInputTaskState(taskIndex).finish();
+                    state.getOutputTaskState(taskIndex).finish();
+                    progress.taskFinished(state.getOutputTaskState(taskIndex).isCommitted());
+                    if (allocator instanceof PooledBufferAllocator) {
+                        finishBufferStats((PooledBufferAllocator) allocator, state.getOutputTaskState(taskIndex), true);
+                    }
                 }
             }
+        };
+    }
+
+    // nests buffer stats of the task running on the current thread in its
+    // task report so that they're stored with the other results of the task
+    static void finishBufferStats(PooledBufferAllocator allocator, TaskState state, boolean checkLeaks)
+    {
+        PooledBufferAllocator.BufferStats stats = allocator.finishTask(checkLeaks);
+        Optional<TaskReport> report = state.getTaskReport();
+        if (allocator.isStatsEnabled() && report.isPresent()) {
+            report.get().setNested("buffer_stats", stats.toTaskReport());
         }
     }
 
-    private void showProgress(Logger log, ProcessState state, int taskCount)
+    static void logBufferStats(Logger log)
     {
-        int started = 0;
-        int finished = 0;
-        for (int i=0; i < taskCount; i++) {
-            if (state.getInputTaskState(i).isStarted()) { started++; }
-            if (state.getOutputTaskState(i).isFinished()) { finished++; }
+        BufferAllocator allocator = Exec.getBufferAllocator();
+        if (allocator instanceof PooledBufferAllocator && ((PooledBufferAllocator) allocator).isStatsEnabled()) {
+            log.info("Buffer stats: {}", ((PooledBufferAllocator) allocator).getStats());
         }
+    }
 
-        log.info(String.format("{done:%3d / %d, running: %d}", finished, taskCount, started - finished));
+    // stages of a pipelined task share the memory budget of the task
+    private ExecutorService taskStageExecutor()
+    {
+        BufferAllocator allocator = Exec.getBufferAllocator();
+        if (allocator instanceof PooledBufferAllocator) {
+            return ((PooledBufferAllocator) allocator).withTaskBudget(stageExecutor);
+        }
+        return stageExecutor;
     }
 
-    private Future<Throwable> startProcessor(final ProcessTask task, final int taskIndex, final ProcessState state)
+    static void acquirePermit(Semaphore permit)
     {
-        return executor.submit(new Callable<Throwable>() {
-            public Throwable call()
-            {
-                try (SetCurrentThreadName dontCare = new SetCurrentThreadName(String.format("task-%04d", taskIndex))) {
-                    Executors.process(Exec.session(), task, taskIndex, new ProcessStateCallback() {
-                        public void started()
-                        {
-                            state.getInputTaskState(taskIndex).start();
-                            state.getOutputTaskState(taskIndex).start();
-                        }
+        try {
+            permit.acquire();
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
 
-                        public void inputCommitted(TaskReport report)
-                        {
-                            state.getInputTaskState(taskIndex).setTaskReport(report);
-                        }
+    private static class ProcessCallback
+            implements ProcessStatsCallback, CancellableCallback, CpuBoundCallback, CheckpointCallback
+    {
+        private final ProcessState state;
+        private final int taskIndex;
+        private final ProgressReporter progress;
+        private final TaskRunner runner;
+        private final Optional<Semaphore> cpuPermits;
+        private final long checkpointIntervalNanos;
+        private long lastCheckpointNanos;
+        // progress since the last checkpoint. the output discards it if the attempt fails
+        private final AtomicLong uncheckpointedRecords = new AtomicLong();
+        private final AtomicLong uncheckpointedBytes = new AtomicLong();
 
-                        public void outputCommitted(TaskReport report)
-                        {
-                            state.getOutputTaskState(taskIndex).setTaskReport(report);
-                        }
-                    });
-                    return null;
-                } finally {
-                    state.getInputTaskState(taskIndex).finish();
-                    state.getOutputTaskState(taskIndex).finish();
-                }
+        public ProcessCallback(ProcessState state, int taskIndex, ProgressReporter progress, TaskRunner runner,
+                Optional<Semaphore> cpuPermits, long checkpointIntervalMillis)
+        {
+            this.state = state;
+            this.taskIndex = taskIndex;
+            this.progress = progress;
+            this.runner = runner;
+            this.cpuPermits = cpuPermits;
+            this.checkpointIntervalNanos = checkpointIntervalMillis * 1000000L;
+            this.lastCheckpointNanos = System.nanoTime();
+        }
+
+        public void started()
+        {
+            state.getInputTaskState(taskIndex).start();
+            state.getOutputTaskState(taskIndex).start();
+        }
+
+        public void outputPageAdded(int recordCount, int byteSize)
+        {
+            uncheckpointedRecords.addAndGet(recordCount);
+            uncheckpointedBytes.addAndGet(byteSize);
+            progress.pageAdded(recordCount, byteSize);
+        }
+
+        public void discardProgress()
+        {
+            progress.pagesDiscarded(uncheckpointedRecords.getAndSet(0), uncheckpointedBytes.getAndSet(0));
+        }
+
+        public boolean isCancelled()
+        {
+            return runner.isAborting();
+        }
+
+        public void acquireCpu()
+        {
+            if (cpuPermits.isPresent()) {
+                acquirePermit(cpuPermits.get());
             }
-        });
+        }
+
+        public void releaseCpu()
+        {
+            if (cpuPermits.isPresent()) {
+                cpuPermits.get().release();
+            }
+        }
+
+        // a checkpoint restored from resume state is used even if
+        // checkpoint_interval is 0 because the output already has the data
+        public Optional<TaskReport> getCheckpoint()
+        {
+            return state.getOutputTaskState(taskIndex).getCheckpoint();
+        }
+
+        public boolean isCheckpointRequired()
+        {
+            return checkpointIntervalNanos > 0 && System.nanoTime() - lastCheckpointNanos >= checkpointIntervalNanos;
+        }
+
+        public void checkpointed(TaskReport checkpoint)
+        {
+            state.getOutputTaskState(taskIndex).setCheckpoint(checkpoint);
+            lastCheckpointNanos = System.nanoTime();
+            uncheckpointedRecords.set(0);
+            uncheckpointedBytes.set(0);
+        }
+
+        public void inputCommitted(TaskReport report)
+        {
+            state.getInputTaskState(taskIndex).setTaskReport(report);
+        }
+
+        public void outputCommitted(TaskReport report)
+        {
+            state.getOutputTaskState(taskIndex).setTaskReport(report);
+        }
     }
 }
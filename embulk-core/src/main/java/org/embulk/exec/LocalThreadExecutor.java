@@ -1,28 +1,151 @@
 package org.embulk.exec;
 
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.plugin.PluginType;
 
 /*
  * Injected in SINGLETON scope at ExecModule
  */
 public class LocalThreadExecutor
 {
+    private static final String INPUT_MAX_CONCURRENCY_PREFIX = "max_concurrency.in.";
+    private static final String OUTPUT_MAX_CONCURRENCY_PREFIX = "max_concurrency.out.";
+
+    private static final int DEFAULT_MAX_IO_THREADS = 1024;
+    private static final long ELASTIC_KEEP_ALIVE_SECONDS = 60;
+
+    private final Logger logger;
+    private final int maxThreads;
+    private final Optional<Semaphore> cpuPermits;
     private final ExecutorService executor;
+    private final ExecutorService stageExecutor;
+    private final Map<String, Semaphore> inputPermits = new HashMap<>();
+    private final Map<String, Semaphore> outputPermits = new HashMap<>();
 
     @Inject
-    public LocalThreadExecutor(@ForSystemConfig ConfigSource systemConfig)
+    public LocalThreadExecutor(@ForSystemConfig ConfigSource systemConfig, org.slf4j.ILoggerFactory factory)
     {
+        this.logger = factory.getLogger(LocalThreadExecutor.class.getName());
         int defaultMaxThreads = Runtime.getRuntime().availableProcessors() * 2;
-        int maxThreads = systemConfig.get(Integer.class, "max_threads", defaultMaxThreads);
-        this.executor = Executors.newFixedThreadPool(maxThreads,
+        int cpuThreads = systemConfig.get(Integer.class, "max_threads", defaultMaxThreads);
+        if (cpuThreads <= 0) {
+            throw new ConfigException("System config max_threads must be greater than 0");
+        }
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("embulk-executor-%d")
+                .setDaemon(true)
+                .build();
+
+        // thread_pool: fixed runs at most max_threads tasks. elastic and virtual
+        // run at most max_io_threads tasks so that tasks waiting for I/O don't
+        // occupy all threads, and limit tasks running input and filter plugins
+        // to max_threads using permits.
+        String threadPool = systemConfig.get(String.class, "thread_pool", "fixed");
+        if (threadPool.equals("fixed")) {
+            this.maxThreads = cpuThreads;
+            this.cpuPermits = Optional.absent();
+            this.executor = Executors.newFixedThreadPool(maxThreads, threadFactory);
+        } else if (threadPool.equals("elastic") || threadPool.equals("virtual")) {
+            this.maxThreads = systemConfig.get(Integer.class, "max_io_threads", DEFAULT_MAX_IO_THREADS);
+            if (maxThreads <= 0) {
+                throw new ConfigException("System config max_io_threads must be greater than 0");
+            }
+            this.cpuPermits = Optional.of(new Semaphore(cpuThreads));
+            Optional<ExecutorService> virtual = Optional.absent();
+            if (threadPool.equals("virtual")) {
+                virtual = newVirtualThreadExecutor();
+                if (!virtual.isPresent()) {
+                    logger.warn("Virtual threads are not supported by this JVM. Using thread_pool: elastic instead.");
+                }
+            }
+            if (virtual.isPresent()) {
+                this.executor = virtual.get();
+            } else {
+                this.executor = newElasticThreadPool(maxThreads, threadFactory);
+            }
+        } else {
+            throw new ConfigException(String.format("Unknown thread_pool '%s'. Supported values are fixed, elastic and virtual", threadPool));
+        }
+
+        // threads of pipelined stages. this is not bounded by max_threads because
+        // a stage waits for the next stage which must not wait for an idle thread.
+        this.stageExecutor = Executors.newCachedThreadPool(
                 new ThreadFactoryBuilder()
-                        .setNameFormat("embulk-executor-%d")
+                        .setNameFormat("embulk-stage-%d")
                         .setDaemon(true)
                         .build());
+
+        // max_concurrency.in.<type> and max_concurrency.out.<type> limit number
+        // of tasks of a plugin running at the same time across all jobs so that
+        // a rate-limited source or destination is not overloaded
+        for (String name : systemConfig.getAttributeNames()) {
+            if (name.startsWith(INPUT_MAX_CONCURRENCY_PREFIX)) {
+                inputPermits.put(name.substring(INPUT_MAX_CONCURRENCY_PREFIX.length()),
+                        newPermits(systemConfig, name));
+            } else if (name.startsWith(OUTPUT_MAX_CONCURRENCY_PREFIX)) {
+                outputPermits.put(name.substring(OUTPUT_MAX_CONCURRENCY_PREFIX.length()),
+                        newPermits(systemConfig, name));
+            }
+        }
+    }
+
+    // threads are created up to maxThreads and removed when they are idle
+    private static ExecutorService newElasticThreadPool(int maxThreads, ThreadFactory threadFactory)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                ELASTIC_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor is available since Java 21
+    private static Optional<ExecutorService> newVirtualThreadExecutor()
+    {
+        try {
+            return Optional.of((ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            return Optional.absent();
+        }
+    }
+
+    private static Semaphore newPermits(ConfigSource systemConfig, String name)
+    {
+        int permits = systemConfig.get(Integer.class, name);
+        if (permits <= 0) {
+            throw new ConfigException(String.format("System config %s must be greater than 0", name));
+        }
+        return new Semaphore(permits);
+    }
+
+    // max number of tasks running at the same time
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    // absent if thread_pool is fixed
+    public Optional<Semaphore> getCpuPermits()
+    {
+        return cpuPermits;
     }
 
     public ExecutorService getExecutorService()
@@ -30,5 +153,25 @@ public class LocalThreadExecutor
         return executor;
     }
 
+    public ExecutorService getStageExecutorService()
+    {
+        return stageExecutor;
+    }
+
+    // a task acquires all of the returned permits before it starts
+    public List<Semaphore> getPluginPermits(PluginType inputType, PluginType outputType)
+    {
+        ImmutableList.Builder<Semaphore> builder = ImmutableList.builder();
+        Semaphore input = inputPermits.get(inputType.getName());
+        if (input != null) {
+            builder.add(input);
+        }
+        Semaphore output = outputPermits.get(outputType.getName());
+        if (output != null) {
+            builder.add(output);
+        }
+        return builder.build();
+    }
+
     // TODO shutdown
 }
@@ -0,0 +1,10 @@
+package org.embulk.exec;
+
+public class MemoryBudgetExceededException
+        extends RuntimeException
+{
+    public MemoryBudgetExceededException(String message)
+    {
+        super(message);
+    }
+}
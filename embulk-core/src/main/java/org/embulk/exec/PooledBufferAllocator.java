@@ -1,26 +1,86 @@
 package org.embulk.exec;
 
+import java.util.List;
+import java.util.Map;
+import java.util.IdentityHashMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.ByteBuf;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Exec;
 import com.google.inject.Inject;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
 import org.embulk.spi.unit.ByteSize;
 
 public class PooledBufferAllocator
         implements BufferAllocator
 {
     private static final int DEFAULT_PAGE_SIZE = 32*1024;
+    private static final int DEFAULT_MEMORY_BUDGET_WAIT = 60;
 
+    private final Logger logger;
     private final PooledByteBufAllocator nettyBuffer;
     private final int pageSize;
+    private final int trackingSampleRate;  // 0 means disabled
+
+    // 0 means unlimited
+    private final long memoryBudget;
+    private final long taskMemoryBudget;
+    private final long memoryBudgetWaitNanos;
+
+    // false if no budget, tracking nor stats is configured. allocate and
+    // release don't touch the counters then.
+    private final boolean accounting;
+
+    // counters are updated without locks. budgetLock is taken only to wait
+    // for other threads to release memory.
+    private final Object budgetLock = new Object();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong requestedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    // executors call startTask and finishTask on the thread of a task. memory
+    // is accounted to the task that allocated it until it's released. stage
+    // threads of the task share the budget if they run on an executor
+    // returned by withTaskBudget. memory allocated outside of tasks is
+    // accounted only to memory_budget.
+    private final ThreadLocal<TaskBudget> taskBudgets = new ThreadLocal<>();
 
     @Inject
     public PooledBufferAllocator(@ForSystemConfig ConfigSource systemConfig, org.slf4j.ILoggerFactory factory)
     {
-        this.nettyBuffer = new PooledByteBufAllocator(false);
+        // direct_buffer: true keeps buffers out of the Java heap so that GC doesn't scan them
+        boolean directBuffer = systemConfig.get(Boolean.class, "direct_buffer", false);
+        this.logger = factory.getLogger(PooledBufferAllocator.class.getName());
+        this.nettyBuffer = new PooledByteBufAllocator(directBuffer);
         this.pageSize = systemConfig.get(ByteSize.class, "page_size", new ByteSize(DEFAULT_PAGE_SIZE)).getBytesInt();
+
+        // allocation blocks up to memory_budget_wait seconds when the budget is exhausted.
+        // 0 fails immediately.
+        this.memoryBudget = systemConfig.get(ByteSize.class, "memory_budget", new ByteSize(0)).getBytes();
+        this.taskMemoryBudget = systemConfig.get(ByteSize.class, "task_memory_budget", new ByteSize(0)).getBytes();
+        this.memoryBudgetWaitNanos = TimeUnit.SECONDS.toNanos(
+                systemConfig.get(Integer.class, "memory_budget_wait", DEFAULT_MEMORY_BUDGET_WAIT));
+
+        // buffer_tracking_sample_rate: N records stack trace of every N-th allocation
+        // to report where unreleased buffers are allocated
+        this.trackingSampleRate = systemConfig.get(Integer.class, "buffer_tracking_sample_rate", 0);
+
+        // buffer_stats: true counts allocations even if no budget is set
+        this.accounting = memoryBudget > 0 || taskMemoryBudget > 0 || trackingSampleRate > 0 ||
+            systemConfig.get(Boolean.class, "buffer_stats", false);
     }
 
     public Buffer allocate()
@@ -32,21 +92,433 @@ public class PooledBufferAllocator
     {
         int size = this.pageSize;
         while (size < minimumCapacity) {
+            if (size > Integer.MAX_VALUE / 2) {
+                size = minimumCapacity;
+                break;
+            }
             size *= 2;
         }
-        return new NettyByteBufBuffer(nettyBuffer.buffer(size));
+
+        if (!accounting) {
+            return new NettyByteBufBuffer(nettyBuffer.buffer(size), 0, null);
+        }
+
+        TaskBudget task = taskBudgets.get();
+        boolean sampled = reserve(size, minimumCapacity, task);
+        ByteBuf buf;
+        try {
+            buf = nettyBuffer.buffer(size);
+        } catch (RuntimeException | Error ex) {
+            unreserve(size, task, null);
+            throw ex;
+        }
+        NettyByteBufBuffer buffer = new NettyByteBufBuffer(buf, size, task);
+        if (sampled && task != null) {
+            synchronized (task.tracked) {
+                task.tracked.put(buffer, new BufferAllocatedAt());
+            }
+        }
+        return buffer;
+    }
+
+    public void startTask()
+    {
+        startTask(false);
+    }
+
+    // shared: true if other threads release buffers of the task. an
+    // allocation over task_memory_budget waits for them instead of failing
+    // immediately.
+    public void startTask(boolean shared)
+    {
+        TaskBudget task = new TaskBudget();
+        task.shared = shared;
+        taskBudgets.set(task);
+    }
+
+    // Returns stats of the task running on the current thread and reports
+    // buffers that the task didn't release. Stats are 0 if isStatsEnabled()
+    // is false.
+    public BufferStats finishTask()
+    {
+        return finishTask(true);
+    }
+
+    // checkLeaks: false if buffers of the task may be released by other
+    // threads after the task finishes
+    public BufferStats finishTask(boolean checkLeaks)
+    {
+        TaskBudget task = taskBudgets.get();
+        taskBudgets.remove();
+        if (task == null) {
+            return new BufferStats(0, 0, 0, 0, 0, 0);
+        }
+        BufferStats stats = task.toStats();
+        Map<NettyByteBufBuffer, BufferAllocatedAt> leaks;
+        synchronized (task.tracked) {
+            leaks = new IdentityHashMap<>(task.tracked);
+        }
+
+        long unreleased = stats.getAllocations() - stats.getReleases();
+        if (checkLeaks && unreleased > 0) {
+            if (trackingSampleRate > 0) {
+                logger.warn("{} buffers ({} bytes) are not released by the task. {} of them are tracked.",
+                        unreleased, stats.getLiveBytes(), leaks.size());
+                for (Map.Entry<NettyByteBufBuffer, BufferAllocatedAt> leak : leaks.entrySet()) {
+                    logger.warn(String.format("Unreleased buffer of %d bytes is allocated at:", leak.getKey().reservedSize), leak.getValue());
+                }
+            } else {
+                logger.warn("{} buffers ({} bytes) are not released by the task. Set buffer_tracking_sample_rate system config to track them.",
+                        unreleased, stats.getLiveBytes());
+            }
+        }
+        return stats;
+    }
+
+    // Returns an executor that runs submitted tasks with the budget of the
+    // task that submits them. Executors use it for stage threads of
+    // pipelined tasks so that pages allocated by the stages are accounted
+    // to the task.
+    public ExecutorService withTaskBudget(ExecutorService executor)
+    {
+        if (!accounting) {
+            return executor;
+        }
+        return new TaskBudgetExecutorService(executor);
+    }
+
+    public boolean isStatsEnabled()
+    {
+        return accounting;
+    }
+
+    public BufferStats getStats()
+    {
+        return new BufferStats(allocations.get(), releases.get(), liveBytes.get(), peakBytes.get(),
+                requestedBytes.get(), allocatedBytes.get());
+    }
+
+    public long getLiveBytes()
+    {
+        return liveBytes.get();
+    }
+
+    public long getPeakBytes()
+    {
+        return peakBytes.get();
+    }
+
+    public long getWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    // returns true if the allocation is sampled for tracking
+    private boolean reserve(int size, int requestedSize, TaskBudget task)
+    {
+        if (!tryReserve(size, task)) {
+            waitForBudget(size, task);
+        }
+        updatePeak(peakBytes, liveBytes.get());
+        long count = allocations.incrementAndGet();
+        requestedBytes.addAndGet(requestedSize);
+        allocatedBytes.addAndGet(size);
+
+        if (task != null) {
+            updatePeak(task.peakBytes, task.liveBytes.get());
+            task.allocations.incrementAndGet();
+            task.requestedBytes.addAndGet(requestedSize);
+            task.allocatedBytes.addAndGet(size);
+        }
+
+        return trackingSampleRate > 0 && count % trackingSampleRate == 0;
+    }
+
+    private boolean tryReserve(long size, TaskBudget task)
+    {
+        if (task != null && !tryAdd(task.liveBytes, size, taskMemoryBudget)) {
+            return false;
+        }
+        if (!tryAdd(liveBytes, size, memoryBudget)) {
+            if (task != null) {
+                task.liveBytes.addAndGet(-size);
+                notifyWaiters();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // adds size to the counter unless it exceeds the limit. 0 means unlimited
+    private static boolean tryAdd(AtomicLong counter, long size, long limit)
+    {
+        while (true) {
+            long current = counter.get();
+            if (limit > 0 && current + size > limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    private static void updatePeak(AtomicLong peak, long value)
+    {
+        while (true) {
+            long current = peak.get();
+            if (value <= current || peak.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private void waitForBudget(int size, TaskBudget task)
+    {
+        if ((memoryBudget > 0 && size > memoryBudget) || (taskMemoryBudget > 0 && size > taskMemoryBudget)) {
+            throw new MemoryBudgetExceededException(String.format(
+                        "Buffer of %d bytes is larger than the memory budget (memory_budget: %d, task_memory_budget: %d)",
+                        size, memoryBudget, taskMemoryBudget));
+        }
+
+        long start = System.nanoTime();
+        synchronized (budgetLock) {
+            // waiters is incremented before retrying so that unreserve
+            // doesn't skip notifyAll after the retry fails
+            waiters.incrementAndGet();
+            try {
+                while (!tryReserve(size, task)) {
+                    if (isOverTaskBudget(size, task) && !task.shared) {
+                        // only the thread of this task can release its memory
+                        throw new MemoryBudgetExceededException(String.format(
+                                    "Task memory budget is exhausted: %d bytes in use by this task, %d bytes requested (task_memory_budget: %d)",
+                                    task.liveBytes.get(), size, taskMemoryBudget));
+                    }
+                    long remaining = start + memoryBudgetWaitNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new MemoryBudgetExceededException(String.format(
+                                    "Memory budget is exhausted: %d bytes in use, %d bytes by this task, %d bytes requested (memory_budget: %d, task_memory_budget: %d)",
+                                    liveBytes.get(), task != null ? task.liveBytes.get() : 0, size, memoryBudget, taskMemoryBudget));
+                    }
+                    budgetLock.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionInterruptedException(ex);
+            } finally {
+                waiters.decrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private boolean isOverTaskBudget(long size, TaskBudget task)
+    {
+        return task != null && taskMemoryBudget > 0 && task.liveBytes.get() + size > taskMemoryBudget;
+    }
+
+    private void unreserve(int size, TaskBudget task, NettyByteBufBuffer released)
+    {
+        liveBytes.addAndGet(-size);
+        if (released != null) {
+            releases.incrementAndGet();
+        } else {
+            // allocation failed
+            allocations.decrementAndGet();
+        }
+        if (task != null) {
+            task.liveBytes.addAndGet(-size);
+            if (released != null) {
+                task.releases.incrementAndGet();
+                if (trackingSampleRate > 0) {
+                    synchronized (task.tracked) {
+                        task.tracked.remove(released);
+                    }
+                }
+            } else {
+                task.allocations.decrementAndGet();
+            }
+        }
+        notifyWaiters();
+    }
+
+    private void notifyWaiters()
+    {
+        if (waiters.get() > 0) {
+            synchronized (budgetLock) {
+                budgetLock.notifyAll();
+            }
+        }
+    }
+
+    private static class TaskBudget
+    {
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicLong peakBytes = new AtomicLong();
+        private final AtomicLong allocations = new AtomicLong();
+        private final AtomicLong releases = new AtomicLong();
+        private final AtomicLong requestedBytes = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final Map<NettyByteBufBuffer, BufferAllocatedAt> tracked = new IdentityHashMap<>();  // guarded by itself
+
+        private volatile boolean shared;
+
+        public BufferStats toStats()
+        {
+            return new BufferStats(allocations.get(), releases.get(), liveBytes.get(), peakBytes.get(),
+                    requestedBytes.get(), allocatedBytes.get());
+        }
+    }
+
+    private class TaskBudgetExecutorService
+            extends AbstractExecutorService
+    {
+        private final ExecutorService executor;
+
+        public TaskBudgetExecutorService(ExecutorService executor)
+        {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(final Runnable command)
+        {
+            final TaskBudget task = taskBudgets.get();
+            if (task == null) {
+                executor.execute(command);
+                return;
+            }
+            task.shared = true;
+            executor.execute(new Runnable() {
+                public void run()
+                {
+                    taskBudgets.set(task);
+                    try {
+                        command.run();
+                    } finally {
+                        taskBudgets.remove();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown()
+        {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+
+    public static class BufferStats
+    {
+        private final long allocations;
+        private final long releases;
+        private final long liveBytes;
+        private final long peakBytes;
+        private final long requestedBytes;
+        private final long allocatedBytes;
+
+        BufferStats(long allocations, long releases, long liveBytes, long peakBytes,
+                long requestedBytes, long allocatedBytes)
+        {
+            this.allocations = allocations;
+            this.releases = releases;
+            this.liveBytes = liveBytes;
+            this.peakBytes = peakBytes;
+            this.requestedBytes = requestedBytes;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public long getAllocations()
+        {
+            return allocations;
+        }
+
+        public long getReleases()
+        {
+            return releases;
+        }
+
+        public long getLiveBytes()
+        {
+            return liveBytes;
+        }
+
+        public long getPeakBytes()
+        {
+            return peakBytes;
+        }
+
+        // sum of minimum capacity of allocate calls
+        public long getRequestedBytes()
+        {
+            return requestedBytes;
+        }
+
+        // sum of capacity of allocated buffers. the difference from
+        // requested bytes is wasted by rounding up to the page size
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
+
+        public TaskReport toTaskReport()
+        {
+            return Exec.newTaskReport()
+                .set("allocations", allocations)
+                .set("releases", releases)
+                .set("live_bytes", liveBytes)
+                .set("peak_bytes", peakBytes)
+                .set("requested_bytes", requestedBytes)
+                .set("allocated_bytes", allocatedBytes);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("{allocations: %d, releases: %d, live: %d bytes, peak: %d bytes, requested: %d bytes, allocated: %d bytes}",
+                    allocations, releases, liveBytes, peakBytes, requestedBytes, allocatedBytes);
+        }
     }
 
-    private static class NettyByteBufBuffer
+    private class NettyByteBufBuffer
             extends Buffer
     {
         private ByteBuf buf;
+        private final int reservedSize;
+        private final TaskBudget task;
         private BufferReleasedBeforeAt doubleFreeCheck;
 
-        public NettyByteBufBuffer(ByteBuf buf)
+        public NettyByteBufBuffer(ByteBuf buf, int reservedSize, TaskBudget task)
         {
-            super(buf.array(), buf.arrayOffset(), buf.capacity());
+            super(buf.nioBuffer(0, buf.capacity()));
             this.buf = buf;
+            this.reservedSize = reservedSize;
+            this.task = task;
         }
 
         public void release()
@@ -58,6 +530,9 @@ public class PooledBufferAllocator
                 buf.release();
                 buf = null;
                 doubleFreeCheck = new BufferReleasedBeforeAt();
+                if (accounting) {
+                    unreserve(reservedSize, task, this);
+                }
             }
         }
     }
@@ -66,6 +541,10 @@ public class PooledBufferAllocator
             extends Throwable
     { }
 
+    static class BufferAllocatedAt
+            extends Throwable
+    { }
+
     static class BufferDoubleReleasedException
             extends IllegalStateException
     {
@@ -0,0 +1,116 @@
+package org.embulk.exec;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Counts tasks, records and bytes updated by worker threads and logs
+// them periodically on a reporter thread. Counters are O(1) so that jobs
+// with a huge number of tasks don't scan task states to show progress.
+class ProgressReporter
+        implements AutoCloseable
+{
+    private final Logger log;
+    private final int taskCount;
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ScheduledExecutorService reporter;
+
+    // guarded by this
+    private long lastReportNanos;
+    private long lastRecords;
+    private long lastBytes;
+
+    public ProgressReporter(Logger log, int taskCount, long intervalMillis)
+    {
+        this.log = log;
+        this.taskCount = taskCount;
+        this.lastReportNanos = System.nanoTime();
+        if (intervalMillis > 0) {
+            this.reporter = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("embulk-progress-%d")
+                            .setDaemon(true)
+                            .build());
+            reporter.scheduleAtFixedRate(new Runnable() {
+                public void run()
+                {
+                    report();
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.reporter = null;
+        }
+    }
+
+    public void taskStarted()
+    {
+        started.incrementAndGet();
+    }
+
+    public void taskFinished(boolean success)
+    {
+        finished.incrementAndGet();
+        if (!success) {
+            failed.incrementAndGet();
+        }
+    }
+
+    public void pageAdded(int recordCount, int byteSize)
+    {
+        records.addAndGet(recordCount);
+        bytes.addAndGet(byteSize);
+    }
+
+    // pages of a failed attempt are not loaded. they're subtracted so that
+    // a retried attempt doesn't count the same records twice.
+    public void pagesDiscarded(long recordCount, long byteSize)
+    {
+        records.addAndGet(-recordCount);
+        bytes.addAndGet(-byteSize);
+    }
+
+    public long getRecords()
+    {
+        return records.get();
+    }
+
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public synchronized void report()
+    {
+        long now = System.nanoTime();
+        long currentRecords = records.get();
+        long currentBytes = bytes.get();
+        double seconds = Math.max(now - lastReportNanos, 1) / 1e9;
+        int done = finished.get();
+
+        log.info(String.format("{done:%3d / %d, running: %d, failed: %d, records: %d (%.0f/s), bytes: %d (%.0f/s)}",
+                    done, taskCount, started.get() - done, failed.get(),
+                    currentRecords, Math.max(currentRecords - lastRecords, 0) / seconds,
+                    currentBytes, Math.max(currentBytes - lastBytes, 0) / seconds));
+
+        lastReportNanos = now;
+        lastRecords = currentRecords;
+        lastBytes = currentBytes;
+    }
+
+    @Override
+    public void close()
+    {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        report();
+    }
+}
@@ -0,0 +1,475 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import com.google.common.base.Optional;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.ProcessState;
+import org.embulk.spi.ProcessTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.util.AsyncPageOutput;
+import org.embulk.spi.util.Filters;
+import org.embulk.plugin.compat.PluginWrappers;
+
+// Runs input tasks and a different number of output tasks. Pages of input
+// tasks are routed to output tasks through in-process queues by round-robin
+// or by hash of a column. Output tasks are committed after all input tasks
+// are committed.
+class RedistributedExecution
+{
+    private final ExecutorService stageExecutor;
+    private final int stageQueuePages;
+    private final ProcessTask task;
+    private final ProcessState state;
+    private final int inputTaskCount;
+    private final int outputTaskCount;
+    private final Optional<Column> partitionColumn;
+    private final List<Integer> inputTaskOrder;
+    private final ProgressReporter progress;
+    private final TaskRunner inputs;
+    private final Optional<Semaphore> cpuPermits;
+
+    RedistributedExecution(ExecutorService stageExecutor, int stageQueuePages,
+            ProcessTask task, ProcessState state, int inputTaskCount, int outputTaskCount,
+            Optional<String> partitionColumnName, List<Integer> inputTaskOrder, ProgressReporter progress,
+            TaskRunner inputs, Optional<Semaphore> cpuPermits)
+    {
+        this.stageExecutor = stageExecutor;
+        this.stageQueuePages = stageQueuePages;
+        this.task = task;
+        this.state = state;
+        this.inputTaskCount = inputTaskCount;
+        this.outputTaskCount = outputTaskCount;
+        this.inputTaskOrder = inputTaskOrder;
+        this.progress = progress;
+        this.inputs = inputs;
+        this.cpuPermits = cpuPermits;
+        if (partitionColumnName.isPresent()) {
+            this.partitionColumn = Optional.of(task.getExecutorSchema().lookupColumn(partitionColumnName.get()));
+        } else {
+            this.partitionColumn = Optional.absent();
+        }
+    }
+
+    public void execute()
+    {
+        Logger log = Exec.getLogger(LocalExecutorPlugin.class);
+        final ExecSession exec = Exec.session();
+
+        int committed = 0;
+        for (int i=0; i < outputTaskCount; i++) {
+            if (state.getOutputTaskState(i).isCommitted()) {
+                committed++;
+            }
+        }
+        if (committed == outputTaskCount) {
+            log.warn("Skipped resumed tasks");
+            return;
+        }
+        if (committed > 0) {
+            // data of an input task is distributed to all output tasks
+            throw new ConfigException("Resuming partially committed output tasks is not supported with exec.output_task_count");
+        }
+
+        OutputPlugin outputPlugin = exec.newPlugin(OutputPlugin.class, task.getOutputPluginType());
+        List<TransactionalPageOutput> trans = new ArrayList<>(outputTaskCount);
+        List<AsyncPageOutput> outputs = new ArrayList<>(outputTaskCount);
+        boolean inputsCompleted = false;
+        try {
+            for (int i=0; i < outputTaskCount; i++) {
+                TransactionalPageOutput tran = PluginWrappers.transactionalPageOutput(
+                        outputPlugin.open(task.getOutputTaskSource(), task.getExecutorSchema(), i));
+                trans.add(tran);
+                state.getOutputTaskState(i).start();
+                outputs.add(new AsyncPageOutput(exec, stageExecutor, stageQueuePages,
+                            String.format("output-%04d", i), tran));
+            }
+
+            List<PageOutput> routes = new ArrayList<>(outputTaskCount);
+            for (AsyncPageOutput output : outputs) {
+                routes.add(new SharedPageOutput(output, progress, inputs));
+            }
+
+            for (int i : inputTaskOrder) {
+                inputs.submit(i, newInput(exec, i, routes));
+            }
+
+            final boolean[] inputFailed = new boolean[1];
+            inputs.waitFor(new TaskRunner.Listener() {
+                public void finished(int taskIndex, Throwable error)
+                {
+                    if (error != null) {
+                        state.getInputTaskState(taskIndex).setException(error);
+                        inputFailed[0] = true;
+                    }
+                }
+            });
+            inputsCompleted = true;
+            if (inputFailed[0]) {
+                return;
+            }
+
+            List<Future<Throwable>> commits = new ArrayList<>(outputTaskCount);
+            for (int i=0; i < outputTaskCount; i++) {
+                commits.add(startCommit(exec, i, outputs.get(i), trans.get(i)));
+            }
+            for (int i=0; i < outputTaskCount; i++) {
+                Throwable error = waitFor(commits.get(i));
+                if (error != null) {
+                    state.getOutputTaskState(i).setException(error);
+                } else {
+                    trans.set(i, null);
+                }
+            }
+
+        } finally {
+            if (!inputsCompleted) {
+                inputs.abort();
+            }
+            for (AsyncPageOutput output : outputs) {
+                output.stop();
+            }
+            for (int i=0; i < trans.size(); i++) {
+                try {
+                    if (trans.get(i) != null) {
+                        trans.get(i).abort();
+                    }
+                } finally {
+                    if (i < outputs.size()) {
+                        outputs.get(i).close();  // closes tran
+                    } else {
+                        trans.get(i).close();
+                    }
+                    state.getOutputTaskState(i).finish();
+                }
+            }
+        }
+    }
+
+    private static Throwable waitFor(Future<Throwable> future)
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        } catch (InterruptedException ex) {
+            return new ExecutionInterruptedException(ex);
+        }
+    }
+
+    private Callable<Throwable> newInput(final ExecSession exec, final int taskIndex, final List<PageOutput> routes)
+    {
+        return new Callable<Throwable>() {
+            public Throwable call() throws Exception
+            {
+                progress.taskStarted();
+                try (SetCurrentThreadName dontCare = new SetCurrentThreadName(String.format("task-%04d", taskIndex))) {
+                    return Exec.doWith(exec, new ExecAction<Throwable>() {
+                        public Throwable run()
+                        {
+                            // pages of the input are released by the output
+                            // stages. the outputs are shared by all inputs and
+                            // their own buffers are accounted only to memory_budget
+                            BufferAllocator allocator = exec.getBufferAllocator();
+                            if (allocator instanceof PooledBufferAllocator) {
+                                ((PooledBufferAllocator) allocator).startTask(true);
+                            }
+                            // outputs run on stage threads. the permit is held
+                            // while the input waits for the outputs
+                            if (cpuPermits.isPresent()) {
+                                LocalExecutorPlugin.acquirePermit(cpuPermits.get());
+                            }
+                            try {
+                                runInput(exec, taskIndex, routes);
+                            } finally {
+                                if (cpuPermits.isPresent()) {
+                                    cpuPermits.get().release();
+                                }
+                                if (allocator instanceof PooledBufferAllocator) {
+                                    // pages of the input may be still in the queues of the outputs
+                                    LocalExecutorPlugin.finishBufferStats((PooledBufferAllocator) allocator,
+                                            state.getInputTaskState(taskIndex), false);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                } catch (ExecutionException ex) {
+                    return ex.getCause();  // thrown through Exec.doWith
+                } finally {
+                    state.getInputTaskState(taskIndex).finish();
+                    progress.taskFinished(state.getInputTaskState(taskIndex).isCommitted());
+                }
+            }
+        };
+    }
+
+    private void runInput(ExecSession exec, int taskIndex, List<PageOutput> routes)
+    {
+        InputPlugin inputPlugin = exec.newPlugin(InputPlugin.class, task.getInputPluginType());
+        List<FilterPlugin> filterPlugins = Filters.newFilterPlugins(exec, task.getFilterPluginTypes());
+
+        PageOutput router;
+        if (partitionColumn.isPresent()) {
+            router = new HashPartitioningPageOutput(exec, task.getExecutorSchema(), partitionColumn.get(), routes);
+        } else {
+            router = new RoundRobinPageOutput(routes, taskIndex);
+        }
+
+        PageOutput closeThis = router;
+        state.getInputTaskState(taskIndex).start();
+        try {
+            PageOutput filtered = closeThis = Filters.open(filterPlugins, task.getFilterTaskSources(), task.getFilterSchemas(), router);
+            TaskReport report = inputPlugin.run(task.getInputTaskSource(), task.getInputSchema(), taskIndex, filtered);
+            if (report == null) {
+                report = exec.newTaskReport();
+            }
+            state.getInputTaskState(taskIndex).setTaskReport(report);
+        } finally {
+            closeThis.close();
+        }
+    }
+
+    private Future<Throwable> startCommit(final ExecSession exec, final int taskIndex,
+            final AsyncPageOutput output, final TransactionalPageOutput tran)
+    {
+        return stageExecutor.submit(new Callable<Throwable>() {
+            public Throwable call() throws Exception
+            {
+                try (SetCurrentThreadName dontCare = new SetCurrentThreadName(String.format("output-%04d", taskIndex))) {
+                    return Exec.doWith(exec, new ExecAction<Throwable>() {
+                        public Throwable run()
+                        {
+                            output.finish();
+                            TaskReport report = tran.commit();
+                            if (report == null) {
+                                report = exec.newTaskReport();
+                            }
+                            state.getOutputTaskState(taskIndex).setTaskReport(report);
+                            return null;
+                        }
+                    });
+                } catch (ExecutionException ex) {
+                    return ex.getCause();  // thrown through Exec.doWith
+                }
+            }
+        });
+    }
+
+    private static class RoundRobinPageOutput
+            implements PageOutput
+    {
+        private final List<PageOutput> outputs;
+        private int next;
+
+        public RoundRobinPageOutput(List<PageOutput> outputs, int start)
+        {
+            this.outputs = outputs;
+            this.next = start % outputs.size();
+        }
+
+        public void add(Page page)
+        {
+            outputs.get(next).add(page);
+            next = (next + 1) % outputs.size();
+        }
+
+        public void finish()
+        { }
+
+        public void close()
+        { }
+    }
+
+    private static class HashPartitioningPageOutput
+            implements PageOutput
+    {
+        private final Schema schema;
+        private final Column partitionColumn;
+        private final PageReader reader;
+        private final List<PageBuilder> builders;
+        private final ColumnVisitor[] copiers;
+
+        public HashPartitioningPageOutput(ExecSession exec, Schema schema, Column partitionColumn, List<PageOutput> outputs)
+        {
+            this.schema = schema;
+            this.partitionColumn = partitionColumn;
+            this.reader = new PageReader(schema);
+            this.builders = new ArrayList<>(outputs.size());
+            this.copiers = new ColumnVisitor[outputs.size()];
+            for (int i=0; i < outputs.size(); i++) {
+                PageBuilder builder = new PageBuilder(exec.getBufferAllocator(), schema, outputs.get(i));
+                builders.add(builder);
+                copiers[i] = new RecordCopier(reader, builder);
+            }
+        }
+
+        public void add(Page page)
+        {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                int partition = (partitionHash() & Integer.MAX_VALUE) % builders.size();
+                schema.visitColumns(copiers[partition]);
+                builders.get(partition).addRecord();
+            }
+        }
+
+        private int partitionHash()
+        {
+            if (reader.isNull(partitionColumn)) {
+                return 0;
+            }
+            Class<?> javaType = partitionColumn.getType().getJavaType();
+            if (javaType == boolean.class) {
+                return reader.getBoolean(partitionColumn) ? 1 : 0;
+            } else if (javaType == long.class) {
+                long v = reader.getLong(partitionColumn);
+                return (int) (v ^ (v >>> 32));
+            } else if (javaType == double.class) {
+                long v = Double.doubleToLongBits(reader.getDouble(partitionColumn));
+                return (int) (v ^ (v >>> 32));
+            } else if (javaType == String.class) {
+                return reader.getString(partitionColumn).hashCode();
+            } else if (javaType == Timestamp.class) {
+                long v = reader.getTimestampEpochSecond(partitionColumn);
+                return (int) (v ^ (v >>> 32)) * 31 + reader.getTimestampNano(partitionColumn);
+            } else {
+                return 0;
+            }
+        }
+
+        public void finish()
+        {
+            for (PageBuilder builder : builders) {
+                builder.finish();
+            }
+        }
+
+        public void close()
+        {
+            try {
+                reader.close();
+            } finally {
+                for (PageBuilder builder : builders) {
+                    builder.close();
+                }
+            }
+        }
+    }
+
+    // finish() and close() don't propagate because the outputs are
+    // shared by all input tasks
+    private static class SharedPageOutput
+            implements PageOutput
+    {
+        private final PageOutput output;
+        private final ProgressReporter progress;
+        private final TaskRunner inputs;
+
+        public SharedPageOutput(PageOutput output, ProgressReporter progress, TaskRunner inputs)
+        {
+            this.output = output;
+            this.progress = progress;
+            this.inputs = inputs;
+        }
+
+        public void add(Page page)
+        {
+            if (inputs.isAborting()) {
+                // plugins may not respond to interruption of the thread
+                page.release();
+                throw new ExecutionInterruptedException(new InterruptedException());
+            }
+            int recordCount = PageReader.getRecordCount(page);
+            int byteSize = page.buffer().limit();
+            output.add(page);
+            progress.pageAdded(recordCount, byteSize);
+        }
+
+        public void finish()
+        { }
+
+        public void close()
+        { }
+    }
+
+    private static class RecordCopier
+            implements ColumnVisitor
+    {
+        private final PageReader reader;
+        private final PageBuilder builder;
+
+        public RecordCopier(PageReader reader, PageBuilder builder)
+        {
+            this.reader = reader;
+            this.builder = builder;
+        }
+
+        public void booleanColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setBoolean(column, reader.getBoolean(column));
+            }
+        }
+
+        public void longColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setLong(column, reader.getLong(column));
+            }
+        }
+
+        public void doubleColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setDouble(column, reader.getDouble(column));
+            }
+        }
+
+        public void stringColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setCharSequence(column, reader.getCharSequence(column));
+            }
+        }
+
+        public void timestampColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setTimestamp(column, reader.getTimestampEpochSecond(column), reader.getTimestampNano(column));
+            }
+        }
+    }
+}
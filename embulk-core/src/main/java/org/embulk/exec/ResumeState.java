@@ -2,6 +2,7 @@ package org.embulk.exec;
 
 import java.util.List;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -20,6 +21,20 @@ public class ResumeState
     private final Schema outputSchema;
     private final List<Optional<TaskReport>> inputTaskReports;
     private final List<Optional<TaskReport>> outputTaskReports;
+    private final List<Optional<TaskReport>> outputTaskCheckpoints;
+
+    public ResumeState(
+            ConfigSource execSessionConfigSource,
+            TaskSource inputTaskSource,
+            TaskSource outputTaskSource,
+            Schema inputSchema,
+            Schema outputSchema,
+            List<Optional<TaskReport>> inputTaskReports,
+            List<Optional<TaskReport>> outputTaskReports)
+    {
+        this(execSessionConfigSource, inputTaskSource, outputTaskSource,
+                inputSchema, outputSchema, inputTaskReports, outputTaskReports, null);
+    }
 
     @JsonCreator
     public ResumeState(
@@ -29,7 +44,8 @@ public class ResumeState
             @JsonProperty("in_schema") Schema inputSchema,
             @JsonProperty("out_schema") Schema outputSchema,
             @JsonProperty("in_reports") List<Optional<TaskReport>> inputTaskReports,
-            @JsonProperty("out_reports") List<Optional<TaskReport>> outputTaskReports)
+            @JsonProperty("out_reports") List<Optional<TaskReport>> outputTaskReports,
+            @JsonProperty("out_checkpoints") List<Optional<TaskReport>> outputTaskCheckpoints)
     {
         this.execSessionConfigSource = execSessionConfigSource;
         this.inputTaskSource = inputTaskSource;
@@ -38,6 +54,15 @@ public class ResumeState
         this.outputSchema = outputSchema;
         this.inputTaskReports = inputTaskReports;
         this.outputTaskReports = outputTaskReports;
+        if (outputTaskCheckpoints == null) {
+            // resume state written by older versions
+            ImmutableList.Builder<Optional<TaskReport>> builder = ImmutableList.builder();
+            for (int i=0; i < outputTaskReports.size(); i++) {
+                builder.add(Optional.<TaskReport>absent());
+            }
+            outputTaskCheckpoints = builder.build();
+        }
+        this.outputTaskCheckpoints = outputTaskCheckpoints;
     }
 
     @JsonProperty("exec_task")
@@ -97,4 +122,10 @@ public class ResumeState
     {
         return (List) outputTaskReports;  // the only implementation of TaskReport is DataSourceImpl which implements CommitReport;
     }
+
+    @JsonProperty("out_checkpoints")
+    public List<Optional<TaskReport>> getOutputTaskCheckpoints()
+    {
+        return outputTaskCheckpoints;
+    }
 }
@@ -0,0 +1,441 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.DataSourceImpl;
+import org.embulk.config.ModelManager;
+import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Schema;
+
+// Writes resume state to a local file while a transaction runs so that the
+// transaction can be resumed even if the process is killed.
+//
+// The file consists of JSON lines. The first line is a header that has task
+// sources, schemas, number of tasks and ranges of uncommitted tasks. Each of
+// the following lines has a report or a checkpoint of a task. A snapshot of
+// resume state is written to a temporary file and renamed atomically. Then,
+// a line is appended and synced to the disk every time a task commits or
+// saves a checkpoint. A line partially written by a crash is ignored when the
+// journal is read.
+//
+// This format is also used to store resume state of a failed transaction
+// because neither writing nor reading it builds a tree of all task reports.
+public class ResumeStateJournal
+        implements AutoCloseable
+{
+    private static final String HEADER_PREFIX = "{\"header\":";
+
+    private static class Header
+    {
+        private final ConfigSource execSessionConfigSource;
+        private final TaskSource inputTaskSource;
+        private final TaskSource outputTaskSource;
+        private final Schema inputSchema;
+        private final Schema outputSchema;
+        private final int inputTaskCount;
+        private final int outputTaskCount;
+        private final List<int[]> uncommittedInputTasks;
+        private final List<int[]> uncommittedOutputTasks;
+
+        @JsonCreator
+        public Header(
+                @JsonProperty("exec_task") ConfigSource execSessionConfigSource,
+                @JsonProperty("in_task") TaskSource inputTaskSource,
+                @JsonProperty("out_task") TaskSource outputTaskSource,
+                @JsonProperty("in_schema") Schema inputSchema,
+                @JsonProperty("out_schema") Schema outputSchema,
+                @JsonProperty("in_tasks") int inputTaskCount,
+                @JsonProperty("out_tasks") int outputTaskCount,
+                @JsonProperty("in_uncommitted") List<int[]> uncommittedInputTasks,
+                @JsonProperty("out_uncommitted") List<int[]> uncommittedOutputTasks)
+        {
+            this.execSessionConfigSource = execSessionConfigSource;
+            this.inputTaskSource = inputTaskSource;
+            this.outputTaskSource = outputTaskSource;
+            this.inputSchema = inputSchema;
+            this.outputSchema = outputSchema;
+            this.inputTaskCount = inputTaskCount;
+            this.outputTaskCount = outputTaskCount;
+            this.uncommittedInputTasks = uncommittedInputTasks;
+            this.uncommittedOutputTasks = uncommittedOutputTasks;
+        }
+
+        @JsonProperty("exec_task")
+        public ConfigSource getExecSessionConfigSource()
+        {
+            return execSessionConfigSource;
+        }
+
+        @JsonProperty("in_task")
+        public TaskSource getInputTaskSource()
+        {
+            return inputTaskSource;
+        }
+
+        @JsonProperty("out_task")
+        public TaskSource getOutputTaskSource()
+        {
+            return outputTaskSource;
+        }
+
+        @JsonProperty("in_schema")
+        public Schema getInputSchema()
+        {
+            return inputSchema;
+        }
+
+        @JsonProperty("out_schema")
+        public Schema getOutputSchema()
+        {
+            return outputSchema;
+        }
+
+        @JsonProperty("in_tasks")
+        public int getInputTaskCount()
+        {
+            return inputTaskCount;
+        }
+
+        @JsonProperty("out_tasks")
+        public int getOutputTaskCount()
+        {
+            return outputTaskCount;
+        }
+
+        @JsonProperty("in_uncommitted")
+        public List<int[]> getUncommittedInputTasks()
+        {
+            return uncommittedInputTasks;
+        }
+
+        @JsonProperty("out_uncommitted")
+        public List<int[]> getUncommittedOutputTasks()
+        {
+            return uncommittedOutputTasks;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static class Entry
+    {
+        private final Header header;
+        private final Integer inputTaskIndex;
+        private final Integer outputTaskIndex;
+        private final Integer checkpointTaskIndex;
+        private final TaskReport report;
+
+        @JsonCreator
+        public Entry(
+                @JsonProperty("header") Header header,
+                @JsonProperty("in") Integer inputTaskIndex,
+                @JsonProperty("out") Integer outputTaskIndex,
+                @JsonProperty("checkpoint") Integer checkpointTaskIndex,
+                @JsonProperty("report") TaskReport report)
+        {
+            this.header = header;
+            this.inputTaskIndex = inputTaskIndex;
+            this.outputTaskIndex = outputTaskIndex;
+            this.checkpointTaskIndex = checkpointTaskIndex;
+            this.report = report;
+        }
+
+        @JsonProperty("header")
+        public Header getHeader()
+        {
+            return header;
+        }
+
+        @JsonProperty("in")
+        public Integer getInputTaskIndex()
+        {
+            return inputTaskIndex;
+        }
+
+        @JsonProperty("out")
+        public Integer getOutputTaskIndex()
+        {
+            return outputTaskIndex;
+        }
+
+        @JsonProperty("checkpoint")
+        public Integer getCheckpointTaskIndex()
+        {
+            return checkpointTaskIndex;
+        }
+
+        @JsonProperty("report")
+        public TaskReport getReport()
+        {
+            return report;
+        }
+    }
+
+    private final Path path;
+    private final ModelManager modelManager;
+    private final Logger log;
+    private FileChannel channel;  // null until begin or after failure
+
+    public ResumeStateJournal(Path path, ModelManager modelManager, Logger log)
+    {
+        this.path = path;
+        this.modelManager = modelManager;
+        this.log = log;
+    }
+
+    public synchronized void begin(ResumeState state)
+    {
+        try {
+            write(path, state, modelManager);
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public void inputTaskCommitted(int taskIndex, TaskReport report)
+    {
+        append(new Entry(null, taskIndex, null, null, omitEmpty(report)));
+    }
+
+    public void outputTaskCommitted(int taskIndex, TaskReport report)
+    {
+        append(new Entry(null, null, taskIndex, null, omitEmpty(report)));
+    }
+
+    public void outputTaskCheckpointed(int taskIndex, TaskReport checkpoint)
+    {
+        append(new Entry(null, null, null, taskIndex, checkpoint));
+    }
+
+    private synchronized void append(Entry entry)
+    {
+        if (channel == null) {
+            // reports restored from resume state are included in the snapshot
+            return;
+        }
+        try {
+            ByteBuffer line = ByteBuffer.wrap((modelManager.writeObject(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            // the task is already committed. the transaction continues
+            // without the journal
+            log.warn(String.format("Failed to write resume state journal to '%s'. Stopped writing the journal.", path), ex);
+            closeChannel();
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        closeChannel();
+    }
+
+    private void closeChannel()
+    {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.debug("Failed to close resume state journal", ex);
+            }
+            channel = null;
+        }
+    }
+
+    // writes a snapshot of resume state to the file atomically. reports are
+    // written one by one instead of serializing whole resume state at once.
+    public static void write(Path path, ResumeState state, ModelManager modelManager) throws IOException
+    {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8.name()));
+            Header header = new Header(
+                    state.getExecSessionConfigSource(),
+                    state.getInputTaskSource(), state.getOutputTaskSource(),
+                    state.getInputSchema(), state.getOutputSchema(),
+                    state.getInputTaskReports().size(), state.getOutputTaskReports().size(),
+                    uncommittedRanges(state.getInputTaskReports()),
+                    uncommittedRanges(state.getOutputTaskReports()));
+            writeLine(writer, new Entry(header, null, null, null, null), modelManager);
+
+            List<Optional<TaskReport>> reports = state.getInputTaskReports();
+            for (int i=0; i < reports.size(); i++) {
+                if (reports.get(i).isPresent()) {
+                    writeLine(writer, new Entry(null, i, null, null, omitEmpty(reports.get(i).get())), modelManager);
+                }
+            }
+            reports = state.getOutputTaskReports();
+            for (int i=0; i < reports.size(); i++) {
+                if (reports.get(i).isPresent()) {
+                    writeLine(writer, new Entry(null, null, i, null, omitEmpty(reports.get(i).get())), modelManager);
+                }
+            }
+            List<Optional<TaskReport>> checkpoints = state.getOutputTaskCheckpoints();
+            for (int i=0; i < checkpoints.size(); i++) {
+                if (checkpoints.get(i).isPresent()) {
+                    writeLine(writer, new Entry(null, null, null, i, checkpoints.get(i).get()), modelManager);
+                }
+            }
+            writer.flush();
+            out.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // most of output plugins return empty reports
+    private static TaskReport omitEmpty(TaskReport report)
+    {
+        return report.isEmpty() ? null : report;
+    }
+
+    private static void writeLine(Writer writer, Entry entry, ModelManager modelManager) throws IOException
+    {
+        writer.write(modelManager.writeObject(entry));
+        writer.write('\n');
+    }
+
+    // returns [start, end) ranges of indexes of absent reports
+    static List<int[]> uncommittedRanges(List<Optional<TaskReport>> reports)
+    {
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1;
+        for (int i=0; i < reports.size(); i++) {
+            if (!reports.get(i).isPresent()) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                ranges.add(new int[] { start, i });
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            ranges.add(new int[] { start, reports.size() });
+        }
+        return ranges;
+    }
+
+    // returns true if the file starts with the header of this format
+    public static boolean isJournalFile(Path path) throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            char[] prefix = new char[HEADER_PREFIX.length()];
+            int len = 0;
+            while (len < prefix.length) {
+                int n = reader.read(prefix, len, prefix.length - len);
+                if (n < 0) {
+                    return false;
+                }
+                len += n;
+            }
+            return HEADER_PREFIX.equals(new String(prefix));
+        }
+    }
+
+    // returns absent if the journal doesn't have a snapshot
+    public static Optional<ResumeState> read(Path path, ModelManager modelManager) throws IOException
+    {
+        Header header = null;
+        List<Optional<TaskReport>> inputTaskReports = null;
+        List<Optional<TaskReport>> outputTaskReports = null;
+        List<Optional<TaskReport>> outputTaskCheckpoints = null;
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry;
+                try {
+                    entry = modelManager.readObjectWithConfigSerDe(Entry.class, line);
+                } catch (RuntimeException ex) {
+                    // the last line written when the process crashed
+                    break;
+                }
+                if (entry.getHeader() != null) {
+                    header = entry.getHeader();
+                    inputTaskReports = absentList(header.getInputTaskCount());
+                    outputTaskReports = absentList(header.getOutputTaskCount());
+                    outputTaskCheckpoints = absentList(header.getOutputTaskCount());
+                } else if (header == null) {
+                    break;
+                } else if (entry.getInputTaskIndex() != null) {
+                    inputTaskReports.set(entry.getInputTaskIndex(), Optional.of(reportOf(entry, modelManager)));
+                } else if (entry.getOutputTaskIndex() != null) {
+                    outputTaskReports.set(entry.getOutputTaskIndex(), Optional.of(reportOf(entry, modelManager)));
+                    outputTaskCheckpoints.set(entry.getOutputTaskIndex(), Optional.<TaskReport>absent());
+                } else if (entry.getCheckpointTaskIndex() != null) {
+                    outputTaskCheckpoints.set(entry.getCheckpointTaskIndex(), Optional.of(entry.getReport()));
+                }
+            }
+        }
+
+        if (header == null) {
+            return Optional.absent();
+        }
+        checkCommittedReports(path, "input", header.getUncommittedInputTasks(), inputTaskReports);
+        checkCommittedReports(path, "output", header.getUncommittedOutputTasks(), outputTaskReports);
+        return Optional.of(new ResumeState(
+                    header.getExecSessionConfigSource(),
+                    header.getInputTaskSource(), header.getOutputTaskSource(),
+                    header.getInputSchema(), header.getOutputSchema(),
+                    inputTaskReports, outputTaskReports, outputTaskCheckpoints));
+    }
+
+    private static TaskReport reportOf(Entry entry, ModelManager modelManager)
+    {
+        if (entry.getReport() == null) {
+            return new DataSourceImpl(modelManager);
+        }
+        return entry.getReport();
+    }
+
+    private static List<Optional<TaskReport>> absentList(int size)
+    {
+        List<Optional<TaskReport>> list = new ArrayList<>(size);
+        for (int i=0; i < size; i++) {
+            list.add(Optional.<TaskReport>absent());
+        }
+        return list;
+    }
+
+    // the snapshot is renamed atomically. missing reports mean that the file
+    // is broken, and running committed tasks again would duplicate data.
+    private static void checkCommittedReports(Path path, String kind,
+            List<int[]> uncommittedRanges, List<Optional<TaskReport>> reports) throws IOException
+    {
+        BitSet committed = new BitSet(reports.size());
+        committed.set(0, reports.size());
+        for (int[] range : uncommittedRanges) {
+            committed.clear(range[0], range[1]);
+        }
+        for (int i = committed.nextSetBit(0); i >= 0; i = committed.nextSetBit(i + 1)) {
+            if (!reports.get(i).isPresent()) {
+                throw new IOException(String.format("Resume state '%s' doesn't include report of committed %s task %d", path, kind, i));
+            }
+        }
+    }
+}
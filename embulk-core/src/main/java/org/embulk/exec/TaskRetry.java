@@ -0,0 +1,129 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.slf4j.Logger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.base.Optional;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.DataException;
+import org.embulk.spi.util.RetryExecutor;
+import org.embulk.spi.util.RetryExecutor.Retryable;
+import org.embulk.spi.util.RetryExecutor.RetryGiveupException;
+
+// Runs a task again when it fails with a retryable exception so that
+// transient errors of a few tasks don't fail the whole transaction.
+// The output of a failed attempt is aborted before the next attempt.
+class TaskRetry
+{
+    private static final int DEFAULT_RETRY_INITIAL_WAIT_MSEC = 1000;
+    private static final int DEFAULT_MAX_RETRY_WAIT_MSEC = 60000;
+
+    // exceptions that fail again at the next attempt. retry_exceptions overrides this.
+    private static final List<Class<? extends Throwable>> NON_RETRYABLE_EXCEPTIONS =
+            ImmutableList.<Class<? extends Throwable>>of(
+                    ConfigException.class, DataException.class);
+
+    private final Logger log;
+    private final int retryLimit;
+    private final RetryExecutor retryExecutor;
+    private final Optional<List<String>> retryExceptions;
+
+    private TaskRetry(Logger log, int retryLimit, int initialRetryWait, int maxRetryWait,
+            Optional<List<String>> retryExceptions)
+    {
+        this.log = log;
+        this.retryLimit = retryLimit;
+        this.retryExecutor = RetryExecutor.retryExecutor()
+                .withRetryLimit(retryLimit)
+                .withInitialRetryWait(initialRetryWait)
+                .withMaxRetryWait(maxRetryWait);
+        this.retryExceptions = retryExceptions;
+    }
+
+    // retry_limit: number of retries of a task. 0 disables retrying.
+    // retry_exceptions: names of exception classes to retry. By default,
+    // all exceptions except configuration errors and invalid data are retried.
+    @SuppressWarnings("unchecked")
+    public static TaskRetry load(ConfigSource config, Logger log)
+    {
+        int retryLimit = config.get(Integer.class, "retry_limit", 0);
+        if (retryLimit < 0) {
+            throw new ConfigException("exec.retry_limit must not be negative");
+        }
+        return new TaskRetry(log, retryLimit,
+                config.get(Integer.class, "retry_initial_wait_msec", DEFAULT_RETRY_INITIAL_WAIT_MSEC),
+                config.get(Integer.class, "max_retry_wait_msec", DEFAULT_MAX_RETRY_WAIT_MSEC),
+                Optional.fromNullable((List<String>) config.get(List.class, "retry_exceptions", null)));
+    }
+
+    public boolean isEnabled()
+    {
+        return retryLimit > 0;
+    }
+
+    // returns the exception of the last attempt instead of throwing it
+    public Throwable run(final int taskIndex, final Callable<Void> task, final TaskRunner runner)
+    {
+        final Exception[] lastException = new Exception[1];
+        try {
+            retryExecutor.runInterruptible(new Retryable<Void>() {
+                public Void call() throws Exception
+                {
+                    return task.call();
+                }
+
+                public boolean isRetryableException(Exception exception)
+                {
+                    lastException[0] = exception;
+                    return !runner.isAborting() && isRetryable(exception);
+                }
+
+                public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
+                {
+                    log.warn(String.format("Retrying task %d (%d/%d) after %d msec",
+                                taskIndex, retryCount, retryLimit, retryWait), exception);
+                }
+
+                public void onGiveup(Exception firstException, Exception lastException)
+                {
+                }
+            });
+            return null;
+        } catch (RetryGiveupException ex) {
+            return lastException[0];
+        } catch (InterruptedException ex) {
+            return new ExecutionInterruptedException(ex);
+        }
+    }
+
+    boolean isRetryable(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ExecutionInterruptedException) {
+                return false;
+            }
+        }
+        if (!retryExceptions.isPresent()) {
+            for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+                for (Class<? extends Throwable> nonRetryable : NON_RETRYABLE_EXCEPTIONS) {
+                    if (nonRetryable.isInstance(cause)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // compares class names because plugins are loaded by other class loaders
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            for (Class<?> c = cause.getClass(); c != null; c = c.getSuperclass()) {
+                if (retryExceptions.get().contains(c.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,269 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import com.google.common.collect.ImmutableList;
+
+// Runs tasks on an executor and notifies completion of them in order of
+// completion. If failFast is true, the first failure stops starting queued
+// tasks, interrupts running tasks and waits for them to finish.
+//
+// A task is submitted to the executor when number of running tasks is less
+// than the concurrency and all of the permits are available. Permits may
+// be shared with other jobs to limit concurrency of a plugin.
+class TaskRunner
+{
+    public interface Listener
+    {
+        // error is null if the task succeeded
+        void finished(int taskIndex, Throwable error);
+    }
+
+    private static class Completion
+    {
+        private final int taskIndex;
+        private final Throwable error;
+
+        public Completion(int taskIndex, Throwable error)
+        {
+            this.taskIndex = taskIndex;
+            this.error = error;
+        }
+    }
+
+    private static class PendingTask
+    {
+        private final int taskIndex;
+        private final Callable<Throwable> task;
+
+        public PendingTask(int taskIndex, Callable<Throwable> task)
+        {
+            this.taskIndex = taskIndex;
+            this.task = task;
+        }
+    }
+
+    // permits are released once by the task, or by abort if the task
+    // is cancelled before it starts
+    private class StartedTask
+    {
+        private final AtomicBoolean permitsReleased = new AtomicBoolean(false);
+        private Future<?> future;
+
+        public void releasePermits()
+        {
+            if (permitsReleased.compareAndSet(false, true)) {
+                for (Semaphore permit : permits) {
+                    permit.release();
+                }
+            }
+        }
+    }
+
+    // wakes up waitFor to start tasks
+    private static final Completion WAKEUP = new Completion(-1, null);
+
+    // permits released by other jobs don't wake up waitFor
+    private static final long PERMIT_POLL_MILLIS = 1000;
+
+    private final ExecutorService executor;
+    private final boolean failFast;
+    private final List<Semaphore> permits;
+    private final Logger log;
+    private final Deque<PendingTask> pendingTasks = new ArrayDeque<>();
+    private final List<StartedTask> startedTasks = new ArrayList<>();
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    private volatile int concurrency;
+    private volatile int pendingCount;
+    private int inFlightCount;
+
+    private final Object lock = new Object();
+    private int running;                // guarded by lock
+    private volatile boolean aborting;  // set with lock
+
+    public TaskRunner(ExecutorService executor, boolean failFast, Logger log)
+    {
+        this(executor, failFast, Integer.MAX_VALUE, ImmutableList.<Semaphore>of(), log);
+    }
+
+    public TaskRunner(ExecutorService executor, boolean failFast,
+            int concurrency, List<Semaphore> permits, Logger log)
+    {
+        this.executor = executor;
+        this.failFast = failFast;
+        this.concurrency = concurrency;
+        this.permits = permits;
+        this.log = log;
+    }
+
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    // can be called by another thread while waitFor is running
+    public void setConcurrency(int concurrency)
+    {
+        this.concurrency = concurrency;
+        completions.add(WAKEUP);
+    }
+
+    public boolean hasPendingTasks()
+    {
+        return pendingCount > 0;
+    }
+
+    // task returns an exception instead of throwing it.
+    // tasks start when waitFor is called.
+    public void submit(int taskIndex, Callable<Throwable> task)
+    {
+        pendingTasks.add(new PendingTask(taskIndex, task));
+        pendingCount = pendingTasks.size();
+    }
+
+    // runs and waits for all submitted tasks
+    public void waitFor(Listener listener)
+    {
+        int total = pendingTasks.size();
+        int finished = 0;
+        try {
+            startTasks();
+            while (finished < total) {
+                Completion completion = completions.poll(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (completion == null || completion == WAKEUP) {
+                    startTasks();
+                    continue;
+                }
+                finished++;
+                inFlightCount--;
+                listener.finished(completion.taskIndex, completion.error);
+                if (completion.error != null && failFast) {
+                    log.error("Stopping other tasks because task {} failed", completion.taskIndex);
+                    abort();
+                    return;
+                }
+                startTasks();
+            }
+        } catch (InterruptedException ex) {
+            abort();
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
+
+    private void startTasks()
+    {
+        while (!pendingTasks.isEmpty() && inFlightCount < concurrency && !aborting) {
+            if (!tryAcquirePermits()) {
+                break;
+            }
+            PendingTask pending = pendingTasks.poll();
+            pendingCount = pendingTasks.size();
+            StartedTask started = new StartedTask();
+            started.future = executor.submit(newRunnable(pending.taskIndex, pending.task, started));
+            startedTasks.add(started);
+            inFlightCount++;
+        }
+    }
+
+    private boolean tryAcquirePermits()
+    {
+        for (int i=0; i < permits.size(); i++) {
+            if (!permits.get(i).tryAcquire()) {
+                for (int j=0; j < i; j++) {
+                    permits.get(j).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Runnable newRunnable(final int taskIndex, final Callable<Throwable> task, final StartedTask started)
+    {
+        return new Runnable() {
+            public void run()
+            {
+                synchronized (lock) {
+                    if (aborting) {
+                        started.releasePermits();
+                        return;
+                    }
+                    running++;
+                }
+                Throwable error = null;
+                try {
+                    error = task.call();
+                } catch (Throwable ex) {
+                    error = ex;
+                } finally {
+                    started.releasePermits();
+                    completions.add(new Completion(taskIndex, error));
+                    synchronized (lock) {
+                        running--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+
+    // tasks check this because plugins may ignore interruption
+    public boolean isAborting()
+    {
+        return aborting;
+    }
+
+    // stops starting tasks, interrupts running tasks and waits for them
+    public void abort()
+    {
+        synchronized (lock) {
+            aborting = true;
+        }
+        pendingTasks.clear();
+        pendingCount = 0;
+        for (StartedTask started : startedTasks) {
+            started.future.cancel(true);
+        }
+
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (running > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // tasks cancelled before starting don't release permits
+        for (StartedTask started : startedTasks) {
+            if (started.future.isCancelled()) {
+                started.releasePermits();
+            }
+        }
+
+        // tasks failed by the interruption don't report errors so that
+        // the error that caused abort is the representative error
+        for (Completion completion : completions) {
+            if (completion.error != null) {
+                log.debug(String.format("Task %d is stopped", completion.taskIndex), completion.error);
+            }
+        }
+        completions.clear();
+    }
+}
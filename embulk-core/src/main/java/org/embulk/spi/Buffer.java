@@ -1,6 +1,12 @@
 package org.embulk.spi;
 
 import java.util.Arrays;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import io.airlift.slice.Slice;
+import io.airlift.slice.Slices;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -8,7 +14,8 @@ public class Buffer
 {
     public static final Buffer EMPTY = Buffer.allocate(0);
 
-    private final byte[] array;
+    private final byte[] array;  // null if this buffer is off-heap
+    private final Slice direct;  // null if this buffer is on-heap
     private int offset;
     private int filled;
     private final int capacity;
@@ -16,6 +23,7 @@ public class Buffer
     protected Buffer(byte[] wrap, int offset, int capacity)
     {
         this.array = wrap;
+        this.direct = null;
         this.offset = offset;
         this.capacity = capacity;
         this.filled = offset;
@@ -25,11 +33,32 @@ public class Buffer
         }
     }
 
+    protected Buffer(ByteBuffer wrap)
+    {
+        if (wrap.hasArray()) {
+            this.array = wrap.array();
+            this.direct = null;
+            this.offset = wrap.arrayOffset() + wrap.position();
+        } else {
+            // direct memory is accessed through an address of the memory
+            this.array = null;
+            this.direct = Slices.wrappedBuffer(wrap);
+            this.offset = 0;
+        }
+        this.capacity = wrap.remaining();
+        this.filled = offset;
+    }
+
     public static Buffer allocate(int length)
     {
         return new Buffer(new byte[length], 0, length);
     }
 
+    public static Buffer allocateDirect(int length)
+    {
+        return new Buffer(ByteBuffer.allocateDirect(length));
+    }
+
     public static Buffer copyOf(byte[] src)
     {
         return copyOf(src, 0, src.length);
@@ -50,9 +79,23 @@ public class Buffer
         return new Buffer(src, offset, size).limit(size);
     }
 
+    // wraps remaining bytes of a heap or direct (including memory-mapped) buffer without copying
+    public static Buffer wrap(ByteBuffer src)
+    {
+        return new Buffer(src).limit(src.remaining());
+    }
+
+    public boolean hasArray()
+    {
+        return array != null;
+    }
+
     @SuppressFBWarnings(value = "EI_EXPOSE_REP")
     public byte[] array()
     {
+        if (array == null) {
+            throw new UnsupportedOperationException("Off-heap buffer doesn't have a backing array");
+        }
         return array;
     }
 
@@ -87,24 +130,85 @@ public class Buffer
         return capacity;
     }
 
+    public byte getByte(int index)
+    {
+        if (array != null) {
+            return array[offset + index];
+        } else {
+            return direct.getByte(offset + index);
+        }
+    }
+
+    public void setByte(int index, byte value)
+    {
+        if (array != null) {
+            array[offset + index] = value;
+        } else {
+            direct.setByte(offset + index, value);
+        }
+    }
+
     public void setBytes(int index, byte[] source, int sourceIndex, int length)
     {
-        System.arraycopy(source, sourceIndex, array, offset + index, length);
+        if (array != null) {
+            System.arraycopy(source, sourceIndex, array, offset + index, length);
+        } else {
+            direct.setBytes(offset + index, source, sourceIndex, length);
+        }
     }
 
     public void setBytes(int index, Buffer source, int sourceIndex, int length)
     {
-        setBytes(index, source.array(), source.offset() + sourceIndex, length);
+        if (source.array != null) {
+            setBytes(index, source.array, source.offset + sourceIndex, length);
+        } else if (array != null) {
+            source.getBytes(sourceIndex, array, offset + index, length);
+        } else {
+            direct.setBytes(offset + index, source.direct, source.offset + sourceIndex, length);
+        }
     }
 
     public void getBytes(int index, byte[] dest, int destIndex, int length)
     {
-        System.arraycopy(array, offset + index, dest, destIndex, length);
+        if (array != null) {
+            System.arraycopy(array, offset + index, dest, destIndex, length);
+        } else {
+            direct.getBytes(offset + index, dest, destIndex, length);
+        }
     }
 
     public void getBytes(int index, Buffer dest, int destIndex, int length)
     {
-        getBytes(index, dest.array(), dest.offset() + destIndex, length);
+        dest.setBytes(destIndex, this, index, length);
+    }
+
+    // reads at most length bytes. returns -1 if the stream reached the end
+    public int setBytes(int index, InputStream source, int length) throws IOException
+    {
+        if (array != null) {
+            return source.read(array, offset + index, length);
+        } else {
+            return direct.setBytes(offset + index, source, length);
+        }
+    }
+
+    public void getBytes(int index, OutputStream dest, int length) throws IOException
+    {
+        if (array != null) {
+            dest.write(array, offset + index, length);
+        } else {
+            direct.getBytes(offset + index, dest, length);
+        }
+    }
+
+    // used by PageBuilder and PageReader to access values without copying
+    Slice toSlice(int length)
+    {
+        if (array != null) {
+            return Slices.wrappedBuffer(array, offset, length);
+        } else {
+            return direct.slice(offset, length);
+        }
     }
 
     public void release()
@@ -123,6 +227,14 @@ public class Buffer
         if (limit() != o.limit()) {
             return false;
         }
+        if (array == null || o.array == null) {
+            for (int i=0; i < limit(); i++) {
+                if (getByte(i) != o.getByte(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
         int i = offset;
         int io = o.offset;
         while (i < filled) {
@@ -140,6 +252,12 @@ public class Buffer
     {
         // TODO optimize
         int result = 1;
+        if (array == null) {
+            for (int i = 0; i < limit(); i++) {
+                result = 31 * result + direct.getByte(offset + i);
+            }
+            return result;
+        }
         for (int i = offset; i < filled; i++) {
             result = 31 * result + array[i];
         }
@@ -0,0 +1,14 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
+
+// Optional interface of InputPlugin that reports positions to
+// CheckpointPageOutput so that a failed task resumes from the last
+// checkpoint instead of the beginning.
+public interface CheckpointInputPlugin
+{
+    // runs the task from a position given to CheckpointPageOutput.checkpoint
+    TaskReport resumeTask(TaskSource taskSource, Schema schema, int taskIndex,
+            TaskReport position, PageOutput output);
+}
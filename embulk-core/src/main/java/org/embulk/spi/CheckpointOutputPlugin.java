@@ -0,0 +1,14 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
+
+// Optional interface of OutputPlugin. open and resumeTask of the plugin
+// return CheckpointTransactionalPageOutput.
+public interface CheckpointOutputPlugin
+{
+    // opens an output that continues from data acknowledged by
+    // CheckpointTransactionalPageOutput.checkpoint
+    CheckpointTransactionalPageOutput resumeTask(TaskSource taskSource, Schema schema, int taskIndex,
+            TaskReport acknowledgement);
+}
@@ -0,0 +1,17 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskReport;
+
+// PageOutput given to input plugins when the executor saves checkpoints of
+// tasks. An input plugin that implements CheckpointInputPlugin checks
+// isCheckpointRequired at record boundaries, flushes its pages and calls
+// checkpoint with the position of the next record.
+public interface CheckpointPageOutput
+        extends PageOutput
+{
+    boolean isCheckpointRequired();
+
+    // all records before the position have been added to this output.
+    // the position is given to CheckpointInputPlugin.resumeTask.
+    void checkpoint(TaskReport position);
+}
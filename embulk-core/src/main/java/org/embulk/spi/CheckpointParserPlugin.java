@@ -0,0 +1,13 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
+
+// Optional interface of ParserPlugin. FileInputRunner supports checkpoints
+// if the parser plugin implements this interface.
+public interface CheckpointParserPlugin
+{
+    // parses the input from a position given to CheckpointPageOutput.checkpoint
+    void resumeTask(TaskSource taskSource, Schema schema,
+            FileInput input, TaskReport position, PageOutput output);
+}
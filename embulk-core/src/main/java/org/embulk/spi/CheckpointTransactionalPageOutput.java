@@ -0,0 +1,12 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskReport;
+
+public interface CheckpointTransactionalPageOutput
+        extends TransactionalPageOutput
+{
+    // makes all added pages durable and returns an acknowledgement given to
+    // CheckpointOutputPlugin.resumeTask. abort() doesn't discard the data
+    // acknowledged by this method.
+    TaskReport checkpoint();
+}
@@ -0,0 +1,226 @@
+package org.embulk.spi;
+
+import io.airlift.slice.Slice;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.TimestampType;
+
+public class ColumnarPageBuilder
+        implements AutoCloseable
+{
+    // strings are kept in the heap with the page instead of the buffer
+    private static final int MAX_STRING_REFERENCE_SIZE = 1024 * 1024;
+
+    private final BufferAllocator allocator;
+    private final PageOutput output;
+    private final Schema schema;
+    private final int[] nullBitmapOffsets;
+    private final int[] valueOffsets;
+
+    private Buffer buffer;
+    private Slice bufferSlice;
+    private int capacity;
+
+    private int count;
+    private final StringDictionary stringReferences = new StringDictionary();
+    private int stringReferenceSize;
+
+    public ColumnarPageBuilder(BufferAllocator allocator, Schema schema, PageOutput output)
+    {
+        this.allocator = allocator;
+        this.output = output;
+        this.schema = schema;
+        this.nullBitmapOffsets = new int[schema.getColumnCount()];
+        this.valueOffsets = new int[schema.getColumnCount()];
+        newBuffer();
+    }
+
+    private void newBuffer()
+    {
+        this.buffer = allocator.allocate((int) ColumnarPageFormat.pageSize(schema, 1));
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
+        this.capacity = ColumnarPageFormat.recordCapacity(schema, buffer.capacity());
+        if (capacity < 1) {
+            throw new IllegalStateException(String.format("Allocated buffer (%d bytes) is smaller than a record", buffer.capacity()));
+        }
+        ColumnarPageFormat.nullBitmapOffsets(schema, capacity, nullBitmapOffsets);
+        ColumnarPageFormat.valueOffsets(schema, capacity, valueOffsets);
+        this.count = 0;
+        this.stringReferences.clear();
+        this.stringReferenceSize = 0;
+
+        // all values are null unless set
+        int bitmapSize = ColumnarPageFormat.nullBitmapSize(capacity);
+        for (int i=0; i < schema.getColumnCount(); i++) {
+            int offset = nullBitmapOffsets[i];
+            for (int j=0; j < bitmapSize; j++) {
+                bufferSlice.setByte(offset + j, -1);
+            }
+        }
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public void setNull(Column column)
+    {
+        setNull(column.getIndex());
+    }
+
+    public void setNull(int columnIndex)
+    {
+        int offset = nullBitmapOffsets[columnIndex] + (count >>> 3);
+        bufferSlice.setByte(offset, bufferSlice.getByte(offset) | (1 << (count & 7)));
+    }
+
+    private void clearNull(int columnIndex)
+    {
+        int offset = nullBitmapOffsets[columnIndex] + (count >>> 3);
+        bufferSlice.setByte(offset, bufferSlice.getByte(offset) & ~(1 << (count & 7)));
+    }
+
+    public void setBoolean(Column column, boolean value)
+    {
+        setBoolean(column.getIndex(), value);
+    }
+
+    public void setBoolean(int columnIndex, boolean value)
+    {
+        bufferSlice.setByte(valueOffsets[columnIndex] + count, value ? (byte) 1 : (byte) 0);
+        clearNull(columnIndex);
+    }
+
+    public void setLong(Column column, long value)
+    {
+        setLong(column.getIndex(), value);
+    }
+
+    public void setLong(int columnIndex, long value)
+    {
+        bufferSlice.setLong(valueOffsets[columnIndex] + count * 8, value);
+        clearNull(columnIndex);
+    }
+
+    public void setDouble(Column column, double value)
+    {
+        setDouble(column.getIndex(), value);
+    }
+
+    public void setDouble(int columnIndex, double value)
+    {
+        bufferSlice.setDouble(valueOffsets[columnIndex] + count * 8, value);
+        clearNull(columnIndex);
+    }
+
+    public void setString(Column column, String value)
+    {
+        setString(column.getIndex(), value);
+    }
+
+    public void setString(int columnIndex, String value)
+    {
+        int nextIndex = stringReferences.size();
+        int index = stringReferences.add(value);
+        if (index == nextIndex) {
+            stringReferenceSize += value.length() * 2 + 4;  // assuming size of char = size of byte * 2 + length
+        }
+        bufferSlice.setInt(valueOffsets[columnIndex] + count * 4, index);
+        clearNull(columnIndex);
+    }
+
+    public void setTimestamp(Column column, Timestamp value)
+    {
+        setTimestamp(column.getIndex(), value);
+    }
+
+    public void setTimestamp(int columnIndex, Timestamp value)
+    {
+        int offset = valueOffsets[columnIndex];
+        bufferSlice.setLong(offset + count * 8, value.getEpochSecond());
+        bufferSlice.setInt(ColumnarPageFormat.timestampNanoOffset(offset, capacity) + count * 4, value.getNano());
+        clearNull(columnIndex);
+    }
+
+    public void addRecord()
+    {
+        count++;
+
+        // flush if next record will not fit in this buffer
+        if (count >= capacity || stringReferenceSize >= MAX_STRING_REFERENCE_SIZE) {
+            flush();
+        }
+    }
+
+    private void doFlush()
+    {
+        if (buffer != null && count > 0) {
+            if (count < capacity) {
+                compact();
+            }
+
+            // write page header
+            bufferSlice.setInt(0, ColumnarPageFormat.MAGIC);
+            bufferSlice.setInt(4, count);
+            bufferSlice.setInt(8, count);
+            buffer.limit((int) ColumnarPageFormat.pageSize(schema, count));
+
+            // flush page
+            Page page = Page.wrap(buffer).setStringReferences(stringReferences.takeValues());
+            buffer = null;
+            bufferSlice = null;
+            output.add(page);
+        }
+    }
+
+    // moves null bitmaps and value vectors so that capacity of the page
+    // becomes count and unused slots are not written
+    private void compact()
+    {
+        int[] offsets = new int[schema.getColumnCount()];
+
+        // every vector moves toward the head. copying them in order doesn't
+        // overwrite vectors not moved yet.
+        ColumnarPageFormat.nullBitmapOffsets(schema, count, offsets);
+        int bitmapSize = ColumnarPageFormat.nullBitmapSize(count);
+        for (int i=0; i < schema.getColumnCount(); i++) {
+            bufferSlice.setBytes(offsets[i], bufferSlice, nullBitmapOffsets[i], bitmapSize);
+        }
+
+        ColumnarPageFormat.valueOffsets(schema, count, offsets);
+        for (int i=0; i < schema.getColumnCount(); i++) {
+            if (schema.getColumnType(i) instanceof TimestampType) {
+                bufferSlice.setBytes(offsets[i], bufferSlice, valueOffsets[i], count * 8);
+                bufferSlice.setBytes(ColumnarPageFormat.timestampNanoOffset(offsets[i], count), bufferSlice,
+                        ColumnarPageFormat.timestampNanoOffset(valueOffsets[i], capacity), count * 4);
+            } else {
+                int size = schema.getColumnType(i).getFixedStorageSize();
+                bufferSlice.setBytes(offsets[i], bufferSlice, valueOffsets[i], count * size);
+            }
+        }
+    }
+
+    public void flush()
+    {
+        doFlush();
+        if (buffer == null) {
+            newBuffer();
+        }
+    }
+
+    public void finish()
+    {
+        doFlush();
+        output.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+            bufferSlice = null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.embulk.spi;
+
+abstract class ColumnarPageFormat
+{
+    // PageHeader
+    // +---+---+---+
+    // | 4 | 4 | 4 |
+    // +---+---+---+
+    // magic, count (number of records), capacity (number of record slots)
+    //
+    // The magic is negative so that PageReader, which reads the first 4 bytes
+    // as the record count, rejects columnar pages.
+    //
+    // Null bitmaps of all columns follow the header, then value vectors of
+    // each column follow the bitmaps:
+    // +---------------+-----+---------------+--------------+-----+--------------+
+    // | nulls of col0 | ... | nulls of colN | values of 0  | ... | values of N  |
+    // +---------------+-----+---------------+--------------+-----+--------------+
+    //
+    // A null bitmap has (capacity + 7) / 8 bytes. A value vector has
+    // (capacity * fixed storage size) bytes. A timestamp vector stores all
+    // epoch seconds (8 bytes each) first, and all nanoseconds (4 bytes each)
+    // after them. Slots between count and capacity are unused.
+
+    private ColumnarPageFormat() { }
+
+    static final int PAGE_HEADER_SIZE = 12;
+
+    static final int MAGIC = 0xEB0C0001;
+
+    static int nullBitmapSize(int capacity)
+    {
+        return (int) ((capacity + 7L) / 8);
+    }
+
+    static long pageSize(Schema schema, int capacity)
+    {
+        return PAGE_HEADER_SIZE
+            + (long) nullBitmapSize(capacity) * schema.getColumnCount()
+            + (long) capacity * schema.getFixedStorageSize();
+    }
+
+    // the largest capacity that satisfies pageSize(schema, capacity) <= bufferCapacity
+    static int recordCapacity(Schema schema, int bufferCapacity)
+    {
+        long bitsPerRecord = schema.getFixedStorageSize() * 8L + schema.getColumnCount();
+        if (bitsPerRecord == 0) {
+            return Integer.MAX_VALUE;
+        }
+        long available = bufferCapacity - PAGE_HEADER_SIZE;
+        if (available <= 0) {
+            return 0;
+        }
+        // rounding of null bitmaps wastes less than 1 byte per column
+        long capacity = Math.min(available * 8 / bitsPerRecord, Integer.MAX_VALUE);
+        while (capacity > 0 && pageSize(schema, (int) capacity) > bufferCapacity) {
+            capacity--;
+        }
+        return (int) capacity;
+    }
+
+    static void nullBitmapOffsets(Schema schema, int capacity, int[] offsets)
+    {
+        int bitmapSize = nullBitmapSize(capacity);
+        for (int i=0; i < schema.getColumnCount(); i++) {
+            offsets[i] = PAGE_HEADER_SIZE + bitmapSize * i;
+        }
+    }
+
+    static void valueOffsets(Schema schema, int capacity, int[] offsets)
+    {
+        int offset = PAGE_HEADER_SIZE + nullBitmapSize(capacity) * schema.getColumnCount();
+        for (int i=0; i < schema.getColumnCount(); i++) {
+            offsets[i] = offset;
+            offset += capacity * schema.getColumnType(i).getFixedStorageSize();
+        }
+    }
+
+    static int timestampNanoOffset(int valueOffset, int capacity)
+    {
+        return valueOffset + capacity * 8;
+    }
+}
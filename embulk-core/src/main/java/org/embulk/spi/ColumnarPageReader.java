@@ -0,0 +1,129 @@
+package org.embulk.spi;
+
+import io.airlift.slice.Slice;
+import org.embulk.spi.time.Timestamp;
+
+public class ColumnarPageReader
+        implements AutoCloseable
+{
+    private final Schema schema;
+    private final int[] nullBitmapOffsets;
+    private final int[] valueOffsets;
+
+    private Page page = SENTINEL;
+    private Slice pageSlice = null;
+    private int pageRecordCount = 0;
+    private int pageCapacity = 0;
+
+    private static final Page SENTINEL = Page.wrap(Buffer.wrap(new byte[ColumnarPageFormat.PAGE_HEADER_SIZE]));  // buffer().release() does nothing
+
+    public ColumnarPageReader(Schema schema)
+    {
+        this.schema = schema;
+        this.nullBitmapOffsets = new int[schema.getColumnCount()];
+        this.valueOffsets = new int[schema.getColumnCount()];
+    }
+
+    public void setPage(Page page)
+    {
+        this.page.buffer().release();
+        this.page = SENTINEL;
+
+        Buffer pageBuffer = page.buffer();
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
+
+        if (pageSlice.length() < ColumnarPageFormat.PAGE_HEADER_SIZE ||
+                pageSlice.getInt(0) != ColumnarPageFormat.MAGIC) {
+            throw new IllegalArgumentException("Page is not in the columnar layout");
+        }
+        pageRecordCount = pageSlice.getInt(4);  // see page format
+        pageCapacity = pageSlice.getInt(8);
+        ColumnarPageFormat.nullBitmapOffsets(schema, pageCapacity, nullBitmapOffsets);
+        ColumnarPageFormat.valueOffsets(schema, pageCapacity, valueOffsets);
+
+        this.page = page;
+        this.pageSlice = pageSlice;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public int getRecordCount()
+    {
+        return pageRecordCount;
+    }
+
+    public boolean isNull(Column column, int recordIndex)
+    {
+        return isNull(column.getIndex(), recordIndex);
+    }
+
+    public boolean isNull(int columnIndex, int recordIndex)
+    {
+        byte bits = pageSlice.getByte(nullBitmapOffsets[columnIndex] + (recordIndex >>> 3));
+        return (bits & (1 << (recordIndex & 7))) != 0;
+    }
+
+    public boolean getBoolean(Column column, int recordIndex)
+    {
+        return getBoolean(column.getIndex(), recordIndex);
+    }
+
+    public boolean getBoolean(int columnIndex, int recordIndex)
+    {
+        return pageSlice.getByte(valueOffsets[columnIndex] + recordIndex) != (byte) 0;
+    }
+
+    public long getLong(Column column, int recordIndex)
+    {
+        return getLong(column.getIndex(), recordIndex);
+    }
+
+    public long getLong(int columnIndex, int recordIndex)
+    {
+        return pageSlice.getLong(valueOffsets[columnIndex] + recordIndex * 8);
+    }
+
+    public double getDouble(Column column, int recordIndex)
+    {
+        return getDouble(column.getIndex(), recordIndex);
+    }
+
+    public double getDouble(int columnIndex, int recordIndex)
+    {
+        return pageSlice.getDouble(valueOffsets[columnIndex] + recordIndex * 8);
+    }
+
+    public String getString(Column column, int recordIndex)
+    {
+        return getString(column.getIndex(), recordIndex);
+    }
+
+    public String getString(int columnIndex, int recordIndex)
+    {
+        int index = pageSlice.getInt(valueOffsets[columnIndex] + recordIndex * 4);
+        return page.getStringReference(index);
+    }
+
+    public Timestamp getTimestamp(Column column, int recordIndex)
+    {
+        return getTimestamp(column.getIndex(), recordIndex);
+    }
+
+    public Timestamp getTimestamp(int columnIndex, int recordIndex)
+    {
+        int offset = valueOffsets[columnIndex];
+        long sec = pageSlice.getLong(offset + recordIndex * 8);
+        int nsec = pageSlice.getInt(ColumnarPageFormat.timestampNanoOffset(offset, pageCapacity) + recordIndex * 4);
+        return Timestamp.ofEpochSecond(sec, nsec);
+    }
+
+    @Override
+    public void close()
+    {
+        page.buffer().release();
+        page = SENTINEL;
+    }
+}
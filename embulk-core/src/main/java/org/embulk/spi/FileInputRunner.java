@@ -1,7 +1,9 @@
 package org.embulk.spi;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import com.google.common.base.Optional;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
 import org.embulk.config.ConfigSource;
@@ -17,7 +19,7 @@ import org.embulk.exec.SamplingParserPlugin;
 import org.embulk.exec.NoSampleException;
 
 public class FileInputRunner
-        implements InputPlugin
+        implements InputPlugin, TaskCostEstimator, CheckpointInputPlugin
 {
     private final FileInputPlugin fileInputPlugin;
 
@@ -73,6 +75,16 @@ public class FileInputRunner
         return fileInputPlugin.resume(task.getFileInputTaskSource(), taskCount, new RunnerControl(task, control));
     }
 
+    @Override
+    public List<Long> estimateTaskCosts(TaskSource taskSource, int taskCount)
+    {
+        if (fileInputPlugin instanceof TaskCostEstimator) {
+            final RunnerTask task = taskSource.loadTask(RunnerTask.class);
+            return ((TaskCostEstimator) fileInputPlugin).estimateTaskCosts(task.getFileInputTaskSource(), taskCount);
+        }
+        return Collections.nCopies(taskCount, 1L);
+    }
+
     @Override
     public ConfigDiff guess(ConfigSource config)
     {
@@ -134,6 +146,20 @@ public class FileInputRunner
     @Override
     public TaskReport run(TaskSource taskSource, Schema schema, int taskIndex,
             PageOutput output)
+    {
+        return run(taskSource, schema, taskIndex, Optional.<TaskReport>absent(), output);
+    }
+
+    // checkpoints are saved only if the parser plugin implements CheckpointParserPlugin
+    @Override
+    public TaskReport resumeTask(TaskSource taskSource, Schema schema, int taskIndex,
+            TaskReport position, PageOutput output)
+    {
+        return run(taskSource, schema, taskIndex, Optional.of(position), output);
+    }
+
+    private TaskReport run(TaskSource taskSource, Schema schema, int taskIndex,
+            Optional<TaskReport> position, PageOutput output)
     {
         final RunnerTask task = taskSource.loadTask(RunnerTask.class);
         List<DecoderPlugin> decoderPlugins = newDecoderPlugins(task);
@@ -144,7 +170,15 @@ public class FileInputRunner
         FileInput fileInput = tran;
         try {
             fileInput = Decoders.open(decoderPlugins, task.getDecoderTaskSources(), fileInput);
-            parserPlugin.run(task.getParserTaskSource(), schema, fileInput, output);
+            if (position.isPresent()) {
+                if (!(parserPlugin instanceof CheckpointParserPlugin)) {
+                    throw new UnsupportedOperationException("Parser plugin doesn't support resuming from a checkpoint");
+                }
+                ((CheckpointParserPlugin) parserPlugin).resumeTask(task.getParserTaskSource(), schema, fileInput,
+                        position.get(), output);
+            } else {
+                parserPlugin.run(task.getParserTaskSource(), schema, fileInput, output);
+            }
 
             TaskReport report = tran.commit();  // TODO check output.finish() is called. wrap
             tran = null;
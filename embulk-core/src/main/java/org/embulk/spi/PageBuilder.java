@@ -1,16 +1,7 @@
 package org.embulk.spi;
 
-import java.io.Serializable;
-import java.util.Map;
-import java.util.List;
 import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Collections;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import io.airlift.slice.Slice;
-import io.airlift.slice.Slices;
 import org.embulk.spi.time.Timestamp;
 
 public class PageBuilder
@@ -28,7 +19,7 @@ public class PageBuilder
     private int count;
     private int position;
     private final byte[] nullBitSet;
-    private final BiMap<String, Integer> stringReferences = HashBiMap.create();
+    private final StringDictionary stringReferences = new StringDictionary();
     private int stringReferenceSize;
     private int nextVariableLengthDataOffset;
 
@@ -48,7 +39,7 @@ public class PageBuilder
     private void newBuffer()
     {
         this.buffer = allocator.allocate(PageFormat.PAGE_HEADER_SIZE + fixedRecordSize);
-        this.bufferSlice = Slices.wrappedBuffer(buffer.array(), buffer.offset(), buffer.capacity());
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
         this.count = 0;
         this.position = PageFormat.PAGE_HEADER_SIZE;
         this.stringReferences.clear();
@@ -119,18 +110,55 @@ public class PageBuilder
 
     public void setString(int columnIndex, String value)
     {
-        Integer reuseIndex = stringReferences.get(value);
-        if (reuseIndex != null) {
-            bufferSlice.setInt(getOffset(columnIndex), reuseIndex);
-        } else {
-            int index = stringReferences.size();
-            stringReferences.put(value, index);
-            bufferSlice.setInt(getOffset(columnIndex), index);
+        int nextIndex = stringReferences.size();
+        int index = stringReferences.add(value);
+        if (index == nextIndex) {
             stringReferenceSize += value.length() * 2 + 4;  // assuming size of char = size of byte * 2 + length
         }
+        bufferSlice.setInt(getOffset(columnIndex), index);
         clearNull(columnIndex);
     }
 
+    public void setStringBytes(Column column, byte[] utf8)
+    {
+        // TODO check type?
+        setStringBytes(column.getIndex(), utf8, 0, utf8.length);
+    }
+
+    public void setStringBytes(int columnIndex, byte[] utf8)
+    {
+        setStringBytes(columnIndex, utf8, 0, utf8.length);
+    }
+
+    public void setStringBytes(int columnIndex, byte[] utf8, int off, int len)
+    {
+        // stored in the record as variable-length data. see page format
+        int dataOffset = nextVariableLengthDataOffset;
+        VariableLengthDataWriter writer = setVariableLengthData(columnIndex, PageFormat.stringData(dataOffset));
+        writer.writeInt(len);
+        writer.writeBytes(utf8, off, len);
+    }
+
+    public void setCharSequence(Column column, CharSequence value)
+    {
+        // TODO check type?
+        setCharSequence(column.getIndex(), value);
+    }
+
+    public void setCharSequence(int columnIndex, CharSequence value)
+    {
+        if (value instanceof Utf8String) {
+            // pass through without decoding
+            Utf8String utf8 = (Utf8String) value;
+            int dataOffset = nextVariableLengthDataOffset;
+            VariableLengthDataWriter writer = setVariableLengthData(columnIndex, PageFormat.stringData(dataOffset));
+            writer.writeInt(utf8.getByteLength());
+            writer.writeBytes(utf8.getSlice(), utf8.getOffset(), utf8.getByteLength());
+        } else {
+            setString(columnIndex, value.toString());
+        }
+    }
+
     public void setTimestamp(Column column, Timestamp value)
     {
         // TODO check type?
@@ -139,42 +167,26 @@ public class PageBuilder
 
     public void setTimestamp(int columnIndex, Timestamp value)
     {
-        int offset = getOffset(columnIndex);
-        bufferSlice.setLong(offset, value.getEpochSecond());
-        bufferSlice.setInt(offset + 8, value.getNano());
-        clearNull(columnIndex);
+        setTimestamp(columnIndex, value.getEpochSecond(), value.getNano());
     }
 
-    private int getOffset(int columnIndex)
+    public void setTimestamp(Column column, long epochSecond, int nano)
     {
-        return position + columnOffsets[columnIndex];
+        // TODO check type?
+        setTimestamp(column.getIndex(), epochSecond, nano);
     }
 
-    private static class StringReferenceSortComparator
-            implements Comparator<Map.Entry<String, Integer>>, Serializable
+    public void setTimestamp(int columnIndex, long epochSecond, int nano)
     {
-        @Override
-        public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2)
-        {
-            return e1.getValue().compareTo(e2.getValue());
-        }
-
-        @Override
-        public boolean equals(Object obj)
-        {
-            return obj instanceof StringReferenceSortComparator;
-        }
+        int offset = getOffset(columnIndex);
+        bufferSlice.setLong(offset, epochSecond);
+        bufferSlice.setInt(offset + 8, nano);
+        clearNull(columnIndex);
     }
 
-    private List<String> getSortedStringReferences()
+    private int getOffset(int columnIndex)
     {
-        ArrayList<Map.Entry<String, Integer>> s = new ArrayList<>(stringReferences.entrySet());
-        Collections.sort(s, new StringReferenceSortComparator());
-        String[] array = new String[s.size()];
-        for (int i=0; i < array.length; i++) {
-            array[i] = s.get(i).getKey();
-        }
-        return Arrays.asList(array);
+        return position + columnOffsets[columnIndex];
     }
 
     public void addRecord()
@@ -202,7 +214,7 @@ public class PageBuilder
             buffer.limit(position);
 
             // flush page
-            Page page = Page.wrap(buffer).setStringReferences(getSortedStringReferences());
+            Page page = Page.wrap(buffer).setStringReferences(stringReferences.takeValues());
             buffer = null;
             bufferSlice = null;
             output.add(page);
@@ -233,21 +245,30 @@ public class PageBuilder
         }
     }
 
-    /* TODO for variable-length types
-    private void flushAndTakeOverRemaingData()
+    private void flushAndTakeOverRemainingData(int requiredOffsetFromPosition)
     {
-        if (page != null) {
-            // page header
-            page.setInt(0, count);
+        Buffer lastBuffer = buffer;
+        Slice lastSlice = bufferSlice;
+        int lastPosition = position;
 
-            Page lastPage = page;
+        this.buffer = allocator.allocate(PageFormat.PAGE_HEADER_SIZE + requiredOffsetFromPosition + stringReferenceSize);
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
+        bufferSlice.setBytes(PageFormat.PAGE_HEADER_SIZE, lastSlice, lastPosition, nextVariableLengthDataOffset);
+        this.position = PageFormat.PAGE_HEADER_SIZE;
 
-            this.page = allocator.allocatePage(Page.PAGE_HEADER_SIZE + fixedRecordSize + nextVariableLengthDataOffset);
-            page.setBytes(Page.PAGE_HEADER_SIZE, lastPage, position, nextVariableLengthDataOffset);
-            this.count = 0;
-            this.position = Page.PAGE_HEADER_SIZE;
+        if (count > 0) {
+            // page header
+            lastSlice.setInt(0, count);
+            lastBuffer.limit(lastPosition);
 
+            // the current record may already refer to the string references.
+            // keep them for the new page and give a copy to the last page.
+            Page lastPage = Page.wrap(lastBuffer).setStringReferences(stringReferences.copyValues());
+            this.count = 0;
             output.add(lastPage);
+        } else {
+            // a single record is larger than the buffer
+            lastBuffer.release();
         }
     }
 
@@ -256,19 +277,24 @@ public class PageBuilder
         return nextVariableLengthDataOffset;
     }
 
+    public VariableLengthDataWriter setVariableLengthData(Column column, int intData)
+    {
+        return setVariableLengthData(column.getIndex(), intData);
+    }
+
     public VariableLengthDataWriter setVariableLengthData(int columnIndex, int intData)
     {
-        // Page.VARIABLE_LENGTH_COLUMN_SIZE is 4 bytes
-        page.setInt(position + columnOffsets[columnIndex], intData);
+        // PageFormat.VARIABLE_LENGTH_COLUMN_SIZE is 4 bytes
+        bufferSlice.setInt(getOffset(columnIndex), intData);
+        clearNull(columnIndex);
         return new VariableLengthDataWriter(nextVariableLengthDataOffset);
     }
 
-    Page ensureVariableLengthDataCapacity(int requiredOffsetFromPosition)
+    private void ensureVariableLengthDataCapacity(int requiredOffsetFromPosition)
     {
-        if (page.capacity() < position + requiredOffsetFromPosition) {
-            flushAndTakeOverRemaingData();
+        if (buffer.capacity() < position + requiredOffsetFromPosition + stringReferenceSize) {
+            flushAndTakeOverRemainingData(requiredOffsetFromPosition);
         }
-        return page;
     }
 
     public class VariableLengthDataWriter
@@ -280,46 +306,52 @@ public class PageBuilder
             this.offsetFromPosition = offsetFromPosition;
         }
 
+        private void advance(int length)
+        {
+            offsetFromPosition += length;
+            nextVariableLengthDataOffset = offsetFromPosition;
+        }
+
         public void writeByte(byte value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 1);
-            page.setByte(position + offsetFromPosition, value);
-            offsetFromPosition += 1;
+            bufferSlice.setByte(position + offsetFromPosition, value);
+            advance(1);
         }
 
         public void writeShort(short value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 2);
-            page.setShort(position + offsetFromPosition, value);
-            offsetFromPosition += 2;
+            bufferSlice.setShort(position + offsetFromPosition, value);
+            advance(2);
         }
 
         public void writeInt(int value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 4);
-            page.setInt(position + offsetFromPosition, value);
-            offsetFromPosition += 4;
+            bufferSlice.setInt(position + offsetFromPosition, value);
+            advance(4);
         }
 
         public void writeLong(long value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 8);
-            page.setLong(position + offsetFromPosition, value);
-            offsetFromPosition += 8;
+            bufferSlice.setLong(position + offsetFromPosition, value);
+            advance(8);
         }
 
         public void writeFloat(float value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 4);
-            page.setFloat(position + offsetFromPosition, value);
-            offsetFromPosition += 4;
+            bufferSlice.setFloat(position + offsetFromPosition, value);
+            advance(4);
         }
 
         public void writeDouble(double value)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + 8);
-            page.setDouble(position + offsetFromPosition, value);
-            offsetFromPosition += 8;
+            bufferSlice.setDouble(position + offsetFromPosition, value);
+            advance(8);
         }
 
         public void writeBytes(byte[] data)
@@ -330,9 +362,15 @@ public class PageBuilder
         public void writeBytes(byte[] data, int off, int len)
         {
             ensureVariableLengthDataCapacity(offsetFromPosition + len);
-            page.setBytes(position + offsetFromPosition, data, off, len);
-            offsetFromPosition += len;
+            bufferSlice.setBytes(position + offsetFromPosition, data, off, len);
+            advance(len);
+        }
+
+        void writeBytes(Slice data, int off, int len)
+        {
+            ensureVariableLengthDataCapacity(offsetFromPosition + len);
+            bufferSlice.setBytes(position + offsetFromPosition, data, off, len);
+            advance(len);
         }
     }
-    */
 }
@@ -6,7 +6,8 @@ abstract class PageFormat
     // +---+
     // | 4 |
     // +---+
-    // count (number of records)
+    // count (number of records). Pages of other layouts start with a negative
+    // value (see ColumnarPageFormat).
 
     private PageFormat() { }
 
@@ -16,6 +17,32 @@ abstract class PageFormat
     // uses 4 bytes integer
     static final int VARIABLE_LENGTH_COLUMN_SIZE = 4;
 
+    // String column
+    // +---+
+    // | 4 |
+    // +---+
+    // index of Page.getStringReferences if >= 0. Otherwise ~(offset from the
+    // beginning of the record) of variable-length data:
+    // +---+--------+
+    // | 4 | length |
+    // +---+--------+
+    // length, UTF-8 bytes
+
+    static boolean isStringReference(int stringData)
+    {
+        return stringData >= 0;
+    }
+
+    static int stringDataOffset(int stringData)
+    {
+        return ~stringData;
+    }
+
+    static int stringData(int variableLengthDataOffset)
+    {
+        return ~variableLengthDataOffset;
+    }
+
     static int nullBitSetSize(Schema schema)
     {
         return (schema.getColumnCount() + 7) / 8;
@@ -1,7 +1,7 @@
 package org.embulk.spi;
 
+import java.nio.charset.StandardCharsets;
 import io.airlift.slice.Slice;
-import io.airlift.slice.Slices;
 import org.embulk.spi.time.Timestamp;
 
 public class PageReader
@@ -30,7 +30,7 @@ public class PageReader
     public static int getRecordCount(Page page)
     {
         Buffer pageBuffer = page.buffer();
-        Slice pageSlice = Slices.wrappedBuffer(pageBuffer.array(), pageBuffer.offset(), pageBuffer.limit());
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
         return pageSlice.getInt(0);  // see page format
     }
 
@@ -40,9 +40,13 @@ public class PageReader
         this.page = SENTINEL;
 
         Buffer pageBuffer = page.buffer();
-        Slice pageSlice = Slices.wrappedBuffer(pageBuffer.array(), pageBuffer.offset(), pageBuffer.limit());
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
 
         pageRecordCount = pageSlice.getInt(0);  // see page format
+        if (pageRecordCount < 0) {
+            // ColumnarPageFormat.MAGIC
+            throw new IllegalArgumentException("Page is not in the row layout");
+        }
         readCount = 0;
         position = PageFormat.PAGE_HEADER_SIZE;
 
@@ -106,8 +110,58 @@ public class PageReader
 
     public String getString(int columnIndex)
     {
-        int index = pageSlice.getInt(getOffset(columnIndex));
-        return page.getStringReference(index);
+        return getString(position, pageSlice.getInt(getOffset(columnIndex)));
+    }
+
+    private String getString(int recordPosition, int stringData)
+    {
+        if (PageFormat.isStringReference(stringData)) {
+            return page.getStringReference(stringData);
+        }
+        return new String(getStringBytes(recordPosition, stringData), StandardCharsets.UTF_8);
+    }
+
+    // Returns a copy of UTF-8 bytes. getCharSequence returns a view without copying.
+    public byte[] getStringBytes(Column column)
+    {
+        // TODO check type?
+        return getStringBytes(column.getIndex());
+    }
+
+    public byte[] getStringBytes(int columnIndex)
+    {
+        int stringData = pageSlice.getInt(getOffset(columnIndex));
+        if (PageFormat.isStringReference(stringData)) {
+            return page.getStringReference(stringData).getBytes(StandardCharsets.UTF_8);
+        }
+        return getStringBytes(position, stringData);
+    }
+
+    private byte[] getStringBytes(int recordPosition, int stringData)
+    {
+        int dataPosition = recordPosition + PageFormat.stringDataOffset(stringData);
+        byte[] bytes = new byte[pageSlice.getInt(dataPosition)];
+        pageSlice.getBytes(dataPosition + 4, bytes);
+        return bytes;
+    }
+
+    // Returns a String if the value is stored as a string reference. Otherwise,
+    // returns a Utf8String view of the page which decodes the bytes only when
+    // it's accessed. The view is valid until the next setPage or close.
+    public CharSequence getCharSequence(Column column)
+    {
+        // TODO check type?
+        return getCharSequence(column.getIndex());
+    }
+
+    public CharSequence getCharSequence(int columnIndex)
+    {
+        int stringData = pageSlice.getInt(getOffset(columnIndex));
+        if (PageFormat.isStringReference(stringData)) {
+            return page.getStringReference(stringData);
+        }
+        int dataPosition = position + PageFormat.stringDataOffset(stringData);
+        return new Utf8String(pageSlice, dataPosition + 4, pageSlice.getInt(dataPosition));
     }
 
     public Timestamp getTimestamp(Column column)
@@ -124,11 +178,189 @@ public class PageReader
         return Timestamp.ofEpochSecond(sec, nsec);
     }
 
+    public long getTimestampEpochSecond(Column column)
+    {
+        // TODO check type?
+        return getTimestampEpochSecond(column.getIndex());
+    }
+
+    public long getTimestampEpochSecond(int columnIndex)
+    {
+        return pageSlice.getLong(getOffset(columnIndex));
+    }
+
+    public int getTimestampNano(Column column)
+    {
+        // TODO check type?
+        return getTimestampNano(column.getIndex());
+    }
+
+    public int getTimestampNano(int columnIndex)
+    {
+        return pageSlice.getInt(getOffset(columnIndex) + 8);
+    }
+
     private int getOffset(int columnIndex)
     {
         return position + columnOffsets[columnIndex];
     }
 
+    // Batch accessors read a column of all records in the current page at
+    // once regardless of the position of nextRecord(). They return the
+    // number of records. Values of null records are 0, false or null.
+
+    public int readNulls(Column column, boolean[] dst)
+    {
+        return readNulls(column.getIndex(), dst);
+    }
+
+    public int readNulls(int columnIndex, boolean[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            dst[i] = (pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0;
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    public int readBooleans(Column column, boolean[] dst)
+    {
+        return readBooleans(column.getIndex(), dst);
+    }
+
+    public int readBooleans(int columnIndex, boolean[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int valueOffset = columnOffsets[columnIndex];
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            if ((pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0) {
+                dst[i] = false;
+            } else {
+                dst[i] = pageSlice.getByte(pos + valueOffset) != (byte) 0;
+            }
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    public int readLongs(Column column, long[] dst)
+    {
+        return readLongs(column.getIndex(), dst);
+    }
+
+    public int readLongs(int columnIndex, long[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int valueOffset = columnOffsets[columnIndex];
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            if ((pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0) {
+                dst[i] = 0L;
+            } else {
+                dst[i] = pageSlice.getLong(pos + valueOffset);
+            }
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    public int readDoubles(Column column, double[] dst)
+    {
+        return readDoubles(column.getIndex(), dst);
+    }
+
+    public int readDoubles(int columnIndex, double[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int valueOffset = columnOffsets[columnIndex];
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            if ((pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0) {
+                dst[i] = 0.0;
+            } else {
+                dst[i] = pageSlice.getDouble(pos + valueOffset);
+            }
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    public int readStrings(Column column, String[] dst)
+    {
+        return readStrings(column.getIndex(), dst);
+    }
+
+    public int readStrings(int columnIndex, String[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int valueOffset = columnOffsets[columnIndex];
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            if ((pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0) {
+                dst[i] = null;
+            } else {
+                dst[i] = getString(pos, pageSlice.getInt(pos + valueOffset));
+            }
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    public int readTimestampEpochSeconds(Column column, long[] dst)
+    {
+        return readTimestampEpochSeconds(column.getIndex(), dst);
+    }
+
+    public int readTimestampEpochSeconds(int columnIndex, long[] dst)
+    {
+        // epoch second is stored at the same place with a long value
+        return readLongs(columnIndex, dst);
+    }
+
+    public int readTimestampNanos(Column column, int[] dst)
+    {
+        return readTimestampNanos(column.getIndex(), dst);
+    }
+
+    public int readTimestampNanos(int columnIndex, int[] dst)
+    {
+        checkBatchLength(dst.length);
+        int nullByteOffset = 4 + (columnIndex >>> 3);
+        int nullMask = 1 << (columnIndex & 7);
+        int valueOffset = columnOffsets[columnIndex] + 8;
+        int pos = PageFormat.PAGE_HEADER_SIZE;
+        for (int i=0; i < pageRecordCount; i++) {
+            if ((pageSlice.getByte(pos + nullByteOffset) & nullMask) != 0) {
+                dst[i] = 0;
+            } else {
+                dst[i] = pageSlice.getInt(pos + valueOffset);
+            }
+            pos += pageSlice.getInt(pos);
+        }
+        return pageRecordCount;
+    }
+
+    private void checkBatchLength(int length)
+    {
+        if (length < pageRecordCount) {
+            throw new IllegalArgumentException(String.format(
+                        "Destination array is too short for %d records: %d", pageRecordCount, length));
+        }
+    }
+
     public boolean nextRecord()
     {
         if (pageRecordCount <= readCount) {
@@ -154,12 +386,27 @@ public class PageReader
         page = SENTINEL;
     }
 
-    /* TODO for variable-length types
+    public VariableLengthDataReader getVariableLengthData(Column column, int variableLengthDataOffset)
+    {
+        return getVariableLengthData(column.getIndex(), variableLengthDataOffset);
+    }
+
     public VariableLengthDataReader getVariableLengthData(int columnIndex, int variableLengthDataOffset)
     {
         return new VariableLengthDataReader(variableLengthDataOffset);
     }
 
+    public int getVariableLengthDataInt(Column column)
+    {
+        return getVariableLengthDataInt(column.getIndex());
+    }
+
+    public int getVariableLengthDataInt(int columnIndex)
+    {
+        // int data given to PageBuilder.setVariableLengthData
+        return pageSlice.getInt(getOffset(columnIndex));
+    }
+
     public class VariableLengthDataReader
     {
         private int offsetFromPosition;
@@ -171,42 +418,42 @@ public class PageReader
 
         public byte readByte()
         {
-            byte value = page.getByte(position + offsetFromPosition);
+            byte value = pageSlice.getByte(position + offsetFromPosition);
             offsetFromPosition += 1;
             return value;
         }
 
         public short readShort()
         {
-            short value = page.getShort(position + offsetFromPosition);
+            short value = pageSlice.getShort(position + offsetFromPosition);
             offsetFromPosition += 2;
             return value;
         }
 
         public int readInt()
         {
-            int value = page.getInt(position + offsetFromPosition);
+            int value = pageSlice.getInt(position + offsetFromPosition);
             offsetFromPosition += 4;
             return value;
         }
 
         public long readLong()
         {
-            long value = page.getLong(position + offsetFromPosition);
+            long value = pageSlice.getLong(position + offsetFromPosition);
             offsetFromPosition += 8;
             return value;
         }
 
         public float readFloat()
         {
-            float value = page.getFloat(position + offsetFromPosition);
+            float value = pageSlice.getFloat(position + offsetFromPosition);
             offsetFromPosition += 4;
             return value;
         }
 
         public double readDouble()
         {
-            double value = page.getDouble(position + offsetFromPosition);
+            double value = pageSlice.getDouble(position + offsetFromPosition);
             offsetFromPosition += 8;
             return value;
         }
@@ -218,9 +465,8 @@ public class PageReader
 
         public void readBytes(byte[] data, int off, int len)
         {
-            page.getBytes(position + offsetFromPosition, data, off, len);
+            pageSlice.getBytes(position + offsetFromPosition, data, off, len);
             offsetFromPosition += len;
         }
     }
-    */
 }
@@ -0,0 +1,11 @@
+package org.embulk.spi;
+
+// FileInput that can skip bytes of the current file without reading them.
+// Parser plugins use it to resume from the byte offset of a checkpoint.
+public interface SeekableFileInput
+        extends FileInput
+{
+    // skips bytes at the beginning of the current file. this must be
+    // called right after nextFile() returns true and before poll().
+    void seek(long offset);
+}
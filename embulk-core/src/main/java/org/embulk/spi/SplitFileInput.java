@@ -0,0 +1,12 @@
+package org.embulk.spi;
+
+// FileInput that may read a part of a file. File input plugins that split
+// a file into byte ranges at record boundaries implement this interface
+// so that parsers don't skip header lines at the middle of a file.
+public interface SplitFileInput
+        extends FileInput
+{
+    // returns false if the current file doesn't start at the beginning
+    // of the original file.
+    boolean isHeadOfFile();
+}
@@ -0,0 +1,100 @@
+package org.embulk.spi;
+
+import java.util.List;
+import java.util.Arrays;
+
+// Append-only dictionary of strings used by page builders to deduplicate
+// string values in a page. Indexes are assigned in insertion order.
+// It's an open-addressing hash table of ints that point to an array of strings.
+class StringDictionary
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] values;
+    private int size;
+
+    private int[] slots;  // index + 1 of the value, or 0 if empty
+    private int mask;
+
+    StringDictionary()
+    {
+        this.values = new String[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+        this.mask = slots.length - 1;
+    }
+
+    // returns index of the value. The value is added if it doesn't exist.
+    int add(String value)
+    {
+        int slot = hash(value) & mask;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (values[entry - 1].equals(value)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = size;
+        if (index == values.length) {
+            grow();
+            return add(value);
+        }
+        values[index] = value;
+        slots[slot] = index + 1;
+        size++;
+        return index;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    // Returns the strings ordered by index and resets this dictionary.
+    // The returned list takes over the internal array without copying.
+    List<String> takeValues()
+    {
+        List<String> list = Arrays.asList(values).subList(0, size);
+        this.values = new String[values.length];  // capacity must stay a power of 2 to match the slots
+        this.size = 0;
+        Arrays.fill(slots, 0);
+        return list;
+    }
+
+    // Returns a copy of the strings ordered by index without resetting this dictionary.
+    List<String> copyValues()
+    {
+        return Arrays.asList(Arrays.copyOf(values, size));
+    }
+
+    void clear()
+    {
+        Arrays.fill(values, 0, size, null);
+        this.size = 0;
+        Arrays.fill(slots, 0);
+    }
+
+    private void grow()
+    {
+        values = Arrays.copyOf(values, values.length * 2);
+        slots = new int[values.length * 2];  // keep load factor <= 0.5
+        mask = slots.length - 1;
+        for (int i=0; i < size; i++) {
+            int slot = hash(values[i]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private static int hash(String value)
+    {
+        int h = value.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,12 @@
+package org.embulk.spi;
+
+import java.util.List;
+import org.embulk.config.TaskSource;
+
+// Optional interface of InputPlugin and FileInputPlugin. Executors use
+// the costs to decide order of tasks.
+public interface TaskCostEstimator
+{
+    // returns relative cost of each task, such as size of the input data.
+    List<Long> estimateTaskCosts(TaskSource taskSource, int taskCount);
+}
@@ -10,6 +10,7 @@ public class TaskState
     private volatile boolean finished = false;
     private volatile Optional<TaskReport> taskReport = Optional.absent();
     private volatile Optional<Throwable> exception = Optional.absent();
+    private volatile Optional<TaskReport> checkpoint = Optional.absent();
 
     public void start()
     {
@@ -78,4 +79,16 @@ public class TaskState
     {
         return exception;
     }
+
+    // position of a task that is not committed yet. A retried or resumed
+    // task continues from this position.
+    public void setCheckpoint(TaskReport checkpoint)
+    {
+        this.checkpoint = Optional.of(checkpoint);
+    }
+
+    public Optional<TaskReport> getCheckpoint()
+    {
+        return checkpoint;
+    }
 }
@@ -0,0 +1,112 @@
+package org.embulk.spi;
+
+import java.nio.charset.StandardCharsets;
+import io.airlift.slice.Slice;
+import io.airlift.slice.Slices;
+
+// CharSequence view of UTF-8 bytes of a string column. The bytes are decoded
+// only when characters are accessed so that a value can be passed through
+// from PageReader to PageBuilder or LineEncoder without charset conversion.
+//
+// A Utf8String returned by PageReader.getCharSequence refers to the memory of
+// the page. It's valid until the reader moves to the next page, and toString()
+// or getBytes() must be used to keep the value longer.
+public final class Utf8String
+        implements CharSequence
+{
+    private final Slice slice;
+    private final int offset;
+    private final int length;
+    private String decoded;
+
+    public Utf8String(byte[] bytes)
+    {
+        this(Slices.wrappedBuffer(bytes), 0, bytes.length);
+    }
+
+    Utf8String(Slice slice, int offset, int length)
+    {
+        this.slice = slice;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    // returns a copy of the bytes
+    public byte[] getBytes()
+    {
+        return slice.getBytes(offset, length);
+    }
+
+    public int getByteLength()
+    {
+        return length;
+    }
+
+    public byte getByte(int index)
+    {
+        return slice.getByte(offset + index);
+    }
+
+    public void getBytes(int index, byte[] dst, int dstOffset, int len)
+    {
+        slice.getBytes(offset + index, dst, dstOffset, len);
+    }
+
+    Slice getSlice()
+    {
+        return slice;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    private String decode()
+    {
+        if (decoded == null) {
+            decoded = slice.toString(offset, length, StandardCharsets.UTF_8);
+        }
+        return decoded;
+    }
+
+    @Override
+    public int length()
+    {
+        return decode().length();
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return decode().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return decode().subSequence(start, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        return decode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof Utf8String)) {
+            return false;
+        }
+        Utf8String o = (Utf8String) obj;
+        return slice.equals(offset, length, o.slice, o.offset, o.length);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return slice.hashCode(offset, length);
+    }
+}
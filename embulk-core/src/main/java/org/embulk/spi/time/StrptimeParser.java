@@ -0,0 +1,604 @@
+package org.embulk.spi.time;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.common.base.Optional;
+
+// Java implementation of Date._strptime of Ruby used by TimestampParser
+// instead of JRubyTimeParserHelper. A format string is compiled into a tree
+// of field matchers once, and parsing a text doesn't allocate objects except
+// the zone name if it differs from the last one.
+//
+// Directives follow date_strptime.c of Ruby including its quirks: a space
+// matches zero or more spaces, %Y and %N read a limited number of digits only
+// if a numeric directive follows, and trailing text is ignored. Fields are
+// combined in the same way as lib/embulk/java/time_helper.rb. compile returns
+// absent if the format includes directives not supported here.
+class StrptimeParser
+        implements JRubyTimeParserHelper
+{
+    private static final String[] MONTH_NAMES = {
+        "January", "February", "March", "April", "May", "June", "July",
+        "August", "September", "October", "November", "December",
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec",
+    };
+
+    private static final String[] DAY_NAMES = {
+        "Sunday", "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday",
+        "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat",
+    };
+
+    // same with the pattern of %z and %Z in date_strptime.c
+    private static final Pattern ZONE_PATTERN = Pattern.compile(
+            "(?:gmt|utc?)?[-+]\\d+(?:[,.:]\\d+(?::\\d+)?)?" +
+            "|(?-i:[\\p{IsAlphabetic}.\\s]+)(?:standard|daylight)\\s+time\\b" +
+            "|(?-i:[\\p{IsAlphabetic}]+)(?:\\sdst)?\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    private interface FieldMatcher
+    {
+        // returns position after the field, or -1 if the text doesn't match
+        int match(StrptimeParser state, String text, int pos);
+    }
+
+    private static class UnsupportedFormatException
+            extends Exception
+    {
+    }
+
+    private final FieldMatcher root;
+    private final Matcher zoneMatcher = ZONE_PATTERN.matcher("");
+
+    // parsed fields. reset by each call of strptimeUsec
+    private long year;
+    private int mon;
+    private int mday;
+    private int hour;
+    private int min;
+    private int sec;
+    private long usec;
+    private long seconds;
+    private long cent;
+    private int merid;
+    private boolean hasYear;
+    private boolean hasMon;
+    private boolean hasMday;
+    private boolean hasHour;
+    private boolean hasMin;
+    private boolean hasSec;
+    private boolean hasUsec;
+    private boolean hasSeconds;
+    private boolean hasCent;
+    private boolean hasMerid;
+    private String text;
+    private int zoneStart;
+    private int zoneEnd;
+    private String lastZone;
+
+    private StrptimeParser(FieldMatcher root)
+    {
+        this.root = root;
+    }
+
+    public static Optional<StrptimeParser> compile(String format)
+    {
+        try {
+            return Optional.of(new StrptimeParser(compileSequence(format)));
+        } catch (UnsupportedFormatException ex) {
+            return Optional.absent();
+        }
+    }
+
+    @Override
+    public long strptimeUsec(String text) throws TimestampParseException
+    {
+        hasYear = hasMon = hasMday = hasHour = hasMin = hasSec = false;
+        hasUsec = hasSeconds = hasCent = hasMerid = false;
+        this.text = null;
+        zoneStart = -1;
+
+        if (root.match(this, text, 0) < 0) {
+            throw new TimestampParseException("Failed to parse '" + text + "'");
+        }
+        // trailing text is ignored
+
+        if (hasSeconds) {
+            return seconds * 1000000 + (hasUsec ? usec : 0);
+        }
+
+        if (hasCent && hasYear) {
+            year += cent * 100;
+        }
+        if (hasMerid && hasHour) {
+            hour = hour % 12 + merid;
+        }
+        if (hasHour && hour == 24 && ((hasMin && min != 0) || (hasSec && sec != 0))) {
+            throw new TimestampParseException("Failed to parse '" + text + "'");
+        }
+
+        long days = daysFromCivil(hasYear ? year : 1970, hasMon ? mon : 1) + (hasMday ? mday : 1) - 1;
+        long epochSecond = days * 86400 + (hasHour ? hour : 0) * 3600 + (hasMin ? min : 0) * 60 + (hasSec ? sec : 0);
+        if (zoneStart >= 0) {
+            this.text = text;
+        }
+        return epochSecond * 1000000 + (hasUsec ? usec : 0);
+    }
+
+    @Override
+    public String getZone()
+    {
+        if (text == null) {
+            return null;
+        }
+        // returns the same instance for the same zone to skip allocation
+        int length = zoneEnd - zoneStart;
+        if (lastZone == null || lastZone.length() != length || !text.regionMatches(zoneStart, lastZone, 0, length)) {
+            lastZone = text.substring(zoneStart, zoneEnd);
+        }
+        return lastZone;
+    }
+
+    // number of days from 1970-01-01 to the first day of the month in the
+    // proleptic Gregorian calendar
+    static long daysFromCivil(long year, int mon)
+    {
+        long y = mon <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (mon + (mon > 2 ? -3 : 9)) + 2) / 5;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static FieldMatcher compileSequence(String format) throws UnsupportedFormatException
+    {
+        final List<FieldMatcher> matchers = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int fi = 0;
+        while (fi < format.length()) {
+            char c = format.charAt(fi);
+            FieldMatcher matcher;
+            if (isSpace(c)) {
+                matcher = SPACES;
+                fi++;
+            } else if (c == '%' && fi + 1 < format.length()) {
+                matcher = compileDirective(format.charAt(fi + 1), isNumPattern(format, fi + 2));
+                fi += 2;
+            } else {
+                literal.append(c);
+                fi++;
+                continue;
+            }
+            if (literal.length() > 0) {
+                matchers.add(newLiteral(literal.toString()));
+                literal.setLength(0);
+            }
+            if (matcher != null) {
+                matchers.add(matcher);
+            }
+        }
+        if (literal.length() > 0) {
+            matchers.add(newLiteral(literal.toString()));
+        }
+
+        if (matchers.size() == 1) {
+            return matchers.get(0);
+        }
+        final FieldMatcher[] array = matchers.toArray(new FieldMatcher[matchers.size()]);
+        return new FieldMatcher() {
+            public int match(StrptimeParser state, String text, int pos)
+            {
+                for (FieldMatcher matcher : array) {
+                    pos = matcher.match(state, text, pos);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                }
+                return pos;
+            }
+        };
+    }
+
+    // returns null for directives that match nothing
+    private static FieldMatcher compileDirective(char c, final boolean numPattern)
+            throws UnsupportedFormatException
+    {
+        switch (c) {
+        case 'Y':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int sign = 1;
+                    if (pos < text.length() && isSign(text.charAt(pos))) {
+                        sign = text.charAt(pos) == '-' ? -1 : 1;
+                        pos++;
+                    }
+                    int end = readDigits(text, pos, numPattern ? 4 : 18);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    state.year = sign * parseLong(text, pos, end);
+                    state.hasYear = true;
+                    return end;
+                }
+            };
+        case 'C':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int sign = 1;
+                    if (pos < text.length() && isSign(text.charAt(pos))) {
+                        sign = text.charAt(pos) == '-' ? -1 : 1;
+                        pos++;
+                    }
+                    int end = readDigits(text, pos, numPattern ? 2 : 16);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    state.cent = sign * parseLong(text, pos, end);
+                    state.hasCent = true;
+                    return end;
+                }
+            };
+        case 'y':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int end = readDigits(text, pos, 2);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    long y = parseLong(text, pos, end);
+                    state.year = y;
+                    state.hasYear = true;
+                    if (!state.hasCent) {
+                        state.cent = y >= 69 ? 19 : 20;
+                        state.hasCent = true;
+                    }
+                    return end;
+                }
+            };
+        case 'm':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int end = readDigits(text, pos, 2);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    int n = (int) parseLong(text, pos, end);
+                    if (n < 1 || 12 < n) {
+                        return -1;
+                    }
+                    state.mon = n;
+                    state.hasMon = true;
+                    return end;
+                }
+            };
+        case 'd':
+        case 'e':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int end = readPaddedDigits(text, pos);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    int n = (int) parseLong(text, text.charAt(pos) == ' ' ? pos + 1 : pos, end);
+                    if (n < 1 || 31 < n) {
+                        return -1;
+                    }
+                    state.mday = n;
+                    state.hasMday = true;
+                    return end;
+                }
+            };
+        case 'H':
+        case 'k':
+            return newHourMatcher(0, 24);
+        case 'I':
+        case 'l':
+            return newHourMatcher(1, 12);
+        case 'M':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int end = readDigits(text, pos, 2);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    int n = (int) parseLong(text, pos, end);
+                    if (59 < n) {
+                        return -1;
+                    }
+                    state.min = n;
+                    state.hasMin = true;
+                    return end;
+                }
+            };
+        case 'S':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    int end = readDigits(text, pos, 2);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    int n = (int) parseLong(text, pos, end);
+                    if (60 < n) {
+                        return -1;
+                    }
+                    state.sec = n;
+                    state.hasSec = true;
+                    return end;
+                }
+            };
+        case 'L':
+        case 'N':
+            final int width = c == 'L' ? 3 : 9;
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    // JRuby counts the sign as a digit of the fraction
+                    int sign = 0;
+                    if (pos < text.length() && isSign(text.charAt(pos))) {
+                        sign = text.charAt(pos) == '-' ? -1 : 1;
+                        pos++;
+                    }
+                    int end = readDigits(text, pos, numPattern ? width : Integer.MAX_VALUE);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    // fraction is truncated to microseconds
+                    long usec = 0;
+                    int start = sign == 0 ? pos : pos - 1;
+                    for (int i = start; i < start + 6; i++) {
+                        usec *= 10;
+                        if (pos <= i && i < end) {
+                            usec += text.charAt(i) - '0';
+                        }
+                    }
+                    state.usec = sign < 0 ? -usec : usec;
+                    state.hasUsec = true;
+                    return end;
+                }
+            };
+        case 's':
+        case 'Q':
+            final boolean millis = c == 'Q';
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    // Ruby accepts only '-' here
+                    int sign = 1;
+                    if (pos < text.length() && text.charAt(pos) == '-') {
+                        sign = -1;
+                        pos++;
+                    }
+                    int end = readDigits(text, pos, 18);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    long n = sign * parseLong(text, pos, end);
+                    if (millis) {
+                        long msec = n % 1000;
+                        state.seconds = n / 1000 - (msec < 0 ? 1 : 0);
+                        state.usec = (msec < 0 ? msec + 1000 : msec) * 1000;
+                        state.hasUsec = true;
+                    } else {
+                        state.seconds = n;
+                    }
+                    state.hasSeconds = true;
+                    return end;
+                }
+            };
+        case 'b':
+        case 'B':
+        case 'h':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    for (int i=0; i < MONTH_NAMES.length; i++) {
+                        String name = MONTH_NAMES[i];
+                        if (text.regionMatches(true, pos, name, 0, name.length())) {
+                            state.mon = i % 12 + 1;
+                            state.hasMon = true;
+                            return pos + name.length();
+                        }
+                    }
+                    return -1;
+                }
+            };
+        case 'a':
+        case 'A':
+            // day of the week is not used
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    for (String name : DAY_NAMES) {
+                        if (text.regionMatches(true, pos, name, 0, name.length())) {
+                            return pos + name.length();
+                        }
+                    }
+                    return -1;
+                }
+            };
+        case 'p':
+        case 'P':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    if (pos >= text.length()) {
+                        return -1;
+                    }
+                    char m = Character.toUpperCase(text.charAt(pos));
+                    if (m != 'A' && m != 'P') {
+                        return -1;
+                    }
+                    int end;
+                    if (text.regionMatches(true, pos + 1, "M", 0, 1)) {
+                        end = pos + 2;
+                    } else if (text.regionMatches(true, pos + 1, ".M.", 0, 3)) {
+                        end = pos + 4;
+                    } else {
+                        return -1;
+                    }
+                    state.merid = m == 'P' ? 12 : 0;
+                    state.hasMerid = true;
+                    return end;
+                }
+            };
+        case 'z':
+        case 'Z':
+            return new FieldMatcher() {
+                public int match(StrptimeParser state, String text, int pos)
+                {
+                    Matcher m = state.zoneMatcher;
+                    m.reset(text);
+                    m.region(pos, text.length());
+                    if (!m.lookingAt()) {
+                        return -1;
+                    }
+                    state.zoneStart = pos;
+                    state.zoneEnd = m.end();
+                    return m.end();
+                }
+            };
+        case 'n':
+        case 't':
+            return SPACES;
+        case '%':
+            return newLiteral("%");
+        case 'c':
+            return compileSequence("%a %b %e %H:%M:%S %Y");
+        case 'D':
+        case 'x':
+            return compileSequence("%m/%d/%y");
+        case 'F':
+            return compileSequence("%Y-%m-%d");
+        case 'R':
+            return compileSequence("%H:%M");
+        case 'r':
+            return compileSequence("%I:%M:%S %p");
+        case 'T':
+        case 'X':
+            return compileSequence("%H:%M:%S");
+        case 'v':
+            return compileSequence("%e-%b-%Y");
+        case '+':
+            return compileSequence("%a %b %e %H:%M:%S %Z %Y");
+        default:
+            // %j, %U, %G, %E, %O, %:z, widths and so on
+            throw new UnsupportedFormatException();
+        }
+    }
+
+    private static FieldMatcher newHourMatcher(final int minHour, final int maxHour)
+    {
+        return new FieldMatcher() {
+            public int match(StrptimeParser state, String text, int pos)
+            {
+                int end = readPaddedDigits(text, pos);
+                if (end < 0) {
+                    return -1;
+                }
+                int n = (int) parseLong(text, text.charAt(pos) == ' ' ? pos + 1 : pos, end);
+                if (n < minHour || maxHour < n) {
+                    return -1;
+                }
+                state.hour = n;
+                state.hasHour = true;
+                return end;
+            }
+        };
+    }
+
+    private static FieldMatcher newLiteral(final String literal)
+    {
+        return new FieldMatcher() {
+            public int match(StrptimeParser state, String text, int pos)
+            {
+                if (!text.startsWith(literal, pos)) {
+                    return -1;
+                }
+                return pos + literal.length();
+            }
+        };
+    }
+
+    private static final FieldMatcher SPACES = new FieldMatcher() {
+        public int match(StrptimeParser state, String text, int pos)
+        {
+            while (pos < text.length() && isSpace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+    };
+
+    // true if the next directive reads digits. numeric fields followed by it
+    // read limited number of digits.
+    private static boolean isNumPattern(String format, int fi)
+    {
+        if (fi >= format.length()) {
+            return false;
+        }
+        char c = format.charAt(fi);
+        if (isDigit(c)) {
+            return true;
+        }
+        if (c == '%' && fi + 1 < format.length()) {
+            char d = format.charAt(fi + 1);
+            if ((d == 'E' || d == 'O') && fi + 2 < format.length()) {
+                d = format.charAt(fi + 2);
+            }
+            return "CDdeFGgHIjkLlMmNQRrSsTUuVvWwXxYy".indexOf(d) >= 0 || isDigit(d);
+        }
+        return false;
+    }
+
+    // returns position after 1 to maxDigits digits, or -1 if no digits
+    private static int readDigits(String text, int pos, int maxDigits)
+    {
+        int end = pos;
+        while (end < text.length() && end - pos < maxDigits && isDigit(text.charAt(end))) {
+            end++;
+        }
+        return end == pos ? -1 : end;
+    }
+
+    // " 1" or "01"
+    private static int readPaddedDigits(String text, int pos)
+    {
+        if (pos < text.length() && text.charAt(pos) == ' ') {
+            return readDigits(text, pos + 1, 1);
+        }
+        return readDigits(text, pos, 2);
+    }
+
+    private static long parseLong(String text, int start, int end)
+    {
+        long n = 0;
+        for (int i = start; i < end; i++) {
+            n = n * 10 + (text.charAt(i) - '0');
+        }
+        return n;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return '0' <= c && c <= '9';
+    }
+
+    private static boolean isSign(char c)
+    {
+        return c == '+' || c == '-';
+    }
+
+    private static boolean isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+    }
+}
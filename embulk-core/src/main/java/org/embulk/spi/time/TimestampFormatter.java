@@ -52,6 +52,8 @@ public class TimestampFormatter
 
     private final RubyDateFormat dateFormat;
     private final DateTimeZone timeZone;
+    private long lastEpochSecond;
+    private DateTime lastDateTime;
 
     @Deprecated
     public TimestampFormatter(String format, FormatterTask task)
@@ -88,10 +90,25 @@ public class TimestampFormatter
     }
 
     public String format(Timestamp value)
+    {
+        return format(value.getEpochSecond(), value.getNano());
+    }
+
+    public void format(long epochSecond, int nano, LineEncoder encoder)
+    {
+        encoder.addText(format(epochSecond, nano));
+    }
+
+    public String format(long epochSecond, int nano)
     {
         // TODO optimize by using reused StringBuilder
-        dateFormat.setDateTime(new DateTime(value.getEpochSecond()*1000, timeZone));
-        dateFormat.setNSec(value.getNano());
+        if (lastDateTime == null || lastEpochSecond != epochSecond) {
+            // consecutive values often have the same second
+            lastDateTime = new DateTime(epochSecond*1000, timeZone);
+            lastEpochSecond = epochSecond;
+        }
+        dateFormat.setDateTime(lastDateTime);
+        dateFormat.setNSec(nano);
         return dateFormat.format(null);
     }
 }
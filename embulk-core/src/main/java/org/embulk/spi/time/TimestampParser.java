@@ -1,5 +1,7 @@
 package org.embulk.spi.time;
 
+import java.util.Map;
+import java.util.HashMap;
 import org.joda.time.DateTimeZone;
 import com.google.common.base.Optional;
 import org.jruby.embed.ScriptingContainer;
@@ -47,8 +49,23 @@ public class TimestampParser
         public Optional<String> getFormat();
     }
 
+    private static final int MAX_CACHED_ZONES = 256;
+
     private final JRubyTimeParserHelper helper;
     private final DateTimeZone defaultTimeZone;
+    private int parsedNano;
+
+    // time zones parsed from texts. invalid names are not cached.
+    private final Map<String, DateTimeZone> zoneCache = new HashMap<>();
+    private String lastZoneName;
+    private DateTimeZone lastZone;
+
+    // offset of a time zone which is constant from offsetStart (inclusive)
+    // to offsetEnd (exclusive) in UTC millis
+    private DateTimeZone offsetZone;
+    private long offsetStart;
+    private long offsetEnd;
+    private int offset;
 
     @Deprecated
     public TimestampParser(String format, ParserTask task)
@@ -70,9 +87,15 @@ public class TimestampParser
 
     public TimestampParser(ScriptingContainer jruby, String format, DateTimeZone defaultTimeZone)
     {
-        JRubyTimeParserHelperFactory helperFactory = (JRubyTimeParserHelperFactory) jruby.runScriptlet("Embulk::Java::TimeParserHelper::Factory.new");
-        // TODO get default current time from ExecTask.getExecTimestamp
-        this.helper = (JRubyTimeParserHelper) helperFactory.newInstance(format, 1970, 1, 1, 0, 0, 0, 0);  // TODO default time zone
+        Optional<StrptimeParser> strptime = StrptimeParser.compile(format);
+        if (strptime.isPresent()) {
+            this.helper = strptime.get();
+        } else {
+            // falls back to Date._strptime of Ruby if the format includes unsupported directives
+            JRubyTimeParserHelperFactory helperFactory = (JRubyTimeParserHelperFactory) jruby.runScriptlet("Embulk::Java::TimeParserHelper::Factory.new");
+            // TODO get default current time from ExecTask.getExecTimestamp
+            this.helper = (JRubyTimeParserHelper) helperFactory.newInstance(format, 1970, 1, 1, 0, 0, 0, 0);  // TODO default time zone
+        }
         this.defaultTimeZone = defaultTimeZone;
     }
 
@@ -82,14 +105,21 @@ public class TimestampParser
     }
 
     public Timestamp parse(String text) throws TimestampParseException
+    {
+        long sec = parseEpochSecond(text);
+        return Timestamp.ofEpochSecond(sec, parsedNano);
+    }
+
+    // Parses text without allocating a Timestamp. Nanosecond of the parsed
+    // value is available using getParsedNano() until next call.
+    public long parseEpochSecond(String text) throws TimestampParseException
     {
         long localUsec = helper.strptimeUsec(text);
         String zone = helper.getZone();
 
         DateTimeZone timeZone = defaultTimeZone;
         if (zone != null) {
-            // TODO cache parsed zone?
-            timeZone = parseDateTimeZone(zone);
+            timeZone = getDateTimeZone(zone);
             if (timeZone == null) {
                 throw new TimestampParseException("Invalid time zone name '" + text + "'");
             }
@@ -97,8 +127,69 @@ public class TimestampParser
 
         long localSec = localUsec / 1000000;
         long usec = localUsec % 1000000;
-        long sec = timeZone.convertLocalToUTC(localSec*1000, false) / 1000;
+        if (usec < 0) {
+            // before 1970-01-01
+            localSec--;
+            usec += 1000000;
+        }
+        long sec = convertLocalToUTC(timeZone, localSec*1000) / 1000;
+
+        this.parsedNano = (int) (usec * 1000);
+        return sec;
+    }
+
+    public int getParsedNano()
+    {
+        return parsedNano;
+    }
+
+    private DateTimeZone getDateTimeZone(String zone)
+    {
+        if (zone.equals(lastZoneName)) {
+            return lastZone;
+        }
+        DateTimeZone timeZone = zoneCache.get(zone);
+        if (timeZone == null) {
+            timeZone = parseDateTimeZone(zone);
+            if (timeZone == null) {
+                return null;
+            }
+            if (zoneCache.size() >= MAX_CACHED_ZONES) {
+                zoneCache.clear();
+            }
+            zoneCache.put(zone, timeZone);
+        }
+        lastZoneName = zone;
+        lastZone = timeZone;
+        return timeZone;
+    }
+
+    // same with timeZone.convertLocalToUTC(localMillis, false) but skips
+    // lookup of transitions if the offset is fixed or the same with the
+    // last value
+    private long convertLocalToUTC(DateTimeZone timeZone, long localMillis)
+    {
+        if (timeZone.isFixed()) {
+            return localMillis - timeZone.getOffset(localMillis);
+        }
+
+        if (timeZone == offsetZone) {
+            // both of local millis and the result must be in the interval
+            // so that DateTimeZone.convertLocalToUTC takes the same offset
+            long utcMillis = localMillis - offset;
+            if (offsetStart <= localMillis && localMillis < offsetEnd &&
+                    offsetStart <= utcMillis && utcMillis < offsetEnd) {
+                return utcMillis;
+            }
+        }
 
-        return Timestamp.ofEpochSecond(sec, usec * 1000);
+        long utcMillis = timeZone.convertLocalToUTC(localMillis, false);
+        long prev = timeZone.previousTransition(utcMillis);  // last millis before the transition
+        long next = timeZone.nextTransition(utcMillis);
+        offsetZone = timeZone;
+        offset = timeZone.getOffset(utcMillis);
+        offsetStart = prev < utcMillis ? prev + 1 : Long.MIN_VALUE;
+        offsetEnd = next > utcMillis ? next : Long.MAX_VALUE;
+        return utcMillis;
     }
 }
@@ -0,0 +1,197 @@
+package org.embulk.spi.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.google.common.base.Throwables;
+import org.embulk.exec.ExecutionInterruptedException;
+import org.embulk.exec.SetCurrentThreadName;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+// A PageOutput that passes pages to the next stage through a bounded queue.
+// The next stage runs on a thread of the given executor. add() blocks while
+// the queue is full. finish() returns after output.finish() is completed by
+// the next stage so that commit and abort keep the same semantics with a
+// single-threaded pipeline. Errors of the next stage are thrown from add(),
+// finish() or stop(). add() can be called by multiple threads.
+public class AsyncPageOutput
+        implements PageOutput
+{
+    private static final Page FINISH = Page.allocate(0);
+
+    private final PageOutput output;
+    private final BlockingQueue<Page> queue;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Future<Void> consumer;
+    private long added;      // guarded by this
+    private long processed;  // guarded by this
+
+    public AsyncPageOutput(final ExecSession exec, ExecutorService executor, int queueSize, final String stageName,
+            final PageOutput output)
+    {
+        this.output = output;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.consumer = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception
+            {
+                if (!started.compareAndSet(false, true)) {
+                    // stop() is called before this stage starts
+                    done.countDown();
+                    return null;
+                }
+                try (SetCurrentThreadName dontCare = new SetCurrentThreadName(stageName)) {
+                    return Exec.doWith(exec, new ExecAction<Void>() {
+                        public Void run() throws InterruptedException
+                        {
+                            consume();
+                            return null;
+                        }
+                    });
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private void consume() throws InterruptedException
+    {
+        while (true) {
+            Page page = queue.take();
+            if (page == FINISH) {
+                output.finish();
+                return;
+            }
+            output.add(page);
+            synchronized (this) {
+                processed++;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        try {
+            put(page);
+            synchronized (this) {
+                added++;
+            }
+        } catch (RuntimeException | Error ex) {
+            page.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        put(FINISH);
+        try {
+            consumer.get();
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        } catch (ExecutionException ex) {
+            throw propagateCause(ex);
+        }
+    }
+
+    // Waits until the next stage processes all added pages. This is used when
+    // an input plugin doesn't call finish() before commit.
+    public void sync()
+    {
+        synchronized (this) {
+            while (processed < added && !consumer.isDone()) {
+                try {
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    throw new ExecutionInterruptedException(ex);
+                }
+            }
+        }
+        if (consumer.isDone()) {
+            checkConsumer();
+        }
+    }
+
+    private void put(Page page)
+    {
+        try {
+            while (!queue.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                if (consumer.isDone()) {
+                    checkConsumer();
+                    throw new IllegalStateException("Next stage is already finished");
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
+
+    private void checkConsumer()
+    {
+        try {
+            consumer.get();
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        } catch (ExecutionException ex) {
+            throw propagateCause(ex);
+        }
+    }
+
+    private static RuntimeException propagateCause(ExecutionException ex)
+    {
+        Throwable cause = ex.getCause();
+        if (cause instanceof ExecutionException && cause.getCause() != null) {
+            cause = cause.getCause();  // thrown through Exec.doWith
+        }
+        throw Throwables.propagate(cause);
+    }
+
+    // Stops the next stage and releases pages remaining in the queue.
+    // This method doesn't close the output.
+    public void stop()
+    {
+        // if the next stage hasn't started, it never runs. a cancelled task
+        // that didn't start doesn't count down done.
+        boolean neverStarted = started.compareAndSet(false, true);
+        if (!consumer.isDone()) {
+            consumer.cancel(true);
+        }
+        if (!neverStarted) {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Page page;
+        while ((page = queue.poll()) != null) {
+            if (page != FINISH) {
+                page.release();
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            stop();
+        } finally {
+            output.close();
+        }
+    }
+}
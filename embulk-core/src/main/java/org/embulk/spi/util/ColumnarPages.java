@@ -0,0 +1,198 @@
+package org.embulk.spi.util;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.ColumnarPageBuilder;
+import org.embulk.spi.ColumnarPageReader;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+public abstract class ColumnarPages
+{
+    private ColumnarPages() { }
+
+    // Returns a PageOutput that receives pages of the row-oriented layout
+    // and writes pages of the columnar layout to the output.
+    public static PageOutput toColumnar(BufferAllocator allocator, final Schema schema, final PageOutput columnarOutput)
+    {
+        final PageReader reader = new PageReader(schema);
+        final ColumnarPageBuilder builder = new ColumnarPageBuilder(allocator, schema, columnarOutput);
+        final ColumnVisitor copier = new ColumnVisitor() {
+            public void booleanColumn(Column column)
+            {
+                if (reader.isNull(column)) {
+                    builder.setNull(column);
+                } else {
+                    builder.setBoolean(column, reader.getBoolean(column));
+                }
+            }
+
+            public void longColumn(Column column)
+            {
+                if (reader.isNull(column)) {
+                    builder.setNull(column);
+                } else {
+                    builder.setLong(column, reader.getLong(column));
+                }
+            }
+
+            public void doubleColumn(Column column)
+            {
+                if (reader.isNull(column)) {
+                    builder.setNull(column);
+                } else {
+                    builder.setDouble(column, reader.getDouble(column));
+                }
+            }
+
+            public void stringColumn(Column column)
+            {
+                if (reader.isNull(column)) {
+                    builder.setNull(column);
+                } else {
+                    builder.setString(column, reader.getString(column));
+                }
+            }
+
+            public void timestampColumn(Column column)
+            {
+                if (reader.isNull(column)) {
+                    builder.setNull(column);
+                } else {
+                    builder.setTimestamp(column, reader.getTimestamp(column));
+                }
+            }
+        };
+
+        return new PageOutput() {
+            public void add(Page page)
+            {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    schema.visitColumns(copier);
+                    builder.addRecord();
+                }
+            }
+
+            public void finish()
+            {
+                builder.finish();
+            }
+
+            public void close()
+            {
+                try {
+                    reader.close();
+                    builder.close();
+                } finally {
+                    columnarOutput.close();
+                }
+            }
+        };
+    }
+
+    // Returns a PageOutput that receives pages of the columnar layout
+    // and writes pages of the row-oriented layout to the output.
+    public static PageOutput toRows(BufferAllocator allocator, final Schema schema, final PageOutput rowOutput)
+    {
+        final ColumnarPageReader reader = new ColumnarPageReader(schema);
+        final PageBuilder builder = new PageBuilder(allocator, schema, rowOutput);
+        final ColumnarValueCopier copier = new ColumnarValueCopier(reader, builder);
+
+        return new PageOutput() {
+            public void add(Page page)
+            {
+                reader.setPage(page);
+                int count = reader.getRecordCount();
+                for (int i=0; i < count; i++) {
+                    copier.setRecordIndex(i);
+                    schema.visitColumns(copier);
+                    builder.addRecord();
+                }
+            }
+
+            public void finish()
+            {
+                builder.finish();
+            }
+
+            public void close()
+            {
+                try {
+                    reader.close();
+                    builder.close();
+                } finally {
+                    rowOutput.close();
+                }
+            }
+        };
+    }
+
+    private static class ColumnarValueCopier
+            implements ColumnVisitor
+    {
+        private final ColumnarPageReader reader;
+        private final PageBuilder builder;
+        private int recordIndex;
+
+        public ColumnarValueCopier(ColumnarPageReader reader, PageBuilder builder)
+        {
+            this.reader = reader;
+            this.builder = builder;
+        }
+
+        public void setRecordIndex(int recordIndex)
+        {
+            this.recordIndex = recordIndex;
+        }
+
+        public void booleanColumn(Column column)
+        {
+            if (reader.isNull(column, recordIndex)) {
+                builder.setNull(column);
+            } else {
+                builder.setBoolean(column, reader.getBoolean(column, recordIndex));
+            }
+        }
+
+        public void longColumn(Column column)
+        {
+            if (reader.isNull(column, recordIndex)) {
+                builder.setNull(column);
+            } else {
+                builder.setLong(column, reader.getLong(column, recordIndex));
+            }
+        }
+
+        public void doubleColumn(Column column)
+        {
+            if (reader.isNull(column, recordIndex)) {
+                builder.setNull(column);
+            } else {
+                builder.setDouble(column, reader.getDouble(column, recordIndex));
+            }
+        }
+
+        public void stringColumn(Column column)
+        {
+            if (reader.isNull(column, recordIndex)) {
+                builder.setNull(column);
+            } else {
+                builder.setString(column, reader.getString(column, recordIndex));
+            }
+        }
+
+        public void timestampColumn(Column column)
+        {
+            if (reader.isNull(column, recordIndex)) {
+                builder.setNull(column);
+            } else {
+                builder.setTimestamp(column, reader.getTimestamp(column, recordIndex));
+            }
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package org.embulk.spi.util;
 
 import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import com.google.common.base.Optional;
 import org.embulk.config.TaskSource;
 import org.embulk.config.TaskReport;
 import org.embulk.spi.ExecSession;
 import org.embulk.spi.ProcessState;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.CheckpointPageOutput;
+import org.embulk.spi.CheckpointTransactionalPageOutput;
+import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
 import org.embulk.spi.InputPlugin;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.CheckpointInputPlugin;
+import org.embulk.spi.CheckpointOutputPlugin;
 import org.embulk.spi.ProcessTask;
+import org.embulk.exec.ExecutionInterruptedException;
 import org.embulk.plugin.compat.PluginWrappers;
 
 public abstract class Executors
@@ -27,9 +37,61 @@ public abstract class Executors
         public void outputCommitted(TaskReport report);
     }
 
+    // ProcessStateCallback that is also notified of pages passed to the output plugin
+    public interface ProcessStatsCallback
+            extends ProcessStateCallback
+    {
+        public void outputPageAdded(int recordCount, int byteSize);
+    }
+
+    // ProcessStateCallback that can stop the running task. Plugins may not
+    // respond to interruption of the thread, so the task checks this at each page.
+    public interface CancellableCallback
+            extends ProcessStateCallback
+    {
+        public boolean isCancelled();
+    }
+
+    // ProcessStateCallback that limits number of tasks running CPU-bound work.
+    // The task holds a CPU permit while input and filter plugins run and
+    // releases it while the output plugin runs on the same thread because
+    // output plugins usually wait for the destination.
+    public interface CpuBoundCallback
+            extends ProcessStateCallback
+    {
+        public void acquireCpu();
+
+        public void releaseCpu();
+    }
+
+    // ProcessStateCallback that saves checkpoints of the task. If the input
+    // plugin implements CheckpointInputPlugin and the output plugin
+    // implements CheckpointOutputPlugin, the task resumes from the checkpoint
+    // returned by getCheckpoint. Tasks with filter plugins don't save
+    // checkpoints because filters may buffer records.
+    public interface CheckpointCallback
+            extends ProcessStateCallback
+    {
+        public Optional<TaskReport> getCheckpoint();
+
+        public boolean isCheckpointRequired();
+
+        public void checkpointed(TaskReport checkpoint);
+    }
+
     public static void process(ExecSession exec,
             ProcessTask task, int taskIndex,
             ProcessStateCallback callback)
+    {
+        process(exec, task, taskIndex, null, 0, callback);
+    }
+
+    // If stageExecutor is not null, input, filters and output run on separated
+    // threads connected by queues of stageQueueSize pages.
+    public static void process(ExecSession exec,
+            ProcessTask task, int taskIndex,
+            ExecutorService stageExecutor, int stageQueueSize,
+            ProcessStateCallback callback)
     {
         InputPlugin inputPlugin = exec.newPlugin(InputPlugin.class, task.getInputPluginType());
         List<FilterPlugin> filterPlugins = Filters.newFilterPlugins(exec, task.getFilterPluginTypes());
@@ -41,6 +103,21 @@ public abstract class Executors
                 inputPlugin, task.getInputSchema(), task.getInputTaskSource(),
                 filterPlugins, task.getFilterSchemas(), task.getFilterTaskSources(),
                 outputPlugin, task.getOutputSchema(), task.getOutputTaskSource(),
+                stageExecutor, stageQueueSize,
+                callback);
+    }
+
+    public static void process(ExecSession exec, int taskIndex,
+            InputPlugin inputPlugin, Schema inputSchema, TaskSource inputTaskSource,
+            List<FilterPlugin> filterPlugins, List<Schema> filterSchemas, List<TaskSource> filterTaskSources,
+            OutputPlugin outputPlugin, Schema outputSchema, TaskSource outputTaskSource,
+            ProcessStateCallback callback)
+    {
+        process(exec, taskIndex,
+                inputPlugin, inputSchema, inputTaskSource,
+                filterPlugins, filterSchemas, filterTaskSources,
+                outputPlugin, outputSchema, outputTaskSource,
+                null, 0,
                 callback);
     }
 
@@ -48,17 +125,82 @@ public abstract class Executors
             InputPlugin inputPlugin, Schema inputSchema, TaskSource inputTaskSource,
             List<FilterPlugin> filterPlugins, List<Schema> filterSchemas, List<TaskSource> filterTaskSources,
             OutputPlugin outputPlugin, Schema outputSchema, TaskSource outputTaskSource,
+            ExecutorService stageExecutor, int stageQueueSize,
             ProcessStateCallback callback)
     {
-        TransactionalPageOutput tran = PluginWrappers.transactionalPageOutput(
-            outputPlugin.open(outputTaskSource, outputSchema, taskIndex));
+        CheckpointCallback checkpointCallback = null;
+        if (callback instanceof CheckpointCallback && filterPlugins.isEmpty() &&
+                inputPlugin instanceof CheckpointInputPlugin && outputPlugin instanceof CheckpointOutputPlugin) {
+            checkpointCallback = (CheckpointCallback) callback;
+        }
+        Optional<TaskReport> checkpoint = Optional.absent();
+        if (checkpointCallback != null) {
+            checkpoint = checkpointCallback.getCheckpoint();
+        }
+
+        TransactionalPageOutput opened;
+        if (checkpoint.isPresent()) {
+            opened = ((CheckpointOutputPlugin) outputPlugin).resumeTask(outputTaskSource, outputSchema, taskIndex,
+                    checkpoint.get().getNested("out"));
+        } else {
+            opened = outputPlugin.open(outputTaskSource, outputSchema, taskIndex);
+        }
+        CheckpointTransactionalPageOutput checkpointTran = null;
+        if (checkpointCallback != null && opened instanceof CheckpointTransactionalPageOutput) {
+            checkpointTran = (CheckpointTransactionalPageOutput) opened;
+        }
+        TransactionalPageOutput tran = PluginWrappers.transactionalPageOutput(opened);
 
         PageOutput closeThis = tran;
+        List<AsyncPageOutput> stages = new ArrayList<>();
+        CpuPermit cpu = new CpuPermit(
+                callback instanceof CpuBoundCallback ? (CpuBoundCallback) callback : null);
         callback.started();
         try {
-            PageOutput filtered = closeThis = Filters.open(filterPlugins, filterTaskSources, filterSchemas, tran);
+            PageOutput outputStage = tran;
+            if (callback instanceof ProcessStatsCallback) {
+                outputStage = closeThis = new StatsPageOutput(outputStage, (ProcessStatsCallback) callback);
+            }
+            if (stageExecutor == null) {
+                outputStage = closeThis = new CpuReleasingPageOutput(outputStage, cpu);
+            }
+            if (stageExecutor != null) {
+                AsyncPageOutput stage = new AsyncPageOutput(exec, stageExecutor, stageQueueSize,
+                        String.format("task-%04d-output", taskIndex), outputStage);
+                stages.add(stage);
+                outputStage = closeThis = stage;
+            }
 
-            TaskReport inputTaskReport = inputPlugin.run(inputTaskSource, inputSchema, taskIndex, filtered);
+            PageOutput filtered = closeThis = Filters.open(filterPlugins, filterTaskSources, filterSchemas, outputStage);
+
+            if (stageExecutor != null && !filterPlugins.isEmpty()) {
+                AsyncPageOutput stage = new AsyncPageOutput(exec, stageExecutor, stageQueueSize,
+                        String.format("task-%04d-filter", taskIndex), filtered);
+                stages.add(stage);
+                filtered = closeThis = stage;
+            }
+
+            filtered = closeThis = new CancellablePageOutput(filtered,
+                    callback instanceof CancellableCallback ? (CancellableCallback) callback : null);
+
+            if (checkpointTran != null) {
+                filtered = closeThis = new CheckpointingPageOutput(exec, filtered, stages,
+                        checkpointTran, checkpointCallback);
+            }
+
+            cpu.acquire();
+            TaskReport inputTaskReport;
+            if (checkpoint.isPresent()) {
+                inputTaskReport = ((CheckpointInputPlugin) inputPlugin).resumeTask(inputTaskSource, inputSchema, taskIndex,
+                        checkpoint.get().getNested("in"), filtered);
+            } else {
+                inputTaskReport = inputPlugin.run(inputTaskSource, inputSchema, taskIndex, filtered);
+            }
+            cpu.release();
+
+            for (int i=stages.size() - 1; i >= 0; i--) {
+                stages.get(i).sync();
+            }
 
             if (inputTaskReport == null) {
                 inputTaskReport = exec.newTaskReport();
@@ -73,7 +215,12 @@ public abstract class Executors
             callback.outputCommitted(outputTaskReport);  // TODO check output.finish() is called. wrap or abstract
 
         } finally {
+            cpu.release();
             try {
+                // stop stages before abort so that no pages are added after abort
+                for (int i=stages.size() - 1; i >= 0; i--) {
+                    stages.get(i).stop();
+                }
                 if (tran != null) {
                     tran.abort();
                 }
@@ -83,6 +230,201 @@ public abstract class Executors
         }
     }
 
+    // Plugins may not check interruption of the thread, for example while
+    // reading a file. This stops the task at the next page instead.
+    private static class CancellablePageOutput
+            implements PageOutput
+    {
+        private final PageOutput output;
+        private final CancellableCallback callback;  // nullable
+
+        public CancellablePageOutput(PageOutput output, CancellableCallback callback)
+        {
+            this.output = output;
+            this.callback = callback;
+        }
+
+        public void add(Page page)
+        {
+            if (Thread.interrupted() || (callback != null && callback.isCancelled())) {
+                page.release();
+                throw new ExecutionInterruptedException(new InterruptedException());
+            }
+            output.add(page);
+        }
+
+        public void finish()
+        {
+            output.finish();
+        }
+
+        public void close()
+        {
+            output.close();
+        }
+    }
+
+    // A checkpoint consists of the position of the input plugin ("in") and
+    // the acknowledgement of the output plugin ("out").
+    private static class CheckpointingPageOutput
+            implements CheckpointPageOutput
+    {
+        private final ExecSession exec;
+        private final PageOutput output;
+        private final List<AsyncPageOutput> stages;
+        private final CheckpointTransactionalPageOutput tran;
+        private final CheckpointCallback callback;
+
+        public CheckpointingPageOutput(ExecSession exec, PageOutput output, List<AsyncPageOutput> stages,
+                CheckpointTransactionalPageOutput tran, CheckpointCallback callback)
+        {
+            this.exec = exec;
+            this.output = output;
+            this.stages = stages;
+            this.tran = tran;
+            this.callback = callback;
+        }
+
+        public void add(Page page)
+        {
+            output.add(page);
+        }
+
+        public boolean isCheckpointRequired()
+        {
+            return callback.isCheckpointRequired();
+        }
+
+        public void checkpoint(TaskReport position)
+        {
+            // output stages must write all pages before the position
+            for (int i=stages.size() - 1; i >= 0; i--) {
+                stages.get(i).sync();
+            }
+            TaskReport acknowledgement = tran.checkpoint();
+            if (acknowledgement == null) {
+                acknowledgement = exec.newTaskReport();
+            }
+            TaskReport checkpoint = exec.newTaskReport();
+            checkpoint.setNested("in", position);
+            checkpoint.setNested("out", acknowledgement);
+            callback.checkpointed(checkpoint);
+        }
+
+        public void finish()
+        {
+            output.finish();
+        }
+
+        public void close()
+        {
+            output.close();
+        }
+    }
+
+    private static class CpuPermit
+    {
+        private final CpuBoundCallback callback;  // nullable
+        private boolean acquired;
+
+        public CpuPermit(CpuBoundCallback callback)
+        {
+            this.callback = callback;
+        }
+
+        public void acquire()
+        {
+            if (callback != null && !acquired) {
+                callback.acquireCpu();
+                acquired = true;
+            }
+        }
+
+        public void release()
+        {
+            if (acquired) {
+                acquired = false;
+                callback.releaseCpu();
+            }
+        }
+
+        public boolean isAcquired()
+        {
+            return acquired;
+        }
+    }
+
+    private static class CpuReleasingPageOutput
+            implements PageOutput
+    {
+        private final PageOutput output;
+        private final CpuPermit cpu;
+
+        public CpuReleasingPageOutput(PageOutput output, CpuPermit cpu)
+        {
+            this.output = output;
+            this.cpu = cpu;
+        }
+
+        public void add(Page page)
+        {
+            // a failed task doesn't acquire the permit again
+            boolean acquired = cpu.isAcquired();
+            cpu.release();
+            output.add(page);
+            if (acquired) {
+                cpu.acquire();
+            }
+        }
+
+        public void finish()
+        {
+            boolean acquired = cpu.isAcquired();
+            cpu.release();
+            output.finish();
+            if (acquired) {
+                cpu.acquire();
+            }
+        }
+
+        public void close()
+        {
+            output.close();
+        }
+    }
+
+    private static class StatsPageOutput
+            implements PageOutput
+    {
+        private final PageOutput output;
+        private final ProcessStatsCallback callback;
+
+        public StatsPageOutput(PageOutput output, ProcessStatsCallback callback)
+        {
+            this.output = output;
+            this.callback = callback;
+        }
+
+        public void add(Page page)
+        {
+            // page can't be used after add
+            int recordCount = PageReader.getRecordCount(page);
+            int byteSize = page.buffer().limit();
+            output.add(page);
+            callback.outputPageAdded(recordCount, byteSize);
+        }
+
+        public void finish()
+        {
+            output.finish();
+        }
+
+        public void close()
+        {
+            output.close();
+        }
+    }
+
     public static Schema getInputSchema(List<Schema> schemas)
     {
         return schemas.get(0);
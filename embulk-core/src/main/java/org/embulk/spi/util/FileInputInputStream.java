@@ -41,7 +41,7 @@ public class FileInputInputStream
                 return -1;
             }
         }
-        byte b = buffer.array()[buffer.offset() + pos];
+        byte b = buffer.getByte(pos);
         pos++;
         if (pos >= buffer.limit()) {
             releaseBuffer();
@@ -43,7 +43,7 @@ public class FileOutputOutputStream
     @Override
     public void write(int b)
     {
-        buffer.array()[buffer.offset() + pos] = (byte) b;
+        buffer.setByte(pos, (byte) b);
         pos++;
         if (pos >= buffer.capacity()) {
             flush();
@@ -5,12 +5,13 @@ import java.util.Iterator;
 import java.io.InputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import com.google.common.io.ByteStreams;
 import org.embulk.spi.Buffer;
-import org.embulk.spi.FileInput;
+import org.embulk.spi.SeekableFileInput;
 import org.embulk.spi.BufferAllocator;
 
 public class InputStreamFileInput
-        implements FileInput
+        implements SeekableFileInput
 {
     public interface Provider extends Closeable
     {
@@ -140,7 +141,7 @@ public class InputStreamFileInput
         }
         Buffer buffer = allocator.allocate();
         try {
-            int n = current.read(buffer.array(), buffer.offset(), buffer.capacity());
+            int n = buffer.setBytes(0, current, buffer.capacity());
             if (n < 0) {
                 return null;
             }
@@ -172,6 +173,19 @@ public class InputStreamFileInput
         }
     }
 
+    // uses InputStream.skip. FileInputStream seeks the file without reading
+    public void seek(long offset)
+    {
+        if (current == null) {
+            throw new IllegalStateException("nextFile() must be called before seek()");
+        }
+        try {
+            ByteStreams.skipFully(current, offset);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     public void close()
     {
         try {
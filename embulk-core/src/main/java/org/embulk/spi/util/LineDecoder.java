@@ -1,11 +1,13 @@
 package org.embulk.spi.util;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.io.Reader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
@@ -13,6 +15,7 @@ import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.spi.FileInput;
+import org.embulk.spi.SeekableFileInput;
 
 public class LineDecoder
         implements AutoCloseable, Iterable<String>
@@ -31,36 +34,154 @@ public class LineDecoder
         public Newline getNewline();
     }
 
+    private final FileInput in;
     private final FileInputInputStream inputStream;
-    private final BufferedReader reader;
+    private final CharsetDecoder decoder;
+    private final BufferedReader reader;  // null if lines are split in bytes
+
+    // if CR and LF are single bytes in the charset, lines are split in bytes
+    // so that the byte offset of each line is known
+    private final byte[] buffer;
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    private byte[] lineBytes;
+    private boolean skipLf = false;
+    private long offset = 0;       // bytes read from the current file
+    private long lineOffset = -1;  // offset of the line returned by the last poll()
 
     public LineDecoder(FileInput in, DecoderTask task)
     {
-        CharsetDecoder decoder = task.getCharset()
+        Charset charset = task.getCharset();
+        this.decoder = charset
             .newDecoder()
             .onMalformedInput(CodingErrorAction.REPLACE)  // TODO configurable?
             .onUnmappableCharacter(CodingErrorAction.REPLACE);  // TODO configurable?
+        this.in = in;
         this.inputStream = new FileInputInputStream(in);
-        this.reader = new BufferedReader(new InputStreamReader(inputStream, decoder));
+        if (isSingleByteNewline(charset)) {
+            this.reader = null;
+            this.buffer = new byte[8192];
+            this.lineBytes = new byte[256];
+        } else {
+            this.reader = new BufferedReader(new InputStreamReader(inputStream, decoder));
+            this.buffer = null;
+        }
+    }
+
+    private static boolean isSingleByteNewline(Charset charset)
+    {
+        return Arrays.equals("\n".getBytes(charset), new byte[] { '\n' }) &&
+            Arrays.equals("\r".getBytes(charset), new byte[] { '\r' });
     }
 
     public boolean nextFile()
     {
+        bufferPos = 0;
+        bufferLimit = 0;
+        skipLf = false;
+        offset = 0;
+        lineOffset = -1;
         return inputStream.nextFile();
     }
 
+    // starts reading the current file at the byte offset. returns false if
+    // the charset or the input doesn't support it. this must be called
+    // right after nextFile().
+    public boolean seek(long offset)
+    {
+        if (reader != null || !(in instanceof SeekableFileInput)) {
+            return false;
+        }
+        ((SeekableFileInput) in).seek(offset);
+        this.offset = offset;
+        return true;
+    }
+
+    // returns the byte offset of the line returned by the last poll() in
+    // the current file, or -1 if it's unknown
+    public long getLineOffset()
+    {
+        return lineOffset;
+    }
+
     public String poll()
     {
         try {
-            return reader.readLine();
+            if (reader != null) {
+                return reader.readLine();
+            } else {
+                return readLine();
+            }
         } catch (IOException ex) {
             // unexpected
             throw new RuntimeException(ex);
         }
     }
 
+    // splits lines at CR, LF and CRLF in the same way as BufferedReader.readLine
+    private String readLine() throws IOException
+    {
+        if (skipLf) {
+            if (bufferPos >= bufferLimit && !fillBuffer()) {
+                return null;
+            }
+            if (buffer[bufferPos] == '\n') {
+                bufferPos++;
+                offset++;
+            }
+            skipLf = false;
+        }
+
+        long start = offset;
+        int length = 0;
+        while (true) {
+            if (bufferPos >= bufferLimit && !fillBuffer()) {
+                if (offset == start) {
+                    return null;
+                }
+                break;
+            }
+            int i = bufferPos;
+            while (i < bufferLimit && buffer[i] != '\n' && buffer[i] != '\r') {
+                i++;
+            }
+            int n = i - bufferPos;
+            if (length + n > lineBytes.length) {
+                lineBytes = Arrays.copyOf(lineBytes, Math.max(lineBytes.length * 2, length + n));
+            }
+            System.arraycopy(buffer, bufferPos, lineBytes, length, n);
+            length += n;
+            offset += n;
+            if (i < bufferLimit) {
+                skipLf = buffer[i] == '\r';
+                bufferPos = i + 1;
+                offset++;
+                break;
+            }
+            bufferPos = i;
+        }
+
+        lineOffset = start;
+        return decoder.decode(ByteBuffer.wrap(lineBytes, 0, length)).toString();
+    }
+
+    private boolean fillBuffer()
+    {
+        int n = inputStream.read(buffer, 0, buffer.length);
+        if (n < 0) {
+            return false;
+        }
+        bufferPos = 0;
+        bufferLimit = n;
+        return true;
+    }
+
     public void close()
     {
+        if (reader == null) {
+            inputStream.close();
+            return;
+        }
         try {
             reader.close();
         } catch (IOException ex) {
@@ -7,12 +7,14 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigInject;
 import org.embulk.config.ConfigDefault;
 import org.embulk.spi.FileOutput;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Utf8String;
 
 public class LineEncoder
         implements AutoCloseable
@@ -38,6 +40,7 @@ public class LineEncoder
     private final FileOutput underlyingFileOutput;
     private final FileOutputOutputStream outputStream;
     private Writer writer;
+    private final Utf8Writer utf8Writer;  // null unless charset is UTF-8
 
     public LineEncoder(FileOutput out, EncoderTask task)
     {
@@ -48,7 +51,19 @@ public class LineEncoder
         this.newline = task.getNewline().getString();
         this.underlyingFileOutput = out;
         this.outputStream = new FileOutputOutputStream(underlyingFileOutput, task.getBufferAllocator(), FileOutputOutputStream.CloseMode.FLUSH_FINISH);
-        this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, encoder), 32*1024);
+        if (task.getCharset().equals(StandardCharsets.UTF_8)) {
+            this.utf8Writer = new Utf8Writer(outputStream);
+            this.writer = utf8Writer;
+        } else {
+            this.utf8Writer = null;
+            this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, encoder), 32*1024);
+        }
+    }
+
+    // true if addText(Utf8String) writes the bytes without charset conversion
+    public boolean isUtf8()
+    {
+        return utf8Writer != null;
     }
 
     public void addNewLine()
@@ -82,6 +97,20 @@ public class LineEncoder
         }
     }
 
+    public void addText(Utf8String text)
+    {
+        if (utf8Writer == null) {
+            addText(text.toString());
+            return;
+        }
+        try {
+            utf8Writer.write(text);
+        } catch (IOException ex) {
+            // unexpected
+            throw new RuntimeException(ex);
+        }
+    }
+
     public void nextFile()
     {
         try {
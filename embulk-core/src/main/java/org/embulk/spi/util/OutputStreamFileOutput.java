@@ -43,7 +43,7 @@ public class OutputStreamFileOutput
             throw new IllegalStateException("nextFile() must be called before poll()");
         }
         try {
-            current.write(buffer.array(), buffer.offset(), buffer.limit());
+            buffer.getBytes(0, current, buffer.limit());
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
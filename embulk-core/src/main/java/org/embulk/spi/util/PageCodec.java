@@ -0,0 +1,231 @@
+package org.embulk.spi.util;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+
+// Writes a page to a stream and reads it back.
+//
+// Frame format (integers are big-endian)
+// +---+---+---+---+---+--------+---+-------------------+
+// | 4 | 4 | 4 | 8 | 4 | length | 4 | string references |
+// +---+---+---+---+---+--------+---+-------------------+
+// magic, version, frame length (excluding the first 12 bytes),
+// schema fingerprint, record area length, record area (page buffer as is),
+// number of string references, and (4-byte length + UTF-8 bytes) for each
+// string reference. Length of a null string reference is -1.
+public class PageCodec
+{
+    public static final int MAGIC = 0x454d4250;  // "EMBP"
+    public static final int VERSION = 1;
+
+    private static final int FRAME_HEADER_SIZE = 12;
+
+    // fingerprint, record area length and number of string references
+    private static final int MIN_FRAME_LENGTH = 8 + 4 + 4;
+
+    private final long schemaFingerprint;
+
+    public PageCodec(Schema schema)
+    {
+        this.schemaFingerprint = schemaFingerprint(schema);
+    }
+
+    // 64-bit FNV-1a hash of column names and type names
+    public static long schemaFingerprint(Schema schema)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (Column column : schema.getColumns()) {
+            String s = column.getName() + ':' + column.getType().getName() + ';';
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    public void write(Page page, OutputStream out) throws IOException
+    {
+        Buffer buffer = page.buffer();
+        int recordLength = buffer.limit();
+
+        List<String> refs = page.getStringReferences();
+        int refCount = refs == null ? 0 : refs.size();
+        byte[][] encodedRefs = new byte[refCount][];
+        int frameLength = 8 + 4 + recordLength + 4;
+        for (int i=0; i < refCount; i++) {
+            String ref = refs.get(i);
+            if (ref != null) {
+                encodedRefs[i] = ref.getBytes(StandardCharsets.UTF_8);
+                frameLength += encodedRefs[i].length;
+            }
+            frameLength += 4;
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(frameLength);
+        data.writeLong(schemaFingerprint);
+        data.writeInt(recordLength);
+        data.flush();
+        buffer.getBytes(0, out, recordLength);
+        data.writeInt(refCount);
+        for (byte[] encoded : encodedRefs) {
+            if (encoded == null) {
+                data.writeInt(-1);
+            } else {
+                data.writeInt(encoded.length);
+                data.write(encoded);
+            }
+        }
+        data.flush();
+    }
+
+    // returns null if the stream is at the end
+    public Page read(InputStream in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+        int magic;
+        try {
+            magic = data.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        checkHeader(magic, data.readInt());
+        int frameLength = data.readInt();
+        checkLength("frame length", frameLength, MIN_FRAME_LENGTH, Integer.MAX_VALUE);
+        checkFingerprint(data.readLong());
+        int remaining = frameLength - 8;
+
+        int recordLength = data.readInt();
+        remaining -= 4;
+        checkLength("record area length", recordLength, 0, remaining - 4);
+        byte[] records = new byte[recordLength];
+        data.readFully(records);
+        remaining -= recordLength;
+
+        int refCount = data.readInt();
+        remaining -= 4;
+        checkLength("number of string references", refCount, 0, remaining / 4);
+        List<String> refs = new ArrayList<>(refCount);
+        for (int i=0; i < refCount; i++) {
+            int length = data.readInt();
+            remaining -= 4;
+            if (length < 0) {
+                checkLength("string length", length, -1, -1);
+                refs.add(null);
+            } else {
+                checkLength("string length", length, 0, remaining - (refCount - i - 1) * 4);
+                byte[] encoded = new byte[length];
+                data.readFully(encoded);
+                remaining -= length;
+                refs.add(new String(encoded, StandardCharsets.UTF_8));
+            }
+        }
+        checkLength("frame length", frameLength, frameLength - remaining, frameLength - remaining);
+
+        return Page.wrap(Buffer.wrap(records)).setStringReferences(refs);
+    }
+
+    // Reads a frame at the position of src and advances the position to the
+    // next frame. The record area of the page shares memory with src.
+    // Returns null if src has no remaining bytes.
+    public Page read(ByteBuffer src)
+    {
+        if (!src.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer frame = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (frame.remaining() < FRAME_HEADER_SIZE) {
+            throw new DataException("Truncated page frame");
+        }
+        checkHeader(frame.getInt(), frame.getInt());
+        int frameLength = frame.getInt();
+        checkLength("frame length", frameLength, MIN_FRAME_LENGTH, Integer.MAX_VALUE);
+        if (frame.remaining() < frameLength) {
+            throw new DataException("Truncated page frame");
+        }
+        frame.limit(frame.position() + frameLength);
+        checkFingerprint(frame.getLong());
+
+        int recordLength = frame.getInt();
+        checkLength("record area length", recordLength, 0, frame.remaining() - 4);
+        ByteBuffer records = frame.slice();
+        records.limit(recordLength);
+        frame.position(frame.position() + recordLength);
+
+        int refCount = frame.getInt();
+        checkLength("number of string references", refCount, 0, frame.remaining() / 4);
+        List<String> refs = new ArrayList<>(refCount);
+        for (int i=0; i < refCount; i++) {
+            int length = frame.getInt();
+            if (length < 0) {
+                checkLength("string length", length, -1, -1);
+                refs.add(null);
+            } else {
+                checkLength("string length", length, 0, frame.remaining() - (refCount - i - 1) * 4);
+                refs.add(decode(frame, length));
+            }
+        }
+        checkLength("frame length", frameLength, frameLength - frame.remaining(), frameLength - frame.remaining());
+
+        src.position(src.position() + FRAME_HEADER_SIZE + frameLength);
+        return Page.wrap(Buffer.wrap(records)).setStringReferences(refs);
+    }
+
+    private static String decode(ByteBuffer frame, int length)
+    {
+        if (frame.hasArray()) {
+            String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+            return value;
+        } else {
+            byte[] encoded = new byte[length];
+            frame.get(encoded);
+            return new String(encoded, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void checkHeader(int magic, int version)
+    {
+        if (magic != MAGIC) {
+            throw new DataException(String.format("Invalid page frame magic: 0x%08x", magic));
+        }
+        if (version != VERSION) {
+            throw new DataException(String.format("Unsupported page frame version: %d", version));
+        }
+    }
+
+    // lengths are read from untrusted bytes. they are checked before they're
+    // used to allocate arrays.
+    private static void checkLength(String name, int length, int min, int max)
+    {
+        if (length < min || max < length) {
+            throw new DataException(String.format("Corrupted page frame: invalid %s %d", name, length));
+        }
+    }
+
+    private void checkFingerprint(long fingerprint)
+    {
+        if (fingerprint != schemaFingerprint) {
+            throw new DataException(String.format(
+                        "Page frame was written with a different schema: fingerprint 0x%016x, expected 0x%016x",
+                        fingerprint, schemaFingerprint));
+        }
+    }
+}
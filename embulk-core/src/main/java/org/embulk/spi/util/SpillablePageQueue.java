@@ -0,0 +1,184 @@
+package org.embulk.spi.util;
+
+import java.util.ArrayDeque;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TempFileException;
+import org.embulk.spi.TempFileSpace;
+
+// A PageOutput that keeps pages in memory up to memoryThreshold bytes and
+// writes the rest to a temporary file. poll() returns the pages in the order
+// they are added. Pages can be polled before finish() is called.
+// A spill file is deleted as soon as all of its pages are read, and the next
+// spilled page starts a new file so that disk usage doesn't grow with the
+// total size of spilled pages.
+public class SpillablePageQueue
+        implements PageOutput
+{
+    private final PageCodec codec;
+    private final TempFileSpace tempFileSpace;
+    private final long memoryThreshold;
+
+    private final ArrayDeque<Page> memoryPages = new ArrayDeque<>();
+    private long memoryBytes;
+
+    private File spillFile;
+    private OutputStream spillOutput;
+    private InputStream spillInput;
+    private long spilledCount;
+    private long readCount;
+    private boolean finished;
+
+    public SpillablePageQueue(Schema schema, long memoryThreshold)
+    {
+        this(schema, Exec.getTempFileSpace(), memoryThreshold);
+    }
+
+    public SpillablePageQueue(Schema schema, TempFileSpace tempFileSpace, long memoryThreshold)
+    {
+        this.codec = new PageCodec(schema);
+        this.tempFileSpace = tempFileSpace;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        if (finished) {
+            throw new IllegalStateException("SpillablePageQueue is already finished");
+        }
+
+        long size = page.buffer().capacity();
+        if (spilledCount == readCount && memoryBytes + size <= memoryThreshold) {
+            memoryPages.addLast(page);
+            memoryBytes += size;
+            return;
+        }
+
+        // pages after a spilled page are also spilled to keep the order
+        try {
+            if (spillOutput == null) {
+                spillFile = tempFileSpace.createTempFile("spill", "pages");
+                spillOutput = new BufferedOutputStream(new FileOutputStream(spillFile));
+            }
+            codec.write(page, spillOutput);
+            spilledCount++;
+        } catch (IOException ex) {
+            throw new TempFileException(ex);
+        } finally {
+            page.release();
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        finished = true;
+        flushSpillOutput();
+    }
+
+    // returns null if there are no pages. The caller owns returned pages.
+    public Page poll()
+    {
+        Page page = memoryPages.pollFirst();
+        if (page != null) {
+            memoryBytes -= page.buffer().capacity();
+            return page;
+        }
+
+        if (readCount < spilledCount) {
+            try {
+                flushSpillOutput();
+                if (spillInput == null) {
+                    spillInput = new BufferedInputStream(new FileInputStream(spillFile));
+                }
+                page = codec.read(spillInput);
+            } catch (IOException ex) {
+                throw new TempFileException(ex);
+            }
+            readCount++;
+            if (readCount == spilledCount) {
+                deleteSpillFile();
+            }
+            return page;
+        }
+
+        return null;
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    public boolean isEmpty()
+    {
+        return memoryPages.isEmpty() && readCount == spilledCount;
+    }
+
+    public long getMemoryBytes()
+    {
+        return memoryBytes;
+    }
+
+    public long getSpilledPageCount()
+    {
+        return spilledCount;
+    }
+
+    private void flushSpillOutput()
+    {
+        if (spillOutput != null) {
+            try {
+                spillOutput.flush();
+            } catch (IOException ex) {
+                throw new TempFileException(ex);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        for (Page page : memoryPages) {
+            page.release();
+        }
+        memoryPages.clear();
+        memoryBytes = 0;
+        deleteSpillFile();
+    }
+
+    private void deleteSpillFile()
+    {
+        try {
+            try {
+                if (spillOutput != null) {
+                    spillOutput.close();
+                }
+            } finally {
+                if (spillInput != null) {
+                    spillInput.close();
+                }
+            }
+        } catch (IOException ex) {
+            throw new TempFileException(ex);
+        } finally {
+            spillOutput = null;
+            spillInput = null;
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.embulk.spi.util;
+
+import java.io.Writer;
+import java.io.OutputStream;
+import java.io.IOException;
+import org.embulk.spi.Utf8String;
+
+// Writer that encodes characters to UTF-8 by itself so that UTF-8 bytes of
+// a Utf8String can be written to the same stream without decoding.
+// Malformed surrogates are replaced with '?' like CodingErrorAction.REPLACE.
+class Utf8Writer
+        extends Writer
+{
+    private final OutputStream out;
+    private final byte[] buffer = new byte[32*1024];
+    private int pos;
+    private char highSurrogate;  // written at the end of the last call
+
+    public Utf8Writer(OutputStream out)
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        for (int i = off; i < off + len; i++) {
+            writeChar(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        for (int i = off; i < off + len; i++) {
+            writeChar(str.charAt(i));
+        }
+    }
+
+    public void write(Utf8String text) throws IOException
+    {
+        flushHighSurrogate();
+        int length = text.getByteLength();
+        int index = 0;
+        while (index < length) {
+            if (pos == buffer.length) {
+                drain();
+            }
+            int n = Math.min(length - index, buffer.length - pos);
+            text.getBytes(index, buffer, pos, n);
+            pos += n;
+            index += n;
+        }
+    }
+
+    private void writeChar(char c) throws IOException
+    {
+        if (buffer.length - pos < 4) {
+            drain();
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                buffer[pos++] = (byte) (0xf0 | (cp >>> 18));
+                buffer[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            buffer[pos++] = '?';
+            if (buffer.length - pos < 4) {
+                drain();
+            }
+        }
+
+        if (c < 0x80) {
+            buffer[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[pos++] = (byte) (0xc0 | (c >>> 6));
+            buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer[pos++] = '?';
+        } else {
+            buffer[pos++] = (byte) (0xe0 | (c >>> 12));
+            buffer[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+            buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void flushHighSurrogate() throws IOException
+    {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            if (pos == buffer.length) {
+                drain();
+            }
+            buffer[pos++] = '?';
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flushHighSurrogate();
+        drain();
+        out.close();
+    }
+}
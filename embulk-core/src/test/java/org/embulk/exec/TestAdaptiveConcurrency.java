@@ -0,0 +1,37 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.embulk.exec.AdaptiveConcurrency.nextConcurrency;
+import org.junit.Test;
+
+public class TestAdaptiveConcurrency
+{
+    @Test
+    public void testIncreaseWhileThroughputIncreases()
+    {
+        assertEquals(5, nextConcurrency(4, -1.0, 1000.0, 0.5, 1, 8));
+        assertEquals(5, nextConcurrency(4, 1000.0, 1200.0, 0.5, 1, 8));
+        assertEquals(5, nextConcurrency(4, 1000.0, 960.0, -1.0, 1, 8));
+        assertEquals(8, nextConcurrency(8, 1000.0, 1200.0, 0.5, 1, 8));
+    }
+
+    @Test
+    public void testKeepWhenThroughputIsSlightlyLower()
+    {
+        assertEquals(4, nextConcurrency(4, 1000.0, 920.0, 0.5, 1, 8));
+    }
+
+    @Test
+    public void testDecreaseWhenThroughputDrops()
+    {
+        assertEquals(6, nextConcurrency(8, 1000.0, 800.0, 0.5, 1, 8));
+        assertEquals(2, nextConcurrency(2, 1000.0, 800.0, 0.5, 2, 8));
+    }
+
+    @Test
+    public void testDecreaseWhenCpuIsSaturated()
+    {
+        assertEquals(6, nextConcurrency(8, 1000.0, 1200.0, 0.99, 1, 8));
+        assertEquals(1, nextConcurrency(1, 1000.0, 1200.0, 0.99, 1, 8));
+    }
+}
@@ -0,0 +1,126 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.DataSourceImpl;
+import org.embulk.config.ModelManager;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.plugin.MockPluginSource;
+import org.embulk.plugin.PluginType;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.ProcessTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TaskCostEstimator;
+import org.junit.Test;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class TestLocalExecutorPlugin
+{
+    private static class MockInputPlugin
+            implements InputPlugin
+    {
+        public TaskReport run(TaskSource taskSource, Schema schema, int taskIndex, PageOutput output)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public ConfigDiff transaction(ConfigSource config, InputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, InputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports)
+        { }
+
+        public ConfigDiff guess(ConfigSource config)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class MockEstimatingInputPlugin
+            extends MockInputPlugin
+            implements TaskCostEstimator
+    {
+        private final List<Long> costs;
+
+        public MockEstimatingInputPlugin(List<Long> costs)
+        {
+            this.costs = costs;
+        }
+
+        public List<Long> estimateTaskCosts(TaskSource taskSource, int taskCount)
+        {
+            assertEquals(costs.size(), taskCount);
+            return costs;
+        }
+    }
+
+    private List<Integer> taskOrder(InputPlugin input, final int taskCount, final boolean largestFirst)
+    {
+        Injector injector = Guice.createInjector(
+                new EmbulkTestRuntime.TestRuntimeModule(),
+                MockPluginSource.newInjectModule(InputPlugin.class, input));
+        ExecSession exec = ExecSession.builder(injector)
+            .fromExecConfig(new DataSourceImpl(injector.getInstance(ModelManager.class)))
+            .build();
+        try {
+            return Exec.doWith(exec, new ExecAction<List<Integer>>() {
+                public List<Integer> run()
+                {
+                    Schema schema = Schema.builder().build();
+                    ProcessTask task = new ProcessTask(new PluginType("mock"), new PluginType("mock"),
+                            ImmutableList.<PluginType>of(), Exec.newTaskSource(), Exec.newTaskSource(),
+                            ImmutableList.<TaskSource>of(), ImmutableList.of(schema), schema, null);
+                    return LocalExecutorPlugin.taskOrder(task, taskCount, largestFirst);
+                }
+            });
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            exec.cleanup();
+        }
+    }
+
+    @Test
+    public void testLargestFirst()
+    {
+        MockEstimatingInputPlugin input = new MockEstimatingInputPlugin(ImmutableList.of(10L, 30L, 20L, 0L));
+        assertEquals(ImmutableList.of(1, 2, 0, 3), taskOrder(input, 4, true));
+    }
+
+    @Test
+    public void testSameCostsKeepOrderOfIndex()
+    {
+        MockEstimatingInputPlugin input = new MockEstimatingInputPlugin(ImmutableList.of(5L, 7L, 5L, 7L, 5L));
+        assertEquals(ImmutableList.of(1, 3, 0, 2, 4), taskOrder(input, 5, true));
+    }
+
+    @Test
+    public void testInOrder()
+    {
+        MockEstimatingInputPlugin input = new MockEstimatingInputPlugin(ImmutableList.of(10L, 30L, 20L));
+        assertEquals(ImmutableList.of(0, 1, 2), taskOrder(input, 3, false));
+    }
+
+    @Test
+    public void testInputPluginWithoutCostEstimation()
+    {
+        assertEquals(ImmutableList.of(0, 1, 2), taskOrder(new MockInputPlugin(), 3, true));
+    }
+}
@@ -0,0 +1,70 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import java.util.concurrent.Semaphore;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.plugin.PluginType;
+import org.embulk.spi.Exec;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestLocalThreadExecutor
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private LocalThreadExecutor newExecutor(ConfigSource systemConfig)
+    {
+        return new LocalThreadExecutor(systemConfig, org.slf4j.LoggerFactory.getILoggerFactory());
+    }
+
+    @Test
+    public void testFixedThreadPool()
+    {
+        LocalThreadExecutor executor = newExecutor(Exec.newConfigSource().set("max_threads", 3));
+        assertEquals(3, executor.getMaxThreads());
+        assertFalse(executor.getCpuPermits().isPresent());
+    }
+
+    @Test
+    public void testElasticThreadPool()
+    {
+        LocalThreadExecutor executor = newExecutor(Exec.newConfigSource()
+                .set("thread_pool", "elastic")
+                .set("max_threads", 3)
+                .set("max_io_threads", 100));
+        assertEquals(100, executor.getMaxThreads());
+        assertEquals(3, executor.getCpuPermits().get().availablePermits());
+    }
+
+    @Test
+    public void testVirtualThreadPool()
+    {
+        // falls back to an elastic thread pool if the JVM doesn't support virtual threads
+        LocalThreadExecutor executor = newExecutor(Exec.newConfigSource()
+                .set("thread_pool", "virtual")
+                .set("max_threads", 3));
+        assertEquals(3, executor.getCpuPermits().get().availablePermits());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownThreadPool()
+    {
+        newExecutor(Exec.newConfigSource().set("thread_pool", "unknown"));
+    }
+
+    @Test
+    public void testPluginPermits()
+    {
+        LocalThreadExecutor executor = newExecutor(Exec.newConfigSource()
+                .set("max_concurrency.in.file", 2)
+                .set("max_concurrency.out.stdout", 1));
+        assertEquals(2, executor.getPluginPermits(new PluginType("file"), new PluginType("stdout")).size());
+        Semaphore input = executor.getPluginPermits(new PluginType("file"), new PluginType("null")).get(0);
+        assertEquals(2, input.availablePermits());
+        assertEquals(0, executor.getPluginPermits(new PluginType("s3"), new PluginType("null")).size());
+    }
+}
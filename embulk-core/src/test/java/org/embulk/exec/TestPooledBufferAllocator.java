@@ -0,0 +1,210 @@
+package org.embulk.exec;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.TaskState;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestPooledBufferAllocator
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private PooledBufferAllocator newAllocator(ConfigSource systemConfig)
+    {
+        return new PooledBufferAllocator(systemConfig.set("page_size", "1KB"), org.slf4j.LoggerFactory.getILoggerFactory());
+    }
+
+    @Test
+    public void testLiveAndPeakBytes()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("buffer_stats", true));
+        Buffer b1 = allocator.allocate();
+        Buffer b2 = allocator.allocate(1500);
+        assertEquals(1024 + 2048, allocator.getLiveBytes());
+        b1.release();
+        b2.release();
+        assertEquals(0, allocator.getLiveBytes());
+        assertEquals(1024 + 2048, allocator.getPeakBytes());
+    }
+
+    @Test
+    public void testFailFast()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("memory_budget", "2KB")
+                .set("memory_budget_wait", 0));
+        Buffer b1 = allocator.allocate();
+        Buffer b2 = allocator.allocate();
+        try {
+            allocator.allocate();
+            fail();
+        } catch (MemoryBudgetExceededException ex) {
+        }
+        try {
+            allocator.allocate(4096);
+            fail();
+        } catch (MemoryBudgetExceededException ex) {
+        }
+        b1.release();
+        allocator.allocate().release();
+        b2.release();
+        assertEquals(0, allocator.getLiveBytes());
+    }
+
+    @Test
+    public void testTaskMemoryBudget()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("task_memory_budget", "1KB"));
+        allocator.startTask();
+        Buffer b1 = allocator.allocate();
+        long start = System.nanoTime();
+        try {
+            // fails without waiting because only this thread can release b1
+            allocator.allocate();
+            fail();
+        } catch (MemoryBudgetExceededException ex) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        b1.release();
+        allocator.allocate().release();
+        allocator.finishTask();
+
+        // memory allocated outside of tasks is not limited by task_memory_budget
+        allocator.allocate(2048).release();
+    }
+
+    @Test
+    public void testStageThreadsShareTaskBudget() throws Exception
+    {
+        final PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("task_memory_budget", "1KB"));
+        ExecutorService stages = allocator.withTaskBudget(Executors.newCachedThreadPool());
+        try {
+            allocator.startTask(true);
+            final Buffer b1 = allocator.allocate();
+            Future<?> stage = stages.submit(new Runnable() {
+                public void run()
+                {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                    }
+                    b1.release();
+                    // accounted to the task that submitted the stage
+                    allocator.allocate(100).release();
+                }
+            });
+            // waits for the stage to release b1
+            allocator.allocate().release();
+            stage.get();
+            PooledBufferAllocator.BufferStats stats = allocator.finishTask();
+            assertEquals(3, stats.getAllocations());
+            assertEquals(3, stats.getReleases());
+            assertEquals(0, stats.getLiveBytes());
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoAccountingByDefault()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource());
+        assertFalse(allocator.isStatsEnabled());
+        allocator.startTask();
+        Buffer b1 = allocator.allocate();
+        assertEquals(0, allocator.getLiveBytes());
+        b1.release();
+        assertEquals(0, allocator.finishTask().getAllocations());
+        assertEquals(0, allocator.getStats().getReleases());
+    }
+
+    @Test
+    public void testBlockUntilReleased() throws Exception
+    {
+        final PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("memory_budget", "1KB"));
+        final Buffer b1 = allocator.allocate();
+        Thread releaser = new Thread() {
+            public void run()
+            {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                }
+                b1.release();
+            }
+        };
+        releaser.start();
+        allocator.allocate().release();
+        releaser.join();
+        assertTrue(allocator.getWaitMillis() > 0);
+        assertEquals(0, allocator.getLiveBytes());
+    }
+
+    @Test
+    public void testTaskStats()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("buffer_tracking_sample_rate", 1));
+        allocator.startTask();
+        allocator.allocate(100).release();
+        Buffer leaked = allocator.allocate(2000);
+        PooledBufferAllocator.BufferStats stats = allocator.finishTask();
+        assertEquals(2, stats.getAllocations());
+        assertEquals(1, stats.getReleases());
+        assertEquals(2048, stats.getLiveBytes());
+        assertEquals(2100, stats.getRequestedBytes());
+        assertEquals(1024 + 2048, stats.getAllocatedBytes());
+
+        allocator.startTask();
+        assertEquals(0, allocator.finishTask().getAllocations());
+
+        leaked.release();
+        assertEquals(2, allocator.getStats().getReleases());
+        assertEquals(0, allocator.getStats().getLiveBytes());
+    }
+
+    @Test
+    public void testBufferStatsInTaskReport()
+    {
+        PooledBufferAllocator allocator = newAllocator(Exec.newConfigSource()
+                .set("buffer_stats", true));
+        TaskState state = new TaskState();
+        allocator.startTask();
+        allocator.allocate(2000).release();
+        state.setTaskReport(Exec.newTaskReport().set("records", 10));
+        LocalExecutorPlugin.finishBufferStats(allocator, state, true);
+
+        TaskReport report = state.getTaskReport().get();
+        assertEquals(10L, (long) report.get(Long.class, "records"));
+        TaskReport stats = report.getNested("buffer_stats");
+        assertEquals(1L, (long) stats.get(Long.class, "allocations"));
+        assertEquals(1L, (long) stats.get(Long.class, "releases"));
+        assertEquals(2048L, (long) stats.get(Long.class, "peak_bytes"));
+        assertEquals(2000L, (long) stats.get(Long.class, "requested_bytes"));
+
+        // not reported unless stats are enabled
+        allocator = newAllocator(Exec.newConfigSource());
+        state = new TaskState();
+        allocator.startTask();
+        state.setTaskReport(Exec.newTaskReport());
+        LocalExecutorPlugin.finishBufferStats(allocator, state, true);
+        assertFalse(state.getTaskReport().get().has("buffer_stats"));
+    }
+}
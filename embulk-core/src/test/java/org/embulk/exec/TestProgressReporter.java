@@ -0,0 +1,47 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class TestProgressReporter
+{
+    private ProgressReporter newReporter(int taskCount)
+    {
+        return new ProgressReporter(LoggerFactory.getLogger(TestProgressReporter.class), taskCount, 0);
+    }
+
+    @Test
+    public void testCountRecordsAndBytes()
+    {
+        try (ProgressReporter progress = newReporter(2)) {
+            progress.taskStarted();
+            progress.pageAdded(10, 100);
+            progress.pageAdded(5, 50);
+            progress.taskFinished(true);
+            assertEquals(15, progress.getRecords());
+            assertEquals(150, progress.getBytes());
+        }
+    }
+
+    @Test
+    public void testDiscardPagesOfFailedAttempt()
+    {
+        try (ProgressReporter progress = newReporter(1)) {
+            progress.taskStarted();
+            progress.pageAdded(10, 100);
+            progress.pageAdded(10, 100);
+            progress.pagesDiscarded(20, 200);  // first attempt failed
+            progress.pageAdded(10, 100);
+            progress.pageAdded(10, 100);
+            progress.taskFinished(true);
+            assertEquals(20, progress.getRecords());
+            assertEquals(200, progress.getBytes());
+
+            // a report after discarding pages doesn't fail
+            progress.pagesDiscarded(20, 200);
+            progress.report();
+            assertEquals(0, progress.getRecords());
+        }
+    }
+}
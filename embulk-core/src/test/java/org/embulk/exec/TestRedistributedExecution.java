@@ -0,0 +1,296 @@
+package org.embulk.exec;
+
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.DataSourceImpl;
+import org.embulk.config.ModelManager;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.plugin.MockPluginSource;
+import org.embulk.plugin.PluginType;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.ProcessState;
+import org.embulk.spi.ProcessTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TaskState;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.util.Pages;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class TestRedistributedExecution
+{
+    private static final int RECORDS_PER_INPUT = 10;
+
+    private final Schema schema = Schema.builder()
+        .add("input", LONG)
+        .add("key", STRING)
+        .build();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    // each input task adds RECORDS_PER_INPUT records of keys k0, k1, ...
+    // in separated pages
+    private static class MockInputPlugin
+            implements InputPlugin
+    {
+        private final int failingTask;
+
+        public MockInputPlugin(int failingTask)
+        {
+            this.failingTask = failingTask;
+        }
+
+        public TaskReport run(TaskSource taskSource, Schema schema, int taskIndex, PageOutput output)
+        {
+            if (taskIndex == failingTask) {
+                throw new RuntimeException("input failed");
+            }
+            try (PageBuilder builder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
+                for (int i=0; i < RECORDS_PER_INPUT; i++) {
+                    builder.setLong(0, taskIndex);
+                    builder.setString(1, "k" + i);
+                    builder.addRecord();
+                    builder.flush();
+                }
+                builder.finish();
+            }
+            return Exec.newTaskReport();
+        }
+
+        public ConfigDiff transaction(ConfigSource config, InputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, InputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports)
+        { }
+
+        public ConfigDiff guess(ConfigSource config)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class MockOutputPlugin
+            implements OutputPlugin
+    {
+        private final Map<Integer, List<Object[]>> records = Collections.synchronizedMap(new HashMap<Integer, List<Object[]>>());
+        private final Set<Integer> aborted = Collections.synchronizedSet(new HashSet<Integer>());
+
+        public TransactionalPageOutput open(TaskSource taskSource, final Schema schema, final int taskIndex)
+        {
+            final List<Object[]> received = Collections.synchronizedList(new ArrayList<Object[]>());
+            records.put(taskIndex, received);
+            return new TransactionalPageOutput() {
+                public void add(Page page)
+                {
+                    received.addAll(Pages.toObjects(schema, page));  // releases the page
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                { }
+
+                public void abort()
+                {
+                    aborted.add(taskIndex);
+                }
+
+                public TaskReport commit()
+                {
+                    return Exec.newTaskReport().set("records", received.size());
+                }
+            };
+        }
+
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports)
+        { }
+    }
+
+    private static class MockProcessState
+            implements ProcessState
+    {
+        private final List<TaskState> inputTaskStates = new ArrayList<>();
+        private final List<TaskState> outputTaskStates = new ArrayList<>();
+
+        public void initialize(int inputTaskCount, int outputTaskCount)
+        {
+            for (int i=0; i < inputTaskCount; i++) {
+                inputTaskStates.add(new TaskState());
+            }
+            for (int i=0; i < outputTaskCount; i++) {
+                outputTaskStates.add(new TaskState());
+            }
+        }
+
+        public TaskState getInputTaskState(int inputTaskIndex)
+        {
+            return inputTaskStates.get(inputTaskIndex);
+        }
+
+        public TaskState getOutputTaskState(int outputTaskIndex)
+        {
+            return outputTaskStates.get(outputTaskIndex);
+        }
+    }
+
+    private MockProcessState execute(InputPlugin input, OutputPlugin output,
+            final int inputTaskCount, final int outputTaskCount,
+            final Optional<String> partitionColumn, final List<Integer> order)
+    {
+        Injector injector = Guice.createInjector(
+                new EmbulkTestRuntime.TestRuntimeModule(),
+                MockPluginSource.newInjectModule(InputPlugin.class, input),
+                MockPluginSource.newInjectModule(OutputPlugin.class, output));
+        ExecSession exec = ExecSession.builder(injector)
+            .fromExecConfig(new DataSourceImpl(injector.getInstance(ModelManager.class)))
+            .build();
+        try {
+            return Exec.doWith(exec, new ExecAction<MockProcessState>() {
+                public MockProcessState run()
+                {
+                    ProcessTask task = new ProcessTask(new PluginType("mock"), new PluginType("mock"),
+                            ImmutableList.<PluginType>of(), Exec.newTaskSource(), Exec.newTaskSource(),
+                            ImmutableList.<TaskSource>of(), ImmutableList.of(schema), schema, null);
+                    MockProcessState state = new MockProcessState();
+                    state.initialize(inputTaskCount, outputTaskCount);
+                    try (ProgressReporter progress = new ProgressReporter(LoggerFactory.getLogger(TestRedistributedExecution.class), inputTaskCount, 0)) {
+                        TaskRunner inputs = new TaskRunner(executor, false, LoggerFactory.getLogger(TestRedistributedExecution.class));
+                        new RedistributedExecution(executor, 2, task, state, inputTaskCount, outputTaskCount,
+                                partitionColumn, order, progress, inputs, Optional.<Semaphore>absent()).execute();
+                    }
+                    return state;
+                }
+            });
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            exec.cleanup();
+        }
+    }
+
+    private static List<Integer> range(int count)
+    {
+        List<Integer> list = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void testRoundRobinToDifferentNumberOfOutputs()
+    {
+        MockOutputPlugin output = new MockOutputPlugin();
+        MockProcessState state = execute(new MockInputPlugin(-1), output, 3, 2, Optional.<String>absent(), range(3));
+
+        int total = 0;
+        for (int i=0; i < 2; i++) {
+            assertTrue(state.getOutputTaskState(i).isCommitted());
+            int count = output.records.get(i).size();
+            assertEquals((long) count, (long) state.getOutputTaskState(i).getTaskReport().get().get(Long.class, "records"));
+            assertTrue(count > 0);
+            total += count;
+        }
+        assertEquals(3 * RECORDS_PER_INPUT, total);
+        for (int i=0; i < 3; i++) {
+            assertTrue(state.getInputTaskState(i).isCommitted());
+        }
+        assertTrue(output.aborted.isEmpty());
+    }
+
+    @Test
+    public void testFailedInputAbortsAllOutputs()
+    {
+        MockOutputPlugin output = new MockOutputPlugin();
+        MockProcessState state = execute(new MockInputPlugin(1), output, 3, 4, Optional.<String>absent(), range(3));
+
+        assertEquals("input failed", state.getInputTaskState(1).getException().get().getMessage());
+        for (int i=0; i < 4; i++) {
+            assertFalse(state.getOutputTaskState(i).isCommitted());
+            assertTrue(state.getOutputTaskState(i).isFinished());
+        }
+        assertEquals(4, output.aborted.size());
+    }
+
+    @Test
+    public void testHashPartitioningIsStable()
+    {
+        MockOutputPlugin output1 = new MockOutputPlugin();
+        execute(new MockInputPlugin(-1), output1, 4, 3, Optional.of("key"), range(4));
+        Map<String, Integer> partitions = partitionsOfKeys(output1, 3);
+        assertEquals(RECORDS_PER_INPUT, partitions.size());
+
+        // records of the same key go to the same output regardless of the
+        // number and order of input tasks
+        List<Integer> reversed = range(2);
+        Collections.reverse(reversed);
+        MockOutputPlugin output2 = new MockOutputPlugin();
+        execute(new MockInputPlugin(-1), output2, 2, 3, Optional.of("key"), reversed);
+        assertEquals(partitions, partitionsOfKeys(output2, 3));
+    }
+
+    private static Map<String, Integer> partitionsOfKeys(MockOutputPlugin output, int outputTaskCount)
+    {
+        Map<String, Integer> partitions = new HashMap<>();
+        for (int i=0; i < outputTaskCount; i++) {
+            for (Object[] record : output.records.get(i)) {
+                Integer partition = partitions.put((String) record[1], i);
+                assertTrue(partition == null || partition == i);
+            }
+        }
+        return partitions;
+    }
+}
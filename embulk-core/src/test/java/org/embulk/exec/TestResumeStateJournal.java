@@ -0,0 +1,168 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+public class TestResumeStateJournal
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ResumeState newResumeState(Optional<TaskReport> firstReport)
+    {
+        Schema schema = Schema.builder().add("c0", Types.LONG).build();
+        List<Optional<TaskReport>> reports = ImmutableList.of(firstReport, Optional.<TaskReport>absent(), Optional.<TaskReport>absent());
+        return new ResumeState(Exec.newConfigSource(), Exec.newTaskSource(), Exec.newTaskSource(),
+                schema, schema, reports, reports);
+    }
+
+    private ResumeStateJournal newJournal(Path path)
+    {
+        return new ResumeStateJournal(path, runtime.getModelManager(), LoggerFactory.getLogger(TestResumeStateJournal.class));
+    }
+
+    @Test
+    public void testReadCommittedTaskReports() throws IOException
+    {
+        Path path = tempFolder.getRoot().toPath().resolve("resume.yml.journal");
+        try (ResumeStateJournal journal = newJournal(path)) {
+            journal.begin(newResumeState(Optional.of(Exec.newTaskReport().set("restored", true))));
+            journal.inputTaskCommitted(2, Exec.newTaskReport().set("rows", 10));
+            journal.outputTaskCommitted(2, Exec.newTaskReport().set("files", 1));
+        }
+
+        ResumeState state = ResumeStateJournal.read(path, runtime.getModelManager()).get();
+        assertEquals(3, state.getInputTaskReports().size());
+        assertTrue(state.getInputTaskReports().get(0).get().get(Boolean.class, "restored"));
+        assertFalse(state.getInputTaskReports().get(1).isPresent());
+        assertEquals(10, (int) state.getInputTaskReports().get(2).get().get(Integer.class, "rows"));
+        assertEquals(1, (int) state.getOutputTaskReports().get(2).get().get(Integer.class, "files"));
+        assertFalse(state.getOutputTaskReports().get(1).isPresent());
+        assertEquals("c0", state.getInputSchema().getColumnName(0));
+    }
+
+    @Test
+    public void testReadCheckpoints() throws IOException
+    {
+        Path path = tempFolder.getRoot().toPath().resolve("resume.yml.journal");
+        try (ResumeStateJournal journal = newJournal(path)) {
+            journal.begin(newResumeState(Optional.<TaskReport>absent()));
+            journal.outputTaskCheckpointed(1, Exec.newTaskReport().set("line", 100));
+            journal.outputTaskCheckpointed(1, Exec.newTaskReport().set("line", 200));
+            journal.outputTaskCheckpointed(2, Exec.newTaskReport().set("line", 300));
+            journal.outputTaskCommitted(2, Exec.newTaskReport());
+        }
+
+        ResumeState state = ResumeStateJournal.read(path, runtime.getModelManager()).get();
+        assertFalse(state.getOutputTaskCheckpoints().get(0).isPresent());
+        assertEquals(200, (int) state.getOutputTaskCheckpoints().get(1).get().get(Integer.class, "line"));
+        // checkpoints of committed tasks are not used
+        assertFalse(state.getOutputTaskCheckpoints().get(2).isPresent());
+    }
+
+    @Test
+    public void testIgnorePartiallyWrittenLine() throws IOException
+    {
+        Path path = tempFolder.getRoot().toPath().resolve("resume.yml.journal");
+        try (ResumeStateJournal journal = newJournal(path)) {
+            journal.begin(newResumeState(Optional.<TaskReport>absent()));
+            journal.outputTaskCommitted(1, Exec.newTaskReport());
+        }
+        Files.write(path, "{\"in\":0,\"repo".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        ResumeState state = ResumeStateJournal.read(path, runtime.getModelManager()).get();
+        assertFalse(state.getInputTaskReports().get(0).isPresent());
+        assertTrue(state.getOutputTaskReports().get(1).isPresent());
+    }
+
+    @Test
+    public void testUncommittedRanges()
+    {
+        TaskReport report = Exec.newTaskReport();
+        List<Optional<TaskReport>> reports = ImmutableList.of(
+                Optional.<TaskReport>absent(), Optional.<TaskReport>absent(), Optional.of(report),
+                Optional.<TaskReport>absent(), Optional.of(report), Optional.of(report), Optional.<TaskReport>absent());
+        List<int[]> ranges = ResumeStateJournal.uncommittedRanges(reports);
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new int[] { 0, 2 }, ranges.get(0));
+        assertArrayEquals(new int[] { 3, 4 }, ranges.get(1));
+        assertArrayEquals(new int[] { 6, 7 }, ranges.get(2));
+    }
+
+    @Test
+    public void testWriteAndReadManyTasks() throws IOException
+    {
+        int taskCount = 10000;
+        List<Optional<TaskReport>> inputReports = new ArrayList<>(taskCount);
+        List<Optional<TaskReport>> outputReports = new ArrayList<>(taskCount);
+        for (int i=0; i < taskCount; i++) {
+            inputReports.add(i % 3 == 0 ? Optional.<TaskReport>absent() : Optional.of(Exec.newTaskReport().set("i", i)));
+            outputReports.add(i % 5 == 0 ? Optional.<TaskReport>absent() : Optional.of(Exec.newTaskReport()));
+        }
+        Schema schema = Schema.builder().add("c0", Types.LONG).build();
+        ResumeState written = new ResumeState(Exec.newConfigSource(), Exec.newTaskSource(), Exec.newTaskSource(),
+                schema, schema, inputReports, outputReports);
+
+        Path path = tempFolder.getRoot().toPath().resolve("resume.yml");
+        ResumeStateJournal.write(path, written, runtime.getModelManager());
+        assertTrue(ResumeStateJournal.isJournalFile(path));
+
+        ResumeState state = ResumeStateJournal.read(path, runtime.getModelManager()).get();
+        assertEquals(taskCount, state.getInputTaskReports().size());
+        assertEquals(taskCount, state.getOutputTaskReports().size());
+        for (int i=0; i < taskCount; i++) {
+            assertEquals(i % 3 != 0, state.getInputTaskReports().get(i).isPresent());
+            assertEquals(i % 5 != 0, state.getOutputTaskReports().get(i).isPresent());
+        }
+        assertEquals(9998, (int) state.getInputTaskReports().get(9998).get().get(Integer.class, "i"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingCommittedReport() throws IOException
+    {
+        Path path = tempFolder.getRoot().toPath().resolve("resume.yml");
+        ResumeStateJournal.write(path, newResumeState(Optional.of(Exec.newTaskReport())), runtime.getModelManager());
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        Files.write(path, lines.subList(0, 1), StandardCharsets.UTF_8);
+
+        ResumeStateJournal.read(path, runtime.getModelManager());
+    }
+
+    @Test
+    public void testYamlIsNotJournalFile() throws IOException
+    {
+        Path path = tempFolder.newFile("resume.yml").toPath();
+        Files.write(path, "exec_task: {}\n".getBytes(StandardCharsets.UTF_8));
+        assertFalse(ResumeStateJournal.isJournalFile(path));
+    }
+
+    @Test
+    public void testEmptyJournal() throws IOException
+    {
+        Path path = tempFolder.newFile("resume.yml.journal").toPath();
+        assertFalse(ResumeStateJournal.read(path, runtime.getModelManager()).isPresent());
+    }
+}
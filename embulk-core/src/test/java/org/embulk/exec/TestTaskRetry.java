@@ -0,0 +1,109 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import com.google.common.collect.ImmutableList;
+
+public class TestTaskRetry
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(1);
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private TaskRetry newTaskRetry(ConfigSource config)
+    {
+        return TaskRetry.load(config.set("retry_initial_wait_msec", 1), LoggerFactory.getLogger(TestTaskRetry.class));
+    }
+
+    private static Callable<Void> newFailingTask(final AtomicInteger attempts, final int failures, final Exception error)
+    {
+        return new Callable<Void>() {
+            public Void call() throws Exception
+            {
+                if (attempts.incrementAndGet() <= failures) {
+                    throw error;
+                }
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testRetryUntilSuccess()
+    {
+        TaskRetry retry = newTaskRetry(Exec.newConfigSource().set("retry_limit", 3));
+        AtomicInteger attempts = new AtomicInteger(0);
+        Throwable error = retry.run(0, newFailingTask(attempts, 2, new IOException("transient")),
+                new TaskRunner(executor, false, LoggerFactory.getLogger(TestTaskRetry.class)));
+        assertNull(error);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testGiveUpWithLastException()
+    {
+        TaskRetry retry = newTaskRetry(Exec.newConfigSource().set("retry_limit", 2));
+        AtomicInteger attempts = new AtomicInteger(0);
+        Throwable error = retry.run(0, newFailingTask(attempts, 10, new IOException("transient")),
+                new TaskRunner(executor, false, LoggerFactory.getLogger(TestTaskRetry.class)));
+        assertEquals("transient", error.getMessage());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testRetryDisabledByDefault()
+    {
+        TaskRetry retry = newTaskRetry(Exec.newConfigSource());
+        assertFalse(retry.isEnabled());
+        AtomicInteger attempts = new AtomicInteger(0);
+        retry.run(0, newFailingTask(attempts, 10, new IOException("transient")),
+                new TaskRunner(executor, false, LoggerFactory.getLogger(TestTaskRetry.class)));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testRetryableExceptions()
+    {
+        TaskRetry retry = newTaskRetry(Exec.newConfigSource().set("retry_limit", 1));
+        assertTrue(retry.isRetryable(new IOException()));
+        assertFalse(retry.isRetryable(new ConfigException("invalid")));
+        assertFalse(retry.isRetryable(new RuntimeException(new ConfigException("invalid"))));
+
+        TaskRetry limited = newTaskRetry(Exec.newConfigSource()
+                .set("retry_limit", 1)
+                .set("retry_exceptions", ImmutableList.of("java.io.IOException")));
+        assertTrue(limited.isRetryable(new java.io.FileNotFoundException()));
+        assertTrue(limited.isRetryable(new RuntimeException(new IOException())));
+        assertFalse(limited.isRetryable(new IllegalStateException()));
+
+        // retry_exceptions overrides the default non-retryable exceptions
+        TaskRetry dataErrors = newTaskRetry(Exec.newConfigSource()
+                .set("retry_limit", 1)
+                .set("retry_exceptions", ImmutableList.of("org.embulk.spi.DataException")));
+        assertTrue(dataErrors.isRetryable(new DataException("invalid")));
+        assertFalse(dataErrors.isRetryable(new ExecutionInterruptedException(new InterruptedException())));
+    }
+}
@@ -0,0 +1,162 @@
+package org.embulk.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import com.google.common.collect.ImmutableList;
+
+public class TestTaskRunner
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class RecordingListener
+            implements TaskRunner.Listener
+    {
+        private final Map<Integer, String> results = new ConcurrentHashMap<>();
+
+        public void finished(int taskIndex, Throwable error)
+        {
+            results.put(taskIndex, error == null ? "ok" : error.getMessage());
+        }
+    }
+
+    @Test
+    public void testWaitForAllTasks()
+    {
+        TaskRunner runner = new TaskRunner(executor, false, LoggerFactory.getLogger(TestTaskRunner.class));
+        for (int i=0; i < 5; i++) {
+            final int index = i;
+            runner.submit(i, new Callable<Throwable>() {
+                public Throwable call()
+                {
+                    return index == 2 ? new RuntimeException("failed") : null;
+                }
+            });
+        }
+        RecordingListener listener = new RecordingListener();
+        runner.waitFor(listener);
+        assertEquals(5, listener.results.size());
+        assertEquals("failed", listener.results.get(2));
+        assertEquals("ok", listener.results.get(4));
+    }
+
+    @Test
+    public void testFailFast() throws Exception
+    {
+        final CountDownLatch running = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        final AtomicInteger queuedTasksStarted = new AtomicInteger(0);
+
+        TaskRunner runner = new TaskRunner(executor, true, LoggerFactory.getLogger(TestTaskRunner.class));
+        runner.submit(0, new Callable<Throwable>() {
+            public Throwable call()
+            {
+                running.countDown();
+                try {
+                    Thread.sleep(60000);
+                    return null;
+                } catch (InterruptedException ex) {
+                    interrupted.set(true);
+                    return ex;
+                }
+            }
+        });
+        runner.submit(1, new Callable<Throwable>() {
+            public Throwable call() throws Exception
+            {
+                running.await(10, TimeUnit.SECONDS);
+                return new RuntimeException("failed");
+            }
+        });
+        for (int i=2; i < 100; i++) {
+            runner.submit(i, new Callable<Throwable>() {
+                public Throwable call() throws Exception
+                {
+                    queuedTasksStarted.incrementAndGet();
+                    Thread.sleep(100);
+                    return null;
+                }
+            });
+        }
+
+        RecordingListener listener = new RecordingListener();
+        long start = System.nanoTime();
+        runner.waitFor(listener);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+
+        // the running task is interrupted and joined before waitFor returns
+        assertTrue(interrupted.get());
+        assertTrue(queuedTasksStarted.get() < 10);
+        assertEquals("failed", listener.results.get(1));
+        assertFalse(listener.results.containsKey(0));
+    }
+
+    private static Callable<Throwable> newCountingTask(final AtomicInteger running, final AtomicInteger maxRunning)
+    {
+        return new Callable<Throwable>() {
+            public Throwable call() throws Exception
+            {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testConcurrency()
+    {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        TaskRunner runner = new TaskRunner(executor, false, 1, ImmutableList.<Semaphore>of(),
+                LoggerFactory.getLogger(TestTaskRunner.class));
+        for (int i=0; i < 10; i++) {
+            runner.submit(i, newCountingTask(running, maxRunning));
+        }
+        RecordingListener listener = new RecordingListener();
+        runner.waitFor(listener);
+        assertEquals(10, listener.results.size());
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testPermitsAreSharedAndReleased()
+    {
+        Semaphore permit = new Semaphore(1);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        TaskRunner runner = new TaskRunner(executor, false, 2, ImmutableList.of(permit),
+                LoggerFactory.getLogger(TestTaskRunner.class));
+        for (int i=0; i < 5; i++) {
+            runner.submit(i, newCountingTask(running, maxRunning));
+        }
+        RecordingListener listener = new RecordingListener();
+        runner.waitFor(listener);
+        assertEquals(5, listener.results.size());
+        assertEquals(1, maxRunning.get());
+        assertEquals(1, permit.availablePermits());
+    }
+}
@@ -21,4 +21,25 @@ public class TestBuffer
         assertFalse(b1.hashCode() == b2.hashCode());
         assertTrue(b2.hashCode() == b3.hashCode());
     }
+
+    @Test
+    public void testDirectBuffer() throws Exception
+    {
+        byte[] bytes = new byte[] { 1, 2, 3, 2, 3 };
+        Buffer heap = Buffer.wrap(bytes, 1, 2);  // [2, 3]
+        Buffer direct = Buffer.allocateDirect(4);
+        direct.setBytes(0, bytes, 1, 2);
+        direct.limit(2);
+
+        assertFalse(direct.hasArray());
+        assertEquals(3, direct.getByte(1));
+        assertTrue(heap.equals(direct));
+        assertTrue(direct.equals(heap));
+        assertTrue(heap.hashCode() == direct.hashCode());
+
+        Buffer copy = Buffer.allocate(2);
+        copy.setBytes(0, direct, 0, 2);
+        copy.limit(2);
+        assertTrue(copy.equals(heap));
+    }
 }
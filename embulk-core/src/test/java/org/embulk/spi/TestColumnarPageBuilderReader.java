@@ -0,0 +1,245 @@
+package org.embulk.spi;
+
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.util.ColumnarPages;
+import org.embulk.spi.util.Pages;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestColumnarPageBuilderReader
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = Schema.builder()
+        .add("c0", DOUBLE)
+        .add("c1", STRING)
+        .add("c2", LONG)
+        .add("c3", BOOLEAN)
+        .add("c4", TIMESTAMP)
+        .build();
+
+    @Test
+    public void testBuildAndRead()
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(runtime.getBufferAllocator(), schema, output)) {
+            builder.setDouble(0, 8122.0);
+            builder.setString(1, "val1");
+            builder.setLong(2, 3L);
+            builder.setBoolean(3, false);
+            builder.setTimestamp(4, Timestamp.ofEpochSecond(1, 2));
+            builder.addRecord();
+            builder.setNull(0);
+            builder.setString(1, "val1");
+            builder.setNull(2);
+            builder.setBoolean(3, true);
+            builder.setNull(4);
+            builder.addRecord();
+            builder.finish();
+        }
+        assertEquals(1, output.pages.size());
+
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            reader.setPage(output.pages.get(0));
+            assertEquals(2, reader.getRecordCount());
+
+            assertEquals(8122.0, reader.getDouble(0, 0), 0.0);
+            assertEquals("val1", reader.getString(1, 0));
+            assertEquals(3L, reader.getLong(2, 0));
+            assertFalse(reader.getBoolean(3, 0));
+            assertEquals(Timestamp.ofEpochSecond(1, 2), reader.getTimestamp(4, 0));
+            assertFalse(reader.isNull(0, 0));
+
+            assertTrue(reader.isNull(0, 1));
+            assertEquals("val1", reader.getString(1, 1));
+            assertTrue(reader.isNull(2, 1));
+            assertTrue(reader.getBoolean(3, 1));
+            assertTrue(reader.isNull(4, 1));
+        }
+    }
+
+    @Test
+    public void testConvertRoundTrip()
+    {
+        BufferAllocator smallPageAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(64);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(64, minimumCapacity));
+            }
+        };
+
+        Object[] values = new Object[] {
+            8122.0, "val1", 3L, false, Timestamp.ofEpochMilli(0),
+            140.15, "val2", Long.MAX_VALUE, true, Timestamp.ofEpochMilli(10),
+            null, null, null, null, null,
+            0.5, "val1", -1L, true, Timestamp.ofEpochSecond(100, 999),
+        };
+        List<Page> rowPages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values);
+        List<Object[]> expected = Pages.toObjects(schema, PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values));
+
+        MockPageOutput columnarOutput = new MockPageOutput();
+        PageOutput toColumnar = ColumnarPages.toColumnar(smallPageAllocator, schema, columnarOutput);
+        for (Page page : rowPages) {
+            toColumnar.add(page);
+        }
+        toColumnar.finish();
+        toColumnar.close();
+        assertTrue(columnarOutput.pages.size() > 1);
+
+        MockPageOutput rowOutput = new MockPageOutput();
+        PageOutput toRows = ColumnarPages.toRows(runtime.getBufferAllocator(), schema, rowOutput);
+        for (Page page : columnarOutput.pages) {
+            toRows.add(page);
+        }
+        toRows.finish();
+        toRows.close();
+
+        List<Object[]> actual = Pages.toObjects(schema, rowOutput.pages);
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testRecordCapacity()
+    {
+        for (int size=0; size < 1024; size++) {
+            int capacity = ColumnarPageFormat.recordCapacity(schema, size);
+            if (capacity > 0) {
+                assertTrue(ColumnarPageFormat.pageSize(schema, capacity) <= size);
+            }
+            assertTrue(ColumnarPageFormat.pageSize(schema, capacity + 1) > size);
+        }
+    }
+
+    @Test
+    public void testBufferOfOneRecord()
+    {
+        final int size = (int) ColumnarPageFormat.pageSize(schema, 1);
+        BufferAllocator exactAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(size);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(minimumCapacity);
+            }
+        };
+
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(exactAllocator, schema, output)) {
+            for (int i=0; i < 3; i++) {
+                builder.setDouble(0, i);
+                builder.setString(1, "val" + i);
+                builder.setLong(2, i);
+                builder.setBoolean(3, true);
+                builder.setTimestamp(4, Timestamp.ofEpochSecond(i, i));
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        assertEquals(3, output.pages.size());
+
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            for (int i=0; i < 3; i++) {
+                reader.setPage(output.pages.get(i));
+                assertEquals(1, reader.getRecordCount());
+                assertEquals((double) i, reader.getDouble(0, 0), 0.0);
+                assertEquals("val" + i, reader.getString(1, 0));
+                assertEquals((long) i, reader.getLong(2, 0));
+                assertTrue(reader.getBoolean(3, 0));
+                assertEquals(Timestamp.ofEpochSecond(i, i), reader.getTimestamp(4, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testPartialPageIsCompacted()
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(runtime.getBufferAllocator(), schema, output)) {
+            for (int i=0; i < 10; i++) {
+                builder.setDouble(0, i);
+                builder.setString(1, "val" + i);
+                builder.setLong(2, i);
+                if (i % 3 == 0) {
+                    builder.setNull(3);
+                } else {
+                    builder.setBoolean(3, i % 2 == 0);
+                }
+                builder.setTimestamp(4, Timestamp.ofEpochSecond(i, i));
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        assertEquals(1, output.pages.size());
+        assertEquals(ColumnarPageFormat.pageSize(schema, 10), output.pages.get(0).buffer().limit());
+
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            reader.setPage(output.pages.get(0));
+            assertEquals(10, reader.getRecordCount());
+            for (int i=0; i < 10; i++) {
+                assertEquals((double) i, reader.getDouble(0, i), 0.0);
+                assertEquals("val" + i, reader.getString(1, i));
+                assertEquals((long) i, reader.getLong(2, i));
+                assertEquals(i % 3 == 0, reader.isNull(3, i));
+                if (i % 3 != 0) {
+                    assertEquals(i % 2 == 0, reader.getBoolean(3, i));
+                }
+                assertEquals(Timestamp.ofEpochSecond(i, i), reader.getTimestamp(4, i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectPagesOfOtherLayout()
+    {
+        MockPageOutput columnarOutput = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(runtime.getBufferAllocator(), schema, columnarOutput)) {
+            builder.setNull(0);
+            builder.addRecord();
+            builder.finish();
+        }
+        try (PageReader reader = new PageReader(schema)) {
+            reader.setPage(columnarOutput.pages.get(0));
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+
+        List<Page> rowPages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                new Object[] { 1.0, "val1", 1L, true, Timestamp.ofEpochSecond(1) });
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            reader.setPage(rowPages.get(0));
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}
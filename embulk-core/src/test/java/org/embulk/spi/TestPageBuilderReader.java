@@ -5,9 +5,11 @@ import static org.embulk.spi.type.Types.DOUBLE;
 import static org.embulk.spi.type.Types.LONG;
 import static org.embulk.spi.type.Types.STRING;
 import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import org.embulk.spi.time.Timestamp;
@@ -124,6 +126,78 @@ public class TestPageBuilderReader
                 Timestamp.ofEpochMilli(0), Timestamp.ofEpochMilli(10));
     }
 
+    @Test
+    public void testPrimitiveTimestamp()
+    {
+        MockPageOutput output = new MockPageOutput();
+        this.builder = new PageBuilder(bufferAllocator, Schema.builder().add("col1", TIMESTAMP).build(), output);
+        builder.setTimestamp(0, 1416365189L, 123456789);
+        builder.addRecord();
+        builder.flush();
+        builder.close();
+
+        this.reader = new PageReader(Schema.builder().add("col1", TIMESTAMP).build());
+        reader.setPage(output.pages.get(0));
+        assertTrue(reader.nextRecord());
+        assertEquals(1416365189L, reader.getTimestampEpochSecond(0));
+        assertEquals(123456789, reader.getTimestampNano(0));
+        assertEquals(Timestamp.ofEpochSecond(1416365189L, 123456789), reader.getTimestamp(0));
+    }
+
+    @Test
+    public void testStringBytes()
+    {
+        BufferAllocator smallPageAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(64);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(64, minimumCapacity));
+            }
+        };
+
+        Schema schema = Schema.builder().add("col1", STRING).add("col2", STRING).build();
+        MockPageOutput output = new MockPageOutput();
+        this.builder = new PageBuilder(smallPageAllocator, schema, output);
+        List<String> expected = new ArrayList<>();
+        for (int i=0; i < 20; i++) {
+            String reference = "ref" + (i % 3);
+            // the last record is larger than a page
+            String bytes = (i == 19) ? new String(new char[100]).replace('\0', 'x') : "\u3042" + i;
+            builder.setString(0, reference);
+            builder.setStringBytes(1, bytes.getBytes(StandardCharsets.UTF_8));
+            builder.addRecord();
+            expected.add(reference);
+            expected.add(bytes);
+        }
+        builder.finish();
+        builder.close();
+        assertTrue(output.pages.size() > 1);
+
+        this.reader = new PageReader(schema);
+        List<String> actual = new ArrayList<>();
+        for (Page page : output.pages) {
+            reader.setPage(page);
+            String[] batch = new String[PageReader.getRecordCount(page)];
+            reader.readStrings(1, batch);
+            int i = 0;
+            while (reader.nextRecord()) {
+                actual.add(reader.getString(0));
+                CharSequence value = reader.getCharSequence(1);
+                assertTrue(value instanceof Utf8String);
+                assertEquals(batch[i++], value.toString());
+                actual.add(value.toString());
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
     @Test
     public void testNull()
     {
@@ -227,6 +301,55 @@ public class TestPageBuilderReader
         }
     }
 
+    @Test
+    public void testBatchRead()
+    {
+        Schema schema = Schema.builder()
+                    .add("col3", DOUBLE)
+                    .add("col1", STRING)
+                    .add("col3", LONG)
+                    .add("col3", BOOLEAN)
+                    .add("col2", TIMESTAMP)
+                    .build();
+        Page page = buildPage(schema,
+                8122.0, "val1", 3L, false, Timestamp.ofEpochMilli(0),
+                null, null, null, null, null,
+                140.15, "val2", Long.MAX_VALUE, true, Timestamp.ofEpochSecond(10, 20));
+        this.reader = new PageReader(schema);
+        reader.setPage(page);
+
+        boolean[] nulls = new boolean[3];
+        assertEquals(3, reader.readNulls(0, nulls));
+        assertArrayEquals(new boolean[] { false, true, false }, nulls);
+
+        double[] doubles = new double[3];
+        reader.readDoubles(0, doubles);
+        assertArrayEquals(new double[] { 8122.0, 0.0, 140.15 }, doubles, 0.0);
+
+        String[] strings = new String[3];
+        reader.readStrings(1, strings);
+        assertArrayEquals(new String[] { "val1", null, "val2" }, strings);
+
+        long[] longs = new long[3];
+        reader.readLongs(2, longs);
+        assertArrayEquals(new long[] { 3L, 0L, Long.MAX_VALUE }, longs);
+
+        boolean[] booleans = new boolean[3];
+        reader.readBooleans(3, booleans);
+        assertArrayEquals(new boolean[] { false, false, true }, booleans);
+
+        long[] seconds = new long[3];
+        int[] nanos = new int[3];
+        reader.readTimestampEpochSeconds(4, seconds);
+        reader.readTimestampNanos(4, nanos);
+        assertArrayEquals(new long[] { 0L, 0L, 10L }, seconds);
+        assertArrayEquals(new int[] { 0, 0, 20 }, nanos);
+
+        // batch reads don't move the cursor
+        assertTrue(reader.nextRecord());
+        assertEquals(8122.0, reader.getDouble(0), 0.0);
+    }
+
     @Test
     public void testEmptySchema()
     {
@@ -297,6 +420,34 @@ public class TestPageBuilderReader
                 ).size());
     }
 
+    @Test
+    public void testDirectBuffer()
+    {
+        this.bufferAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocateDirect(1024);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocateDirect(Math.max(1024, minimumCapacity));
+            }
+        };
+        check(Schema.builder()
+                    .add("col3", DOUBLE)
+                    .add("col1", STRING)
+                    .add("col3", LONG)
+                    .add("col3", BOOLEAN)
+                    .add("col2", TIMESTAMP)
+                    .build(),
+                8122.0, "val1", 3L, false, Timestamp.ofEpochMilli(0),
+                140.15, "val2", Long.MAX_VALUE, true, Timestamp.ofEpochMilli(10));
+    }
+
     @Test
     public void testRepeatableClose()
     {
@@ -0,0 +1,59 @@
+package org.embulk.spi;
+
+import static org.junit.Assert.assertEquals;
+import java.util.List;
+import org.junit.Test;
+
+public class TestStringDictionary
+{
+    @Test
+    public void testAddAndTakeValues()
+    {
+        StringDictionary dict = new StringDictionary();
+        for (int i=0; i < 1000; i++) {
+            assertEquals(i, dict.add("v" + i));
+        }
+        for (int i=0; i < 1000; i++) {
+            assertEquals(i, dict.add("v" + i));
+        }
+        assertEquals(1000, dict.size());
+
+        List<String> values = dict.takeValues();
+        assertEquals(1000, values.size());
+        for (int i=0; i < 1000; i++) {
+            assertEquals("v" + i, values.get(i));
+        }
+
+        assertEquals(0, dict.size());
+        assertEquals(0, dict.add("v999"));
+        assertEquals(1, dict.add("v0"));
+        assertEquals("v999", values.get(999));
+    }
+
+    @Test
+    public void testAddAfterTakingValuesOfAnySize()
+    {
+        StringDictionary dict = new StringDictionary();
+        for (int i=0; i < 300; i++) {
+            dict.add("a" + i);
+        }
+        dict.takeValues();
+        for (int i=0; i < 5000; i++) {
+            assertEquals(i, dict.add("b" + i));
+        }
+        for (int i=0; i < 5000; i++) {
+            assertEquals(i, dict.add("b" + i));
+        }
+    }
+
+    @Test
+    public void testClear()
+    {
+        StringDictionary dict = new StringDictionary();
+        dict.add("a");
+        dict.add("b");
+        dict.clear();
+        assertEquals(0, dict.size());
+        assertEquals(0, dict.add("b"));
+    }
+}
@@ -0,0 +1,126 @@
+package org.embulk.spi.time;
+
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.jruby.embed.ScriptingContainer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.embulk.config.Task;
+import org.embulk.spi.Exec;
+import org.embulk.EmbulkTestRuntime;
+
+public class TestStrptimeParser
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private interface ParserTestTask
+            extends Task, TimestampParser.Task
+    { }
+
+    private JRubyTimeParserHelperFactory helperFactory;
+
+    @Before
+    public void setup()
+    {
+        ScriptingContainer jruby = Exec.newConfigSource().loadConfig(ParserTestTask.class).getJRuby();
+        helperFactory = (JRubyTimeParserHelperFactory) jruby.runScriptlet("Embulk::Java::TimeParserHelper::Factory.new");
+    }
+
+    @Test
+    public void testSameWithRuby()
+    {
+        assertSameWithRuby("%Y-%m-%d %H:%M:%S.%N %z",
+                "2014-11-19 02:46:29.123456 +0900",
+                "2014-11-19 02:46:29.123456789 -09:30",
+                "2014-11-19 02:46:29.1 UTC",
+                "2014-11-19 02:46:29.123456 Z",
+                "2014-11-19 02:46:29.123456 America/Los_Angeles",
+                "2014-11-19 02:46:29.123456 GMT+9",
+                "2014-11-19 02:46:29.123456 Eastern Standard Time",
+                "2014-11-19    02:46:29.123456   PST trailing",
+                "-2014-1-9 2:4:9.0 JST",
+                "20141-11-19 02:46:29.123456 UTC",
+                "2014-02-31 24:00:60.5 UTC");
+        assertSameWithRuby("%Y-%m-%d %H:%M:%S",
+                "2014-11-19 02:46:29",
+                "2014-11-19 02:46:29 +0900",
+                "2014-11-19 02:46",
+                "2014-13-19 02:46:29",
+                "2014-11-32 02:46:29",
+                "2014-11-19 25:46:29",
+                "2014-11-19 02:60:29",
+                "2014-11-19 02:46:61",
+                "2014-11-19T02:46:29",
+                "");
+        assertSameWithRuby("%Y%m%d%H%M%S%z",
+                "20141119024629+0900",
+                "201411190246",
+                "2014111902462");
+        assertSameWithRuby("%Y-%m-%dT%H:%M:%S%Z", "2014-11-19T02:46:29Z", "2014-11-19T02:46:29.5Z");
+        assertSameWithRuby("%Y-%m-%d", "2014-11-19", "2014-1-1", "2014-01-01 12:00:00");
+        assertSameWithRuby("%F %T.%L", "2014-11-19 02:46:29.123", "2014-11-19 02:46:29.12");
+        assertSameWithRuby("%m/%d/%y %I:%M %p", "11/19/14 02:46 PM", "11/19/68 12:46 am", "11/19/69 12:46 p.m.", "11/19/14 13:46 PM");
+        assertSameWithRuby("%d/%b/%Y:%H:%M:%S %z", "19/Nov/2014:02:46:29 -0800", "19/november/2014:02:46:29 +0000", "19/Foo/2014:02:46:29 +0000");
+        assertSameWithRuby("%a, %d %B %Y %H:%M:%S %Z", "Wed, 19 November 2014 02:46:29 GMT", "wednesday, 1 Nov 2014 02:46:29 EST");
+        assertSameWithRuby("%c", "Wed Nov 19 02:46:29 2014", "Wed Nov  9 02:46:29 2014");
+        assertSameWithRuby("%e-%b-%Y %k:%M", " 9-Nov-2014  2:46", "19-Nov-2014 12:46");
+        assertSameWithRuby("%H:%M", "02:46", "2:46");
+        assertSameWithRuby("%s", "1416365189", "-1416365189", "+1", "x");
+        assertSameWithRuby("%s.%N", "1416365189.123456", "1416365189.1", "3.-082", "3.+5");
+        assertSameWithRuby("%Y%%%m", "2014%11", "2014-11");
+        assertSameWithRuby("%C%y-%m-%d", "2014-11-19", "1969-11-19");
+    }
+
+    @Test
+    public void testBeforeEpoch()
+    {
+        // Time.utc of JRuby truncates tv_sec toward zero
+        StrptimeParser parser = StrptimeParser.compile("%Y-%m-%d %H:%M:%S.%N").get();
+        assertEquals(-1L, parser.strptimeUsec("1969-12-31 23:59:59.999999"));
+        assertEquals(-62135596800000000L, parser.strptimeUsec("0001-01-01 00:00:00.0"));
+    }
+
+    @Test
+    public void testMilliseconds()
+    {
+        StrptimeParser parser = StrptimeParser.compile("%Q").get();
+        assertEquals(1416365189123000L, parser.strptimeUsec("1416365189123"));
+        assertEquals(-1000L, parser.strptimeUsec("-1"));
+    }
+
+    @Test
+    public void testUnsupportedFormat()
+    {
+        assertFalse(StrptimeParser.compile("%Y-%j").isPresent());
+        assertFalse(StrptimeParser.compile("%Y-%m-%d %H:%M:%S.%3N").isPresent());
+        assertFalse(StrptimeParser.compile("%Y-%m-%d %H:%M:%S %:z").isPresent());
+        assertTrue(StrptimeParser.compile("%Y-%m-%d %H:%M:%S.%N %z").isPresent());
+    }
+
+    private void assertSameWithRuby(String format, String... texts)
+    {
+        StrptimeParser parser = StrptimeParser.compile(format).get();
+        JRubyTimeParserHelper helper = helperFactory.newInstance(format, 1970, 1, 1, 0, 0, 0, 0);
+        for (String text : texts) {
+            String message = format + " with '" + text + "'";
+            long expected;
+            try {
+                expected = helper.strptimeUsec(text);
+            } catch (RuntimeException ex) {
+                // Time.utc of Ruby raises ArgumentError for 24:00:01
+                try {
+                    parser.strptimeUsec(text);
+                    fail(message + " must fail");
+                } catch (TimestampParseException expectedException) {
+                }
+                continue;
+            }
+            assertEquals(message, expected, parser.strptimeUsec(text));
+            assertEquals(message, helper.getZone(), parser.getZone());
+        }
+    }
+}
@@ -4,7 +4,11 @@ import org.junit.Rule;
 import org.junit.Before;
 import org.junit.Test;
 import com.google.common.base.Optional;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigSource;
@@ -60,4 +64,74 @@ public class TestTimestampFormatterParser
         TimestampParser parser = new TimestampParser(ptask);
         assertEquals(Timestamp.ofEpochSecond(1416365189), parser.parse("1416365189"));
     }
+
+    @Test
+    public void testPrimitiveFormatParse() throws Exception
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("default_timestamp_format", "%Y-%m-%d %H:%M:%S.%6N %Z");
+
+        FormatterTestTask ftask = config.loadConfig(FormatterTestTask.class);
+        TimestampFormatter formatter = new TimestampFormatter(ftask, Optional.<TimestampFormatter.TimestampColumnOption>absent());
+        assertEquals("2014-11-19 02:46:29.123456 UTC", formatter.format(1416365189L, 123456000));
+
+        ParserTestTask ptask = config.set("default_timestamp_format", "%Y-%m-%d %H:%M:%S.%N %Z").loadConfig(ParserTestTask.class);
+        TimestampParser parser = new TimestampParser(ptask);
+        assertEquals(1416365189L, parser.parseEpochSecond("2014-11-19 02:46:29.123456 UTC"));
+        assertEquals(123456000, parser.getParsedNano());
+    }
+
+    @Test
+    public void testParseBeforeEpoch() throws Exception
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("default_timestamp_format", "%Y-%m-%d %H:%M:%S.%N %Z");
+        ParserTestTask task = config.loadConfig(ParserTestTask.class);
+
+        TimestampParser parser = new TimestampParser(task);
+        assertEquals(Timestamp.ofEpochSecond(-1, 500000000), parser.parse("1969-12-31 23:59:59.5 UTC"));
+    }
+
+    @Test
+    public void testParseWithLocalTimeZone() throws Exception
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("default_timestamp_format", "%Y-%m-%d %H:%M:%S")
+            .set("default_timezone", "America/Los_Angeles");
+        ParserTestTask task = config.loadConfig(ParserTestTask.class);
+
+        TimestampParser parser = new TimestampParser(task);
+        DateTimeZone zone = DateTimeZone.forID("America/Los_Angeles");
+        DateTimeFormatter local = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").withZoneUTC();
+        // every 10 minutes around DST transitions including gaps and overlaps
+        for (String start : new String[] { "2015-03-07 00:00:00", "2015-10-31 00:00:00" }) {
+            long startMillis = local.parseMillis(start);
+            for (int i=0; i < 6 * 24 * 3; i++) {
+                long localMillis = startMillis + i * 600 * 1000L;
+                assertEquals(zone.convertLocalToUTC(localMillis, false) / 1000,
+                        parser.parseEpochSecond(local.print(localMillis)));
+            }
+        }
+    }
+
+    @Test
+    public void testParseVariousTimeZones() throws Exception
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("default_timestamp_format", "%Y-%m-%d %H:%M:%S %Z");
+        ParserTestTask task = config.loadConfig(ParserTestTask.class);
+
+        TimestampParser parser = new TimestampParser(task);
+        for (int i=0; i < 3; i++) {
+            assertEquals(Timestamp.ofEpochSecond(1416365189), parser.parse("2014-11-19 02:46:29 UTC"));
+            assertEquals(Timestamp.ofEpochSecond(1416365189 - 9 * 3600), parser.parse("2014-11-19 02:46:29 +09:00"));
+            assertEquals(Timestamp.ofEpochSecond(1416365189 + 8 * 3600), parser.parse("2014-11-19 02:46:29 PST"));
+            assertEquals(Timestamp.ofEpochSecond(1416365189), parser.parse("2014-11-19 02:46:29 Z"));
+        }
+        try {
+            parser.parse("2014-11-19 02:46:29 Nowhere");
+            fail();
+        } catch (TimestampParseException ex) {
+        }
+    }
 }
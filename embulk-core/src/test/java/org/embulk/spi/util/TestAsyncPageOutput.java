@@ -0,0 +1,151 @@
+package org.embulk.spi.util;
+
+import static org.embulk.spi.type.Types.LONG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestAsyncPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Schema schema = Schema.builder().add("c0", LONG).build();
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class ThreadRecordingOutput
+            extends MockPageOutput
+    {
+        private volatile Thread addedBy;
+        private volatile boolean finished;
+
+        @Override
+        public void add(Page page)
+        {
+            addedBy = Thread.currentThread();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            super.add(page);
+        }
+
+        @Override
+        public void finish()
+        {
+            finished = true;
+        }
+    }
+
+    @Test
+    public void testAddAndFinish()
+    {
+        ThreadRecordingOutput output = new ThreadRecordingOutput();
+        try (AsyncPageOutput async = new AsyncPageOutput(runtime.getExec(), executor, 2, "test-stage", output)) {
+            for (long i=0; i < 10; i++) {
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, i)) {
+                    async.add(page);
+                }
+            }
+            async.finish();
+            // finish returns after all pages are added to the output
+            assertTrue(output.finished);
+            assertEquals(10, output.pages.size());
+            assertNotEquals(Thread.currentThread(), output.addedBy);
+        }
+
+        List<Object[]> records = Pages.toObjects(schema, output.pages);
+        for (int i=0; i < 10; i++) {
+            assertEquals((long) i, records.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void testSync()
+    {
+        ThreadRecordingOutput output = new ThreadRecordingOutput();
+        try (AsyncPageOutput async = new AsyncPageOutput(runtime.getExec(), executor, 4, "test-stage", output)) {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, 1L, 2L, 3L)) {
+                async.add(page);
+            }
+            async.sync();
+            assertEquals(1, output.pages.size());
+        }
+    }
+
+    @Test
+    public void testErrorOfNextStage()
+    {
+        MockPageOutput output = new MockPageOutput() {
+            @Override
+            public void add(Page page)
+            {
+                page.release();
+                throw new IllegalStateException("expected");
+            }
+        };
+        try (AsyncPageOutput async = new AsyncPageOutput(runtime.getExec(), executor, 1, "test-stage", output)) {
+            try {
+                for (long i=0; i < 10; i++) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, i)) {
+                        async.add(page);
+                    }
+                }
+                async.finish();
+                fail();
+            } catch (IllegalStateException ex) {
+                assertEquals("expected", ex.getMessage());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStopBeforeNextStageStarts() throws Exception
+    {
+        // the only thread is busy so that the next stage stays in the queue
+        ExecutorService busy = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            busy.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException
+                {
+                    blocked.await();
+                    return null;
+                }
+            });
+            MockPageOutput output = new MockPageOutput();
+            AsyncPageOutput async = new AsyncPageOutput(runtime.getExec(), busy, 1, "test-stage", output);
+            async.close();
+        } finally {
+            blocked.countDown();
+            busy.shutdown();
+        }
+
+        // stop() races with start of a thread of a cached thread pool
+        for (int i=0; i < 100; i++) {
+            new AsyncPageOutput(runtime.getExec(), executor, 1, "test-stage", new MockPageOutput()).close();
+        }
+    }
+}
@@ -128,5 +128,27 @@ public class TestLineDecoder
         assertEquals(ImmutableList.of("t1", "t2", "t3"), decoded);
     }
 
+    @Test
+    public void testLineOffsets() throws Exception
+    {
+        // "\u3042" is 3 bytes in utf-8
+        LineDecoder decoder = newDecoder(
+                Charset.forName("utf-8"), Newline.LF,
+                bufferList("utf-8", "t1\r", "\n\u3042", "\n\n", "t3\r", "t4"));
+        decoder.nextFile();
+        List<String> lines = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        while (true) {
+            String line = decoder.poll();
+            if (line == null) {
+                break;
+            }
+            lines.add(line);
+            offsets.add(decoder.getLineOffset());
+        }
+        assertEquals(ImmutableList.of("t1", "\u3042", "", "t3", "t4"), lines);
+        assertEquals(ImmutableList.of(0L, 4L, 8L, 9L, 12L), offsets);
+    }
+
     // TODO test multibytes
 }
@@ -3,6 +3,7 @@ package org.embulk.spi.util;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
@@ -18,6 +19,7 @@ import org.embulk.spi.Buffer;
 import org.embulk.spi.Exec;
 import org.embulk.spi.MockFileOutput;
 import org.embulk.spi.FileOutput;
+import org.embulk.spi.Utf8String;
 import org.embulk.EmbulkTestRuntime;
 
 public class TestLineEncoder
@@ -115,6 +117,39 @@ public class TestLineEncoder
         }
     }
 
+    @Test
+    public void testAddUtf8Text() throws Exception
+    {
+        String[] texts = new String[] { "abc", "日本語", "\ud83d\ude00", "lone\ud83d", "\ude00lone" };
+        for (String charset : new String[] { "utf-8", "utf-16" }) {
+            try (MockFileOutput output = new MockFileOutput()) {
+                LineEncoder encoder = newEncoder(charset, "LF", output);
+                encoder.nextFile();
+                StringBuilder expected = new StringBuilder();
+                for (String text : texts) {
+                    encoder.addText(text);
+                    encoder.addText(new Utf8String(text.getBytes("utf-8")));
+                    encoder.addNewLine();
+                    expected.append(text).append(new String(text.getBytes("utf-8"), "utf-8")).append("\n");
+                }
+                encoder.finish();
+                assertEquals(new String(expected.toString().getBytes(charset), charset), buffersToString(output.getLastBuffers(), charset));
+            }
+        }
+    }
+
+    private String buffersToString(List<Buffer> buffers, String charset)
+            throws UnsupportedEncodingException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Buffer buffer : buffers) {
+            byte[] data = new byte[buffer.limit()];
+            buffer.getBytes(0, data, 0, data.length);
+            bytes.write(data, 0, data.length);
+        }
+        return new String(bytes.toByteArray(), charset);
+    }
+
     private String bufferToString(Buffer buffer, String charset)
             throws UnsupportedEncodingException
     {
@@ -0,0 +1,160 @@
+package org.embulk.spi.util;
+
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestPageCodec
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final Schema schema = Schema.builder()
+        .add("c0", DOUBLE)
+        .add("c1", STRING)
+        .add("c2", LONG)
+        .add("c3", BOOLEAN)
+        .add("c4", TIMESTAMP)
+        .build();
+
+    private final Object[] values = new Object[] {
+        8122.0, "val1", 3L, false, Timestamp.ofEpochMilli(0),
+        140.15, "あ", Long.MAX_VALUE, true, Timestamp.ofEpochMilli(10),
+        null, null, null, null, null,
+    };
+
+    private byte[] encode(PageCodec codec) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+            codec.write(page, out);
+            codec.write(page, out);
+        }
+        return out.toByteArray();
+    }
+
+    private void assertPages(List<Page> pages)
+    {
+        List<Object[]> expected = new ArrayList<>();
+        expected.addAll(Pages.toObjects(schema, PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)));
+        expected.addAll(Pages.toObjects(schema, PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)));
+        List<Object[]> actual = Pages.toObjects(schema, pages);
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException
+    {
+        PageCodec codec = new PageCodec(schema);
+        ByteArrayInputStream in = new ByteArrayInputStream(encode(codec));
+        List<Page> pages = new ArrayList<>();
+        Page page;
+        while ((page = codec.read(in)) != null) {
+            pages.add(page);
+        }
+        assertPages(pages);
+    }
+
+    @Test
+    public void testByteBuffer() throws IOException
+    {
+        PageCodec codec = new PageCodec(schema);
+        ByteBuffer src = ByteBuffer.wrap(encode(codec));
+        List<Page> pages = new ArrayList<>();
+        Page page;
+        while ((page = codec.read(src)) != null) {
+            pages.add(page);
+        }
+        assertPages(pages);
+    }
+
+    @Test
+    public void testMappedFile() throws IOException
+    {
+        PageCodec codec = new PageCodec(schema);
+        File file = tempFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(encode(codec));
+        }
+
+        List<Page> pages = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            ByteBuffer src = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            Page page;
+            while ((page = codec.read(src)) != null) {
+                pages.add(page);
+            }
+            assertPages(pages);
+        }
+    }
+
+    @Test
+    public void testSchemaMismatch() throws IOException
+    {
+        byte[] encoded = encode(new PageCodec(schema));
+        PageCodec other = new PageCodec(Schema.builder().add("c0", DOUBLE).build());
+        try {
+            other.read(ByteBuffer.wrap(encoded));
+            fail();
+        } catch (DataException ex) {
+        }
+        assertNull(other.read(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testCorruptedLengths() throws IOException
+    {
+        PageCodec codec = new PageCodec(schema);
+        byte[] encoded = encode(codec);
+        int recordLength = ByteBuffer.wrap(encoded).getInt(20);
+        // frame length, record area length, number of string references and length of a string
+        int[] offsets = new int[] { 8, 20, 24 + recordLength, 28 + recordLength };
+        for (int offset : offsets) {
+            for (int value : new int[] { -5, 1, Integer.MAX_VALUE - 16 }) {
+                byte[] corrupted = encoded.clone();
+                ByteBuffer.wrap(corrupted).putInt(offset, value);
+                try {
+                    codec.read(ByteBuffer.wrap(corrupted));
+                    fail();
+                } catch (DataException ex) {
+                }
+                try {
+                    codec.read(new ByteArrayInputStream(corrupted));
+                    fail();
+                } catch (DataException ex) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.embulk.spi.util;
+
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TempFileSpace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpillablePageQueue
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final Schema schema = Schema.builder()
+        .add("c0", LONG)
+        .add("c1", STRING)
+        .build();
+
+    private List<Page> buildPages(long start, int count)
+    {
+        List<Page> pages = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            pages.addAll(PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, start + i, "v" + (start + i)));
+        }
+        return pages;
+    }
+
+    private Object[] poll(SpillablePageQueue queue)
+    {
+        Page page = queue.poll();
+        List<Object[]> records = Pages.toObjects(schema, page);
+        assertEquals(1, records.size());
+        return records.get(0);
+    }
+
+    @Test
+    public void testSpillAndReadInOrder() throws Exception
+    {
+        TempFileSpace space = new TempFileSpace(tempFolder.newFolder());
+        List<Page> pages = buildPages(0, 6);
+        long pageSize = pages.get(0).buffer().capacity();
+
+        try (SpillablePageQueue queue = new SpillablePageQueue(schema, space, pageSize * 2)) {
+            for (Page page : pages.subList(0, 4)) {
+                queue.add(page);
+            }
+            assertEquals(2, queue.getSpilledPageCount());
+            assertEquals(pageSize * 2, queue.getMemoryBytes());
+
+            assertArrayEquals(new Object[] { 0L, "v0" }, poll(queue));
+            assertArrayEquals(new Object[] { 1L, "v1" }, poll(queue));
+            assertArrayEquals(new Object[] { 2L, "v2" }, poll(queue));
+
+            // pages after spilled pages are spilled until they're read
+            queue.add(pages.get(4));
+            assertEquals(3, queue.getSpilledPageCount());
+            assertArrayEquals(new Object[] { 3L, "v3" }, poll(queue));
+            assertArrayEquals(new Object[] { 4L, "v4" }, poll(queue));
+
+            queue.add(pages.get(5));
+            queue.finish();
+            assertEquals(3, queue.getSpilledPageCount());
+            assertArrayEquals(new Object[] { 5L, "v5" }, poll(queue));
+            assertTrue(queue.isEmpty());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void testDeleteDrainedSpillFile() throws Exception
+    {
+        File dir = tempFolder.newFolder();
+        TempFileSpace space = new TempFileSpace(dir);
+        List<Page> pages = buildPages(0, 5);
+
+        try (SpillablePageQueue queue = new SpillablePageQueue(schema, space, 0)) {
+            queue.add(pages.get(0));
+            queue.add(pages.get(1));
+            assertEquals(1, spillFileCount(dir));
+            assertArrayEquals(new Object[] { 0L, "v0" }, poll(queue));
+            assertArrayEquals(new Object[] { 1L, "v1" }, poll(queue));
+            assertEquals(0, spillFileCount(dir));
+
+            // a new file is started after the last one is drained
+            queue.add(pages.get(2));
+            queue.add(pages.get(3));
+            assertEquals(1, spillFileCount(dir));
+            assertArrayEquals(new Object[] { 2L, "v2" }, poll(queue));
+            queue.add(pages.get(4));
+            queue.finish();
+            assertEquals(5, queue.getSpilledPageCount());
+            assertArrayEquals(new Object[] { 3L, "v3" }, poll(queue));
+            assertArrayEquals(new Object[] { 4L, "v4" }, poll(queue));
+            assertEquals(0, spillFileCount(dir));
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    private static int spillFileCount(File dir)
+    {
+        String[] names = dir.list();
+        return names == null ? 0 : names.length;
+    }
+}
@@ -3,7 +3,6 @@ package org.embulk.standards;
 import com.google.common.base.Optional;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
-import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.time.TimestampFormatter;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
@@ -15,12 +14,14 @@ import org.embulk.spi.FormatterPlugin;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
+import org.embulk.spi.Utf8String;
 import org.embulk.spi.FileOutput;
 import org.embulk.spi.util.LineEncoder;
 import org.embulk.spi.util.Timestamps;
 
 import org.embulk.spi.util.Newline;
 import java.util.Map;
+import java.nio.charset.StandardCharsets;
 
 public class CsvFormatterPlugin
         implements FormatterPlugin
@@ -111,6 +112,10 @@ public class CsvFormatterPlugin
         final char escape = task.getEscapeChar().or(quotePolicy == QuotePolicy.NONE ? '\\' : '\"');
         final String newlineInField = task.getNewlineInField().getString();
         final String nullString = task.getNullString();
+        final byte[] nullStringUtf8 = nullString.getBytes(StandardCharsets.UTF_8);
+        // UTF-8 bytes in pages are written without decoding if they don't need escaping
+        final boolean passThroughUtf8 = encoder.isUtf8() && quotePolicy != QuotePolicy.ALL &&
+            delimiter < 0x80 && quote < 0x80;
 
         // create a file
         encoder.nextFile();
@@ -163,7 +168,12 @@ public class CsvFormatterPlugin
                         {
                             addDelimiter(column);
                             if (!pageReader.isNull(column)) {
-                                addValue(pageReader.getString(column));
+                                CharSequence v = pageReader.getCharSequence(column);
+                                if (passThroughUtf8 && v instanceof Utf8String && !requiresEscape((Utf8String) v)) {
+                                    encoder.addText((Utf8String) v);
+                                } else {
+                                    addValue(v.toString());
+                                }
                             } else {
                                 addNullString();
                             }
@@ -173,8 +183,8 @@ public class CsvFormatterPlugin
                         {
                             addDelimiter(column);
                             if (!pageReader.isNull(column)) {
-                                Timestamp value = pageReader.getTimestamp(column);
-                                addValue(timestampFormatters[column.getIndex()].format(value));
+                                addValue(timestampFormatters[column.getIndex()].format(
+                                            pageReader.getTimestampEpochSecond(column), pageReader.getTimestampNano(column)));
                             } else {
                                 addNullString();
                             }
@@ -192,6 +202,27 @@ public class CsvFormatterPlugin
                             encoder.addText(setEscapeAndQuoteValue(v, delimiter, quotePolicy, quote, escape, newlineInField, nullString));
                         }
 
+                        // same conditions with setEscapeAndQuoteValue
+                        private boolean requiresEscape(Utf8String v)
+                        {
+                            int length = v.getByteLength();
+                            for (int i=0; i < length; i++) {
+                                byte b = v.getByte(i);
+                                if (b == quote || b == delimiter || b == '\r' || b == '\n') {
+                                    return true;
+                                }
+                            }
+                            if (quotePolicy == QuotePolicy.MINIMAL && length == nullStringUtf8.length) {
+                                for (int i=0; i < length; i++) {
+                                    if (v.getByte(i) != nullStringUtf8[i]) {
+                                        return false;
+                                    }
+                                }
+                                return true;
+                            }
+                            return false;
+                        }
+
                         private void addNullString()
                         {
                             encoder.addText(nullString);
@@ -208,7 +239,11 @@ public class CsvFormatterPlugin
 
             public void close()
             {
-                encoder.close();
+                try {
+                    pageReader.close();
+                } finally {
+                    encoder.close();
+                }
             }
         };
     }
@@ -11,6 +11,7 @@ import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.ConfigException;
 import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
 import org.embulk.spi.time.TimestampParser;
 import org.embulk.spi.time.TimestampParseException;
 import org.embulk.spi.Column;
@@ -19,8 +20,11 @@ import org.embulk.spi.SchemaConfig;
 import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.ParserPlugin;
+import org.embulk.spi.CheckpointParserPlugin;
+import org.embulk.spi.CheckpointPageOutput;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInput;
+import org.embulk.spi.SplitFileInput;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.DataException;
 import org.embulk.spi.util.LineDecoder;
@@ -28,7 +32,7 @@ import org.embulk.spi.util.Timestamps;
 import org.slf4j.Logger;
 
 public class CsvParserPlugin
-        implements ParserPlugin
+        implements ParserPlugin, CheckpointParserPlugin
 {
     private static final ImmutableSet<String> TRUE_STRINGS =
         ImmutableSet.of(
@@ -226,6 +230,21 @@ public class CsvParserPlugin
     @Override
     public void run(TaskSource taskSource, final Schema schema,
             FileInput input, PageOutput output)
+    {
+        run(taskSource, schema, input, Optional.<TaskReport>absent(), output);
+    }
+
+    // position is the index of the file and the number of lines of the file
+    // before the next record
+    @Override
+    public void resumeTask(TaskSource taskSource, Schema schema,
+            FileInput input, TaskReport position, PageOutput output)
+    {
+        run(taskSource, schema, input, Optional.of(position), output);
+    }
+
+    private void run(TaskSource taskSource, final Schema schema,
+            FileInput input, Optional<TaskReport> position, PageOutput output)
     {
         PluginTask task = taskSource.loadTask(PluginTask.class);
         final TimestampParser[] timestampParsers = Timestamps.newTimestampColumnParsers(task, task.getSchemaConfig());
@@ -235,15 +254,49 @@ public class CsvParserPlugin
         final boolean allowOptionalColumns = task.getAllowOptionalColumns();
         final boolean allowExtraColumns = task.getAllowExtraColumns();
         final boolean stopOnInvalidRecord = task.getStopOnInvalidRecord();
-        int skipHeaderLines = task.getSkipHeaderLines();
+        final CheckpointPageOutput checkpointOutput =
+                output instanceof CheckpointPageOutput ? (CheckpointPageOutput) output : null;
+
+        int resumeFileIndex = 0;
+        long resumeLine = 0;
+        long resumeOffset = -1;
+        if (position.isPresent()) {
+            resumeFileIndex = position.get().get(Integer.class, "file");
+            resumeLine = position.get().get(Long.class, "line");
+            resumeOffset = position.get().get(Long.class, "offset", -1L);
+        }
 
         try (final PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
+            int fileIndex = -1;
             while (tokenizer.nextFile()) {
+                fileIndex++;
+                if (fileIndex < resumeFileIndex) {
+                    // all records of the file are already added before the checkpoint
+                    continue;
+                }
+
+                long skipLines = task.getSkipHeaderLines();
+                if (input instanceof SplitFileInput && !((SplitFileInput) input).isHeadOfFile()) {
+                    // header lines are included only in the first split of the file
+                    skipLines = 0;
+                }
+                long lineOffset = 0;
+                if (position.isPresent() && fileIndex == resumeFileIndex) {
+                    if (resumeOffset >= 0 && lineDecoder.seek(resumeOffset)) {
+                        skipLines = 0;
+                        lineOffset = resumeLine;
+                    } else {
+                        // the input can't seek. header lines are included in the lines before the checkpoint
+                        skipLines = resumeLine;
+                    }
+                }
+
                 // skip the header lines for each file
-                for (; skipHeaderLines > 0; skipHeaderLines--) {
+                for (long i=0; i < skipLines; i++) {
                     if (lineDecoder.poll() == null) {
                         break;
                     }
+                    lineOffset++;
                 }
 
                 if (!tokenizer.nextRecord()) {
@@ -313,7 +366,9 @@ public class CsvParserPlugin
                                     pageBuilder.setNull(column);
                                 } else {
                                     try {
-                                        pageBuilder.setTimestamp(column, timestampParsers[column.getIndex()].parse(v));
+                                        TimestampParser parser = timestampParsers[column.getIndex()];
+                                        long epochSecond = parser.parseEpochSecond(v);
+                                        pageBuilder.setTimestamp(column, epochSecond, parser.getParsedNano());
                                     } catch (TimestampParseException e) {
                                         // TODO support default value
                                         throw new CsvRecordValidateException(e);
@@ -370,6 +425,19 @@ public class CsvParserPlugin
                     if (!hasNextRecord) {
                         break;
                     }
+
+                    if (checkpointOutput != null && checkpointOutput.isCheckpointRequired()) {
+                        // the tokenizer already read the first line of the next record
+                        pageBuilder.flush();
+                        TaskReport checkpoint = Exec.newTaskReport()
+                                .set("file", fileIndex)
+                                .set("line", lineOffset + tokenizer.getRecordStartLine());
+                        long offset = tokenizer.getRecordStartOffset();
+                        if (offset >= 0) {
+                            checkpoint.set("offset", offset);
+                        }
+                        checkpointOutput.checkpoint(checkpoint);
+                    }
                 }
             }
 
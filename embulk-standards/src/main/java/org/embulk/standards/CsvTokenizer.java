@@ -35,6 +35,9 @@ public class CsvTokenizer
 
     private RecordState recordState = RecordState.END;  // initial state is end of a record. nextRecord() must be called first
     private long lineNumber = 0;
+    private long fileLineCount = 0;    // lines read from the current file
+    private long recordStartLine = 0;  // index of the first line of the current record in the current file
+    private Deque<Long> lineOffsets = new ArrayDeque<>();  // byte offsets of the lines from the first line of the current record
 
     private String line = null;
     private int linePos = 0;
@@ -80,8 +83,25 @@ public class CsvTokenizer
         return skippedLine;
     }
 
+    // returns index of the first line of the current record in the lines
+    // read by this tokenizer from the current file
+    public long getRecordStartLine()
+    {
+        return recordStartLine;
+    }
+
+    // returns byte offset of the first line of the current record in the
+    // current file, or -1 if it's unknown
+    public long getRecordStartOffset()
+    {
+        Long offset = lineOffsets.peekFirst();
+        return offset != null ? offset : -1;
+    }
+
     public boolean nextFile()
     {
+        fileLineCount = 0;
+        lineOffsets.clear();
         return input.nextFile();
     }
 
@@ -101,6 +121,10 @@ public class CsvTokenizer
         boolean hasNext = nextLine(skipEmptyLine);
         if (hasNext) {
             recordState = RecordState.NOT_END;
+            recordStartLine = fileLineCount - unreadLines.size() - 1;
+            while (lineOffsets.size() > unreadLines.size() + 1) {
+                lineOffsets.removeFirst();
+            }
             return true;
         } else {
             return false;
@@ -117,6 +141,8 @@ public class CsvTokenizer
                 if (line == null) {
                     return false;
                 }
+                fileLineCount++;
+                lineOffsets.addLast(input.getLineOffset());
             }
             linePos = 0;
             lineNumber++;
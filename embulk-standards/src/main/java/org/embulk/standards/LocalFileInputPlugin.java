@@ -7,6 +7,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
@@ -15,7 +17,12 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.attribute.BasicFileAttributes;
 import com.google.common.collect.ImmutableList;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.embulk.config.Config;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigInject;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.Task;
@@ -26,12 +33,18 @@ import org.embulk.config.TaskReport;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.SplitFileInput;
+import org.embulk.spi.TaskCostEstimator;
 import org.embulk.spi.TransactionalFileInput;
+import org.embulk.spi.unit.ByteSize;
+import org.embulk.spi.util.InputStreamFileInput;
 import org.embulk.spi.util.InputStreamTransactionalFileInput;
+import org.embulk.spi.util.LineDecoder;
+import org.embulk.spi.util.Newline;
 import org.slf4j.Logger;
 
 public class LocalFileInputPlugin
-        implements FileInputPlugin
+        implements FileInputPlugin, TaskCostEstimator
 {
     public interface PluginTask
             extends Task
@@ -43,9 +56,32 @@ public class LocalFileInputPlugin
         @ConfigDefault("null")
         Optional<String> getLastPath();
 
+        // splits an uncompressed file larger than this size into multiple tasks.
+        // records must not include newline characters to use this option.
+        // splits are aligned to LF bytes, so the parser must use LF or CRLF
+        // newline and a charset that encodes LF as a single 0x0A byte.
+        // decoders can't be used with this option.
+        @Config("split_size")
+        @ConfigDefault("null")
+        Optional<ByteSize> getSplitSize();
+
+        // packs small files into a task until total size of the task
+        // reaches min_task_size or number of files reaches max_task_files.
+        @Config("min_task_size")
+        @ConfigDefault("null")
+        Optional<ByteSize> getMinTaskSize();
+
+        @Config("max_task_files")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxTaskFiles();
+
         List<String> getFiles();
         void setFiles(List<String> files);
 
+        // splits read by each task
+        List<List<FileSplit>> getTaskSplits();
+        void setTaskSplits(List<List<FileSplit>> taskSplits);
+
         @ConfigInject
         BufferAllocator getBufferAllocator();
     }
@@ -58,17 +94,116 @@ public class LocalFileInputPlugin
     public ConfigDiff transaction(ConfigSource config, FileInputPlugin.Control control)
     {
         PluginTask task = config.loadConfig(PluginTask.class);
+        if (task.getSplitSize().isPresent()) {
+            // splits are cut in the encoded bytes and decoders hide
+            // SplitFileInput from the parser
+            JsonNode decoders = config.getObjectNode().get("decoders");
+            if (decoders != null && decoders.size() > 0) {
+                throw new ConfigException("split_size can't be used with decoders");
+            }
+            if (config.has("parser")) {
+                checkSplittable(config.getNested("parser").loadConfig(LineDecoder.DecoderTask.class));
+            }
+        }
 
         // list files recursively
         List<String> files = listFiles(task);
         log.info("Loading files {}", files);
         task.setFiles(files);
 
-        // number of processors is same with number of files
-        int taskCount = task.getFiles().size();
+        int taskCount;
+        if (task.getSplitSize().isPresent() || task.getMinTaskSize().isPresent() || task.getMaxTaskFiles().isPresent()) {
+            List<FileSplit> splits = splitFiles(files, task.getSplitSize());
+            List<List<FileSplit>> taskSplits = groupSplits(splits, task.getMinTaskSize(), task.getMaxTaskFiles());
+            log.info("Loading {} files by {} tasks", files.size(), taskSplits.size());
+            task.setTaskSplits(taskSplits);
+            taskCount = taskSplits.size();
+        } else {
+            // number of processors is same with number of files
+            task.setTaskSplits(ImmutableList.<List<FileSplit>>of());
+            taskCount = task.getFiles().size();
+        }
         return resume(task.dump(), taskCount, control);
     }
 
+    private static void checkSplittable(LineDecoder.DecoderTask decoderTask)
+    {
+        if (decoderTask.getNewline() == Newline.CR) {
+            throw new ConfigException("split_size can't be used with newline: CR. Splits are aligned to LF.");
+        }
+        byte[] lf = "\n".getBytes(decoderTask.getCharset());
+        if (lf.length != 1 || lf[0] != '\n') {
+            throw new ConfigException(String.format(
+                        "split_size can't be used with charset %s. Splits are aligned to LF bytes.", decoderTask.getCharset()));
+        }
+    }
+
+    private List<FileSplit> splitFiles(List<String> files, Optional<ByteSize> splitSizeOption)
+    {
+        long splitSize = splitSizeOption.isPresent() ? splitSizeOption.get().getBytes() : Long.MAX_VALUE;
+        if (splitSize <= 0) {
+            throw new ConfigException("split_size must be greater than 0");
+        }
+        ImmutableList.Builder<FileSplit> builder = ImmutableList.builder();
+        for (String file : files) {
+            long size = new File(file).length();
+            // compressed files are not split even if decoders are not configured
+            if (size <= splitSize || isCompressed(file)) {
+                builder.add(new FileSplit(file, 0, size));
+            } else {
+                for (long start = 0; start < size; start += splitSize) {
+                    builder.add(new FileSplit(file, start, Math.min(size, start + splitSize)));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private List<List<FileSplit>> groupSplits(List<FileSplit> splits,
+            Optional<ByteSize> minTaskSizeOption, Optional<Integer> maxTaskFilesOption)
+    {
+        long minTaskSize = minTaskSizeOption.isPresent() ? minTaskSizeOption.get().getBytes() : Long.MAX_VALUE;
+        int maxTaskFiles = maxTaskFilesOption.or(minTaskSizeOption.isPresent() ? Integer.MAX_VALUE : 1);
+        if (maxTaskFiles <= 0) {
+            throw new ConfigException("max_task_files must be greater than 0");
+        }
+
+        ImmutableList.Builder<List<FileSplit>> builder = ImmutableList.builder();
+        List<FileSplit> group = new ArrayList<>();
+        long groupSize = 0;
+        for (FileSplit split : splits) {
+            group.add(split);
+            groupSize += split.getEnd() - split.getStart();
+            if (groupSize >= minTaskSize || group.size() >= maxTaskFiles) {
+                builder.add(ImmutableList.copyOf(group));
+                group.clear();
+                groupSize = 0;
+            }
+        }
+        if (!group.isEmpty()) {
+            builder.add(ImmutableList.copyOf(group));
+        }
+        return builder.build();
+    }
+
+    // decoders need the whole file
+    private static boolean isCompressed(String file)
+    {
+        byte[] magic = new byte[3];
+        try (InputStream in = new FileInputStream(file)) {
+            int n = ByteStreams.read(in, magic, 0, magic.length);
+            if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+                return true;  // gzip
+            }
+            if (n >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+                return true;  // bzip2
+            }
+            return false;
+        } catch (IOException ex) {
+            throw new RuntimeException(String.format("Failed to read local file '%s'", file), ex);
+        }
+    }
+
     @Override
     public ConfigDiff resume(TaskSource taskSource,
             int taskCount,
@@ -96,6 +231,29 @@ public class LocalFileInputPlugin
         return configDiff;
     }
 
+    @Override
+    public List<Long> estimateTaskCosts(TaskSource taskSource, int taskCount)
+    {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+
+        // size of the files
+        ImmutableList.Builder<Long> builder = ImmutableList.builder();
+        if (task.getTaskSplits().isEmpty()) {
+            for (String file : task.getFiles()) {
+                builder.add(new File(file).length());
+            }
+        } else {
+            for (List<FileSplit> splits : task.getTaskSplits()) {
+                long size = 0;
+                for (FileSplit split : splits) {
+                    size += split.getEnd() - split.getStart();
+                }
+                builder.add(size);
+            }
+        }
+        return builder.build();
+    }
+
     @Override
     public void cleanup(TaskSource taskSource,
             int taskCount,
@@ -178,6 +336,10 @@ public class LocalFileInputPlugin
     {
         final PluginTask task = taskSource.loadTask(PluginTask.class);
 
+        if (!task.getTaskSplits().isEmpty()) {
+            return new FileSplitInput(task.getBufferAllocator(), new FileSplitProvider(task.getTaskSplits().get(taskIndex)));
+        }
+
         final File file = new File(task.getFiles().get(taskIndex));
 
         return new InputStreamTransactionalFileInput(
@@ -200,4 +362,151 @@ public class LocalFileInputPlugin
             }
         };
     }
+
+    public static class FileSplit
+    {
+        private final String path;
+        private final long start;
+        private final long end;
+
+        @JsonCreator
+        public FileSplit(
+                @JsonProperty("path") String path,
+                @JsonProperty("start") long start,
+                @JsonProperty("end") long end)
+        {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+
+        @JsonProperty("path")
+        public String getPath()
+        {
+            return path;
+        }
+
+        @JsonProperty("start")
+        public long getStart()
+        {
+            return start;
+        }
+
+        @JsonProperty("end")
+        public long getEnd()
+        {
+            return end;
+        }
+    }
+
+    // Reads records that start in the range of each split. Boundaries of
+    // the range are moved forward to the next head of a line so that adjacent
+    // splits read every line exactly once.
+    private static class FileSplitProvider
+            implements InputStreamFileInput.Provider
+    {
+        private final List<FileSplit> splits;
+        private int index = -1;
+
+        public FileSplitProvider(List<FileSplit> splits)
+        {
+            this.splits = splits;
+        }
+
+        @Override
+        public InputStream openNext() throws IOException
+        {
+            if (index + 1 >= splits.size()) {
+                return null;
+            }
+            index++;
+            return openSplit(splits.get(index));
+        }
+
+        public boolean isHeadOfFile()
+        {
+            return index >= 0 && index < splits.size() && splits.get(index).getStart() == 0;
+        }
+
+        @Override
+        public void close()
+        { }
+    }
+
+    private static class FileSplitInput
+            extends InputStreamTransactionalFileInput
+            implements SplitFileInput
+    {
+        private final FileSplitProvider provider;
+
+        public FileSplitInput(BufferAllocator allocator, FileSplitProvider provider)
+        {
+            super(allocator, provider);
+            this.provider = provider;
+        }
+
+        @Override
+        public boolean isHeadOfFile()
+        {
+            return provider.isHeadOfFile();
+        }
+
+        @Override
+        public void abort()
+        { }
+
+        @Override
+        public TaskReport commit()
+        {
+            return Exec.newTaskReport();
+        }
+    }
+
+    private static InputStream openSplit(FileSplit split) throws IOException
+    {
+        // FileInputStream.skip seeks the file without reading it. parsers
+        // use it to resume from a checkpoint through InputStreamFileInput.seek
+        FileInputStream file = new FileInputStream(split.getPath());
+        try {
+            FileChannel channel = file.getChannel();
+            long start = nextLineHead(channel, split.getStart());
+            long end = nextLineHead(channel, split.getEnd());
+            channel.position(start);
+            InputStream in = ByteStreams.limit(file, Math.max(0, end - start));
+            file = null;
+            return in;
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    // returns the offset of the first line that starts at or after the offset
+    private static long nextLineHead(FileChannel channel, long offset) throws IOException
+    {
+        long size = channel.size();
+        if (offset <= 0) {
+            return 0;
+        } else if (offset >= size) {
+            return size;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long pos = offset - 1;  // offset is a head of line if the previous byte is a newline
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                break;
+            }
+            for (int i=0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
 }
@@ -114,7 +114,7 @@ public class LocalFileOutputPlugin
             public void add(Buffer buffer)
             {
                 try {
-                    output.write(buffer.array(), buffer.offset(), buffer.limit());
+                    buffer.getBytes(0, output, buffer.limit());
                 } catch (IOException ex) {
                     throw new RuntimeException(ex);
                 } finally {
@@ -9,10 +9,11 @@ import org.embulk.spi.Schema;
 import org.embulk.spi.Page;
 import org.embulk.spi.Exec;
 import org.embulk.spi.OutputPlugin;
-import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.CheckpointOutputPlugin;
+import org.embulk.spi.CheckpointTransactionalPageOutput;
 
 public class NullOutputPlugin
-        implements OutputPlugin
+        implements OutputPlugin, CheckpointOutputPlugin
 {
     @Override
     public ConfigDiff transaction(ConfigSource config,
@@ -36,9 +37,9 @@ public class NullOutputPlugin
     { }
 
     @Override
-    public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex)
+    public CheckpointTransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex)
     {
-        return new TransactionalPageOutput() {
+        return new CheckpointTransactionalPageOutput() {
             public void add(Page page)
             {
                 page.release();
@@ -50,10 +51,22 @@ public class NullOutputPlugin
 
             public void abort() { }
 
+            public TaskReport checkpoint()
+            {
+                return Exec.newTaskReport();
+            }
+
             public TaskReport commit()
             {
                 return Exec.newTaskReport();
             }
         };
     }
+
+    @Override
+    public CheckpointTransactionalPageOutput resumeTask(TaskSource taskSource, Schema schema, int taskIndex,
+            TaskReport acknowledgement)
+    {
+        return open(taskSource, schema, taskIndex);
+    }
 }
@@ -11,12 +11,13 @@ import org.embulk.spi.Schema;
 import org.embulk.spi.Page;
 import org.embulk.spi.Exec;
 import org.embulk.spi.OutputPlugin;
-import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.CheckpointOutputPlugin;
+import org.embulk.spi.CheckpointTransactionalPageOutput;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.util.PagePrinter;
 
 public class StdoutOutputPlugin
-        implements OutputPlugin
+        implements OutputPlugin, CheckpointOutputPlugin
 {
     public interface PluginTask
             extends Task, TimestampFormatter.FormatterTask
@@ -47,12 +48,12 @@ public class StdoutOutputPlugin
     { }
 
     @Override
-    public TransactionalPageOutput open(TaskSource taskSource, final Schema schema,
+    public CheckpointTransactionalPageOutput open(TaskSource taskSource, final Schema schema,
             int taskIndex)
     {
         final PluginTask task = taskSource.loadTask(PluginTask.class);
 
-        return new TransactionalPageOutput() {
+        return new CheckpointTransactionalPageOutput() {
             private final PageReader reader = new PageReader(schema);
             private final PagePrinter printer = new PagePrinter(schema, task);
 
@@ -76,10 +77,24 @@ public class StdoutOutputPlugin
 
             public void abort() { }
 
+            public TaskReport checkpoint()
+            {
+                System.out.flush();
+                return Exec.newTaskReport();
+            }
+
             public TaskReport commit()
             {
                 return Exec.newTaskReport();
             }
         };
     }
+
+    // records are printed again after the checkpoint if the task fails
+    @Override
+    public CheckpointTransactionalPageOutput resumeTask(TaskSource taskSource, Schema schema, int taskIndex,
+            TaskReport acknowledgement)
+    {
+        return open(taskSource, schema, taskIndex);
+    }
 }
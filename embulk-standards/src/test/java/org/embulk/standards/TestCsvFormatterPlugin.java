@@ -8,10 +8,20 @@ import org.junit.Test;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import static org.embulk.spi.type.Types.STRING;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
 import org.embulk.spi.Exec;
+import org.embulk.spi.FormatterPlugin;
+import org.embulk.spi.MockFileOutput;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
 import org.embulk.spi.util.Newline;
 
 public class TestCsvFormatterPlugin
@@ -309,4 +319,53 @@ public class TestCsvFormatterPlugin
         assertEquals("", method.invoke(formatter, "", delimiter, CsvFormatterPlugin.QuotePolicy.NONE, quote, escape, newline, "N/A"));
         assertEquals("N/A", method.invoke(formatter, "N/A", delimiter, CsvFormatterPlugin.QuotePolicy.NONE, quote, escape, newline, "N/A"));
     }
+
+    @Test
+    public void testUtf8BytesInPages() throws Exception
+    {
+        String[] values = new String[] { "abc", "", "N/A", "a,b", "a\"b", "a\nb", "a\rb", "日本語", "\u00e9," };
+        for (String policy : new String[] { "MINIMAL", "NONE", "ALL" }) {
+            for (String nullString : new String[] { "", "N/A" }) {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("quote_policy", policy)
+                        .set("null_string", nullString)
+                        .set("newline", "LF");
+                assertEquals(format(config, values, false), format(config, values, true));
+            }
+        }
+    }
+
+    private String format(ConfigSource config, final String[] values, final boolean utf8Bytes)
+    {
+        final Schema schema = Schema.builder().add("c0", STRING).add("c1", STRING).build();
+        final CsvFormatterPlugin plugin = new CsvFormatterPlugin();
+        final MockFileOutput output = new MockFileOutput();
+        plugin.transaction(config, schema, new FormatterPlugin.Control() {
+            public void run(TaskSource taskSource)
+            {
+                PageOutput pageOutput = plugin.open(taskSource, schema, output);
+                try (PageBuilder builder = new PageBuilder(runtime.getBufferAllocator(), schema, pageOutput)) {
+                    for (String value : values) {
+                        if (utf8Bytes) {
+                            builder.setStringBytes(0, value.getBytes(StandardCharsets.UTF_8));
+                        } else {
+                            builder.setString(0, value);
+                        }
+                        builder.setNull(1);
+                        builder.addRecord();
+                    }
+                    builder.finish();
+                }
+                pageOutput.close();
+            }
+        });
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Buffer buffer : output.getLastBuffers()) {
+            byte[] data = new byte[buffer.limit()];
+            buffer.getBytes(0, data, 0, data.length);
+            bytes.write(data, 0, data.length);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
@@ -3,6 +3,10 @@ package org.embulk.standards;
 import org.junit.Rule;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import java.util.List;
+import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
@@ -11,8 +15,21 @@ import org.joda.time.DateTimeZone;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.CheckpointPageOutput;
 import org.embulk.spi.Exec;
+import org.embulk.spi.FileInput;
+import org.embulk.spi.Page;
+import org.embulk.spi.ParserPlugin;
+import org.embulk.spi.Schema;
+import org.embulk.spi.SplitFileInput;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.spi.util.InputStreamFileInput;
+import org.embulk.spi.util.ListFileInput;
 import org.embulk.spi.util.Newline;
+import org.embulk.spi.util.Pages;
 
 public class TestCsvParserPlugin
 {
@@ -72,4 +89,187 @@ public class TestCsvParserPlugin
         assertEquals(Optional.of(new CsvParserPlugin.QuoteCharacter('\\')), task.getQuoteChar());
         assertEquals(true, task.getAllowOptionalColumns());
     }
+
+    @Test
+    public void testSkipHeaderLinesOnlyAtHeadOfFile()
+    {
+        ConfigSource config = Exec.newConfigSource()
+                .set("newline", "LF")
+                .set("skip_header_lines", 1)
+                .set("columns", ImmutableList.of(
+                            ImmutableMap.of(
+                                "name", "id",
+                                "type", "long"))
+                        );
+
+        assertEquals(ImmutableList.of(2L), parseSplit(config, true, "1\n2\n"));
+        assertEquals(ImmutableList.of(1L, 2L), parseSplit(config, false, "1\n2\n"));
+        assertEquals(ImmutableList.of(2L, 4L), parseSplit(config, true, "1\n2\n", "3\n4\n"));
+    }
+
+    private List<Object> parseSplit(ConfigSource config, final boolean headOfFile, String... files)
+    {
+        final ImmutableList.Builder<Object> values = ImmutableList.builder();
+        ImmutableList.Builder<List<Buffer>> buffers = ImmutableList.builder();
+        for (String file : files) {
+            buffers.add(ImmutableList.of(Buffer.copyOf(file.getBytes())));
+        }
+        final FileInput input = new ListFileInput(buffers.build());
+        final CsvParserPlugin plugin = new CsvParserPlugin();
+        plugin.transaction(config, new ParserPlugin.Control() {
+            public void run(TaskSource taskSource, Schema schema)
+            {
+                MockPageOutput output = new MockPageOutput();
+                plugin.run(taskSource, schema, new SplitFileInput() {
+                    public boolean isHeadOfFile()
+                    {
+                        return headOfFile;
+                    }
+
+                    public boolean nextFile()
+                    {
+                        return input.nextFile();
+                    }
+
+                    public Buffer poll()
+                    {
+                        return input.poll();
+                    }
+
+                    public void close()
+                    {
+                        input.close();
+                    }
+                }, output);
+                for (Object[] record : Pages.toObjects(schema, output.pages)) {
+                    values.add(record[0]);
+                }
+            }
+        });
+        return values.build();
+    }
+
+    private static class CheckpointMockPageOutput
+            extends MockPageOutput
+            implements CheckpointPageOutput
+    {
+        public final List<TaskReport> positions = new ArrayList<>();
+        public final List<Integer> pageCounts = new ArrayList<>();
+
+        public boolean isCheckpointRequired()
+        {
+            return true;
+        }
+
+        public void checkpoint(TaskReport position)
+        {
+            positions.add(position);
+            pageCounts.add(pages.size());
+        }
+    }
+
+    @Test
+    public void testResumeFromCheckpoint()
+    {
+        ConfigSource config = Exec.newConfigSource()
+                .set("newline", "LF")
+                .set("skip_header_lines", 1)
+                .set("columns", ImmutableList.of(
+                            ImmutableMap.of(
+                                "name", "id",
+                                "type", "long"))
+                        );
+        final String[] files = new String[] { "h\n1\n\n2\n3\n", "h\r\n4\r\n5\r\n" };
+        final CsvParserPlugin plugin = new CsvParserPlugin();
+        plugin.transaction(config, new ParserPlugin.Control() {
+            public void run(TaskSource taskSource, Schema schema)
+            {
+                CheckpointMockPageOutput output = new CheckpointMockPageOutput();
+                plugin.run(taskSource, schema, newFileInput(files), output);
+                // toValues releases the pages. counts of records are kept to read them once
+                List<Integer> recordCounts = new ArrayList<>();
+                List<Object> values = new ArrayList<>();
+                for (Page page : output.pages) {
+                    List<Object> pageValues = toValues(schema, ImmutableList.of(page));
+                    recordCounts.add(pageValues.size());
+                    values.addAll(pageValues);
+                }
+                assertEquals(ImmutableList.<Object>of(1L, 2L, 3L, 4L, 5L), values);
+
+                // a checkpoint is saved before each record except the first record of each file
+                assertEquals(3, output.positions.size());
+                assertEquals(0, (int) output.positions.get(0).get(Integer.class, "file"));
+                assertEquals(3L, (long) output.positions.get(0).get(Long.class, "line"));
+                assertEquals(5L, (long) output.positions.get(0).get(Long.class, "offset"));
+                assertEquals(1, (int) output.positions.get(2).get(Integer.class, "file"));
+                assertEquals(2L, (long) output.positions.get(2).get(Long.class, "line"));
+                assertEquals(6L, (long) output.positions.get(2).get(Long.class, "offset"));
+
+                for (int i=0; i < output.positions.size(); i++) {
+                    // records before a checkpoint are flushed and not parsed again
+                    int added = 0;
+                    for (int recordCount : recordCounts.subList(0, output.pageCounts.get(i))) {
+                        added += recordCount;
+                    }
+                    TaskReport position = output.positions.get(i);
+
+                    // the input can't seek. lines before the checkpoint are skipped
+                    MockPageOutput resumed = new MockPageOutput();
+                    plugin.resumeTask(taskSource, schema, newFileInput(files), position, resumed);
+                    assertEquals(values.subList(added, values.size()), toValues(schema, resumed.pages));
+
+                    SeekRecordingFileInput seekable = new SeekRecordingFileInput(files);
+                    resumed = new MockPageOutput();
+                    plugin.resumeTask(taskSource, schema, seekable, position, resumed);
+                    assertEquals(values.subList(added, values.size()), toValues(schema, resumed.pages));
+                    assertEquals(ImmutableList.of(position.get(Long.class, "offset")), seekable.seeks);
+                }
+            }
+        });
+    }
+
+    private static class SeekRecordingFileInput
+            extends InputStreamFileInput
+    {
+        private final List<Long> seeks = new ArrayList<>();
+
+        public SeekRecordingFileInput(String... files)
+        {
+            super(Exec.getBufferAllocator(), new InputStreamFileInput.IteratorProvider(toStreams(files)));
+        }
+
+        private static List<InputStream> toStreams(String... files)
+        {
+            List<InputStream> streams = new ArrayList<>();
+            for (String file : files) {
+                streams.add(new ByteArrayInputStream(file.getBytes()));
+            }
+            return streams;
+        }
+
+        @Override
+        public void seek(long offset)
+        {
+            seeks.add(offset);
+            super.seek(offset);
+        }
+    }
+
+    private static FileInput newFileInput(String... files)
+    {
+        ImmutableList.Builder<List<Buffer>> buffers = ImmutableList.builder();
+        for (String file : files) {
+            buffers.add(ImmutableList.of(Buffer.copyOf(file.getBytes())));
+        }
+        return new ListFileInput(buffers.build());
+    }
+
+    private static List<Object> toValues(Schema schema, List<Page> pages)
+    {
+        List<Object> values = new ArrayList<>();
+        for (Object[] record : Pages.toObjects(schema, pages)) {
+            values.add(record[0]);
+        }
+        return values;
+    }
 }
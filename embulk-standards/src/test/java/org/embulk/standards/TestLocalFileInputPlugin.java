@@ -0,0 +1,122 @@
+package org.embulk.standards;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.ParserPlugin;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.spi.util.Pages;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class TestLocalFileInputPlugin
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private int taskCount;
+
+    private ConfigSource splitConfig(ConfigSource parser) throws Exception
+    {
+        File file = tempFolder.newFile("data.csv");
+        Files.write("a,1\nb,2\nc,3\nd,4\n", file, StandardCharsets.UTF_8);
+        return Exec.newConfigSource()
+            .set("path_prefix", file.getPath())
+            .set("split_size", "4B")
+            .setNested("parser", parser);
+    }
+
+    private void transaction(ConfigSource config)
+    {
+        new LocalFileInputPlugin().transaction(config, new FileInputPlugin.Control() {
+            public List<TaskReport> run(TaskSource taskSource, int taskCount)
+            {
+                TestLocalFileInputPlugin.this.taskCount = taskCount;
+                return ImmutableList.of();
+            }
+        });
+    }
+
+    @Test
+    public void testSplitSize() throws Exception
+    {
+        transaction(splitConfig(Exec.newConfigSource().set("type", "csv").set("newline", "LF")));
+        assertEquals(4, taskCount);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testSplitSizeWithCRNewline() throws Exception
+    {
+        transaction(splitConfig(Exec.newConfigSource().set("type", "csv").set("newline", "CR")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testSplitSizeWithUtf16() throws Exception
+    {
+        transaction(splitConfig(Exec.newConfigSource().set("type", "csv").set("charset", "UTF-16LE")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testSplitSizeWithDecoders() throws Exception
+    {
+        transaction(splitConfig(Exec.newConfigSource().set("type", "csv").set("newline", "LF"))
+                .set("decoders", ImmutableList.of(ImmutableMap.of("type", "xz"))));
+    }
+
+    @Test
+    public void testSkipHeaderOnlyInFirstSplit() throws Exception
+    {
+        File file = tempFolder.newFile("header.csv");
+        Files.write("id\n1\n2\n3\n4\n5\n", file, StandardCharsets.UTF_8);
+        final ConfigSource parserConfig = Exec.newConfigSource()
+            .set("newline", "LF")
+            .set("skip_header_lines", 1)
+            .set("columns", ImmutableList.of(ImmutableMap.of("name", "id", "type", "long")));
+        ConfigSource config = Exec.newConfigSource()
+            .set("path_prefix", file.getPath())
+            .set("split_size", "4B")
+            .setNested("parser", parserConfig);
+
+        final LocalFileInputPlugin plugin = new LocalFileInputPlugin();
+        final List<Object> values = new ArrayList<>();
+        plugin.transaction(config, new FileInputPlugin.Control() {
+            public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+            {
+                assertTrue(taskCount > 1);
+                final CsvParserPlugin parser = new CsvParserPlugin();
+                parser.transaction(parserConfig, new ParserPlugin.Control() {
+                    public void run(TaskSource parserTaskSource, Schema schema)
+                    {
+                        for (int i=0; i < taskCount; i++) {
+                            MockPageOutput output = new MockPageOutput();
+                            parser.run(parserTaskSource, schema, plugin.open(taskSource, i), output);
+                            for (Object[] record : Pages.toObjects(schema, output.pages)) {
+                                values.add(record[0]);
+                            }
+                        }
+                    }
+                });
+                return ImmutableList.of();
+            }
+        });
+        assertEquals(ImmutableList.<Object>of(1L, 2L, 3L, 4L, 5L), values);
+    }
+}
@@ -75,6 +75,9 @@ module Embulk
       op.on('-r', '--resume-state PATH', 'Path to a file to write or read resume state') do |path|
         options[:resume_state_path] = path
       end
+      op.on('--resume-journal', 'Write resume state to PATH.journal every time a task commits so that -r resumes after a crash', TrueClass) do |b|
+        options[:resume_journal] = b
+      end
       op.on('-o', '--output PATH', 'Path to a file to write the next configuration') do |path|
         options[:next_config_output_path] = path
       end
@@ -55,22 +55,37 @@ module Embulk
       configSource = read_config(config, options)
       output_path = options[:next_config_output_path]
       resume_state_path = options[:resume_state_path]
+      if resume_state_path && options[:resume_journal]
+        resume_journal_path = "#{resume_state_path}.journal"
+        resume_journal = java.io.File.new(resume_journal_path).toPath
+      end
 
       check_file_writable(output_path)
       check_file_writable(resume_state_path)
 
       if resume_state_path
         begin
-          resumeConfig = read_yaml_config_file(resume_state_path)
-          resumeConfig = nil if resumeConfig.isEmpty
+          resumeAction = @embed.resumeStateFromFile(configSource, java.io.File.new(resume_state_path).toPath)
         rescue
           # TODO log?
-          resumeConfig = nil
+          resumeAction = nil
         end
       end
 
-      if resumeConfig
-        resumableResult = @embed.resumeState(configSource, resumeConfig).resume
+      if !resumeAction && resume_journal && File.exist?(resume_journal_path)
+        # resume state written before the previous process was killed
+        Embulk.logger.info "Resuming from journal '#{resume_journal_path}'"
+        resumeAction = @embed.resumeStateFromJournal(configSource, resume_journal)
+      end
+
+      if resumeAction
+        if resume_journal
+          resumableResult = resumeAction.resume(resume_journal)
+        else
+          resumableResult = resumeAction.resume
+        end
+      elsif resume_journal
+        resumableResult = @embed.runResumable(configSource, resume_journal)
       elsif resume_state_path
         resumableResult = @embed.runResumable(configSource)
       else
@@ -80,7 +95,10 @@ module Embulk
       unless executionResult
         unless resumableResult.isSuccessful
           Embulk.logger.info "Writing resume state to '#{resume_state_path}'"
-          write_config(resume_state_path, resumableResult.getResumeState)
+          @embed.writeResumeState(resumableResult.getResumeState, java.io.File.new(resume_state_path).toPath)
+          if resume_journal_path
+            File.delete(resume_journal_path) rescue nil
+          end
           Embulk.logger.info "Resume state is written. Run the transaction again with -r option to resume or use \"cleanup\" subcommand to delete intermediate data."
           raise resumableResult.getCause
         end
@@ -91,6 +109,9 @@ module Embulk
       if resume_state_path
         File.delete(resume_state_path) rescue nil
       end
+      if resume_journal_path
+        File.delete(resume_journal_path) rescue nil
+      end
 
       configDiff = executionResult.getConfigDiff
       Embulk.logger.info("Committed.")
@@ -125,10 +146,6 @@ module Embulk
       end
     end
 
-    def read_yaml_config_file(path)
-      @embed.newConfigLoader.fromYamlString File.read(config)
-    end
-
     def run_liquid(source, params)
       require 'liquid'
       template = Liquid::Template.parse(source)